@@ -0,0 +1,161 @@
+package org.lsst.ccs.visualization.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two sets of JMH results, to catch performance regressions before
+ * deploying. Results are saved by running the benchmarks with
+ * <code>-rf csv -rff file.csv</code>, for example:
+ * <pre>
+ * java -jar target/benchmarks.jar -rf csv -rff baseline.csv
+ * (make changes, rebuild)
+ * java -jar target/benchmarks.jar -rf csv -rff current.csv
+ * java -cp target/benchmarks.jar org.lsst.ccs.visualization.benchmarks.BenchmarkComparison baseline.csv current.csv 5
+ * </pre> A benchmark has regressed if its score is worse by more than the
+ * threshold percentage (by default 5%), and by more than the combined error
+ * of the two measurements. For throughput benchmarks higher scores are
+ * better, for all other modes lower scores are better. The exit status is 1
+ * if any benchmark regressed.
+ *
+ * @author tonyj
+ */
+public class BenchmarkComparison {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkComparison baseline.csv current.csv [thresholdPercent]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(new File(args[0]));
+        Map<String, Result> current = read(new File(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+        int regressions = 0;
+        System.out.printf("%-90s %14s %14s %9s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-90s %14s %14.3f %9s  new%n", entry.getKey(), "", now.score, "");
+                continue;
+            }
+            double change = 100 * (now.score - before.score) / before.score;
+            double worse = now.higherIsBetter() ? -change : change;
+            boolean significant = Math.abs(now.score - before.score) > errorOf(before) + errorOf(now);
+            boolean regressed = worse > threshold && significant;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-90s %14.3f %14.3f %+8.1f%%  %s%s%n", entry.getKey(), before.score, now.score, change, now.unit,
+                    regressed ? "  REGRESSION" : worse < -threshold && significant ? "  improved" : "");
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.printf("%-90s  missing%n", key);
+            }
+        }
+        System.out.printf("%d regression(s) beyond %.1f%%%n", regressions, threshold);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    private static double errorOf(Result result) {
+        return Double.isNaN(result.error) ? 0 : result.error;
+    }
+
+    /**
+     * Read results saved by JMH in CSV format.
+     *
+     * @param file The file to read
+     * @return The results, keyed by benchmark, mode and parameters
+     * @throws IOException If the file cannot be read or is not in the
+     * expected format
+     */
+    static Map<String, Result> read(File file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Empty results file " + file);
+            }
+            List<String> columns = split(line);
+            int benchmark = columns.indexOf("Benchmark");
+            int mode = columns.indexOf("Mode");
+            int score = columns.indexOf("Score");
+            int unit = columns.indexOf("Unit");
+            int error = -1;
+            for (int i = 0; i < columns.size(); i++) {
+                if (columns.get(i).startsWith("Score Error")) {
+                    error = i;
+                }
+            }
+            if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) {
+                throw new IOException("Not a JMH CSV results file " + file);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                List<String> values = split(line);
+                StringBuilder key = new StringBuilder(values.get(benchmark)).append(" (").append(values.get(mode)).append(')');
+                for (int i = unit + 1; i < values.size(); i++) {
+                    if (!values.get(i).isEmpty()) {
+                        key.append(' ').append(columns.get(i).replace("Param: ", "")).append('=').append(values.get(i));
+                    }
+                }
+                double e = error < 0 ? Double.NaN : parse(values.get(error));
+                results.put(key.toString(), new Result(values.get(mode), parse(values.get(score)), e, values.get(unit)));
+            }
+        }
+        return results;
+    }
+
+    private static double parse(String value) {
+        // Results written in locales using a decimal comma
+        return value.equals("NaN") ? Double.NaN : Double.parseDouble(value.replace(',', '.'));
+    }
+
+    private static List<String> split(String line) {
+        List<String> result = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                result.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        result.add(field.toString());
+        return result;
+    }
+
+    static class Result {
+
+        private final String mode;
+        private final double score;
+        private final double error;
+        private final String unit;
+
+        Result(String mode, double score, double error, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        boolean higherIsBetter() {
+            return "thrpt".equals(mode);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.lsst.ccs.visualization.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Scratch directories for benchmarks which write images. Directories are
+ * created in /dev/shm (tmpfs on Linux) where it exists, so that results
+ * measure the server rather than the disk, otherwise in the directory given
+ * by the <code>benchmark.dir</code> system property or the default
+ * temporary directory.
+ *
+ * @author tonyj
+ */
+public final class Tmpfs {
+
+    private static final File SHM = new File("/dev/shm");
+
+    private Tmpfs() {
+    }
+
+    /**
+     * Create a new empty scratch directory.
+     *
+     * @param prefix The prefix of the directory name
+     * @return The directory
+     * @throws IOException If the directory cannot be created
+     */
+    public static File createDirectory(String prefix) throws IOException {
+        String dir = System.getProperty("benchmark.dir");
+        File parent = dir != null ? new File(dir) : SHM.isDirectory() && SHM.canWrite() ? SHM : new File(System.getProperty("java.io.tmpdir"));
+        return Files.createTempDirectory(parent.toPath(), prefix).toFile();
+    }
+
+    /**
+     * Delete the contents of a scratch directory.
+     *
+     * @param dir The directory
+     */
+    public static void clear(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete a scratch directory and its contents.
+     *
+     * @param dir The directory
+     */
+    public static void delete(File dir) {
+        clear(dir);
+        dir.delete();
+    }
+}
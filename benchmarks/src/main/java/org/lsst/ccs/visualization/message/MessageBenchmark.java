@@ -0,0 +1,116 @@
+package org.lsst.ccs.visualization.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of each message type. The DATA payload is not
+ * included in the frame, so only the cost of the frame itself is measured,
+ * except by {@link #encodeToChannel()} which writes the payload to a
+ * discarding channel.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @Param({"START", "END", "DATA", "HEADER", "HEADER_BATCH"})
+    private Message.MessageType type;
+
+    private Message message;
+    private ByteBuffer frame;
+    private final MessageDecoder decoder = new MessageDecoder();
+    private final WritableByteChannel discard = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        String imageName = "MC_O_20260101_000001_R22_S11";
+        switch (type) {
+            case START:
+                message = new StartMessage(imageName, 4096, 4004, 200, 16);
+                break;
+            case END:
+                message = new EndMessage(imageName);
+                break;
+            case DATA:
+                message = new DataMessage(imageName, 4096 * 2002, 512, 4096, ByteBuffer.allocateDirect(4 * 512 * 2002));
+                break;
+            case HEADER:
+                message = new HeaderMessage(imageName, card(0));
+                break;
+            default:
+                List<String> cards = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    cards.add(card(i));
+                }
+                message = new HeaderBatchMessage(imageName, cards);
+        }
+        frame = ByteBuffer.allocateDirect(message.getFrameLength());
+        message.encodeFrame(frame);
+        frame.flip();
+    }
+
+    private static String card(int i) {
+        return String.format("%-8s= %20d / %-47s", "KEY" + i, i, "A typical header card comment");
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        frame.clear();
+        message.encodeFrame(frame);
+        return frame;
+    }
+
+    @Benchmark
+    public void encodeToChannel() throws IOException {
+        message.encode(discard);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        frame.rewind();
+        return Message.decode(frame);
+    }
+
+    @Benchmark
+    public Message decodeReusing() throws IOException {
+        frame.rewind();
+        return decoder.decode(frame);
+    }
+}
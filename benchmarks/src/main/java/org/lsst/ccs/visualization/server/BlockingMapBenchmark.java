@@ -0,0 +1,82 @@
+package org.lsst.ccs.visualization.server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention on the map of open images. One thread repeatedly starts images
+ * (put) while others look them up as messages arrive, as happens when many
+ * connections send data for the same set of images.
+ *
+ * @author tonyj
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockingMapBenchmark {
+
+    private static final int N_KEYS = 256;
+    private final BlockingMap<String, Object> map = new BlockingMap<>();
+    private final String[] keys = new String[N_KEYS];
+    private final Object value = new Object();
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < N_KEYS; i++) {
+            keys[i] = "image_" + i;
+            map.put(keys[i], value);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        String next(String[] keys) {
+            return keys[next++ & (N_KEYS - 1)];
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void put(Cursor cursor) {
+        map.put(cursor.next(keys), value);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Object get(Cursor cursor) throws InterruptedException {
+        return map.get(cursor.next(keys), 1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Object getImmediate(Cursor cursor) {
+        return map.getImmediate(cursor.next(keys));
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public Object getOnly(Cursor cursor) throws InterruptedException {
+        return map.get(cursor.next(keys), 1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,153 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressed DATA transport on synthetic CCD-like frames. Measures the time
+ * for a client to build (and compress) a data message for a whole CCD, and
+ * the time for the server to decompress and place its pixels. The compress
+ * benchmark also counts the raw and compressed bytes, whose ratio is the
+ * compression ratio.
+ *
+ * @author tonyj
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    public enum Frame {
+        // Bias with 5 ADU read noise
+        BIAS(1000, 5, 0),
+        // Dark, bias plus a little dark current and hot pixels
+        DARK(1010, 6, 1e-3),
+        // Sky limited exposure, ~500 e- of sky
+        SKY(1500, 23, 1e-4),
+        // Bright flat field
+        FLAT(20000, 141, 0);
+
+        private final int level;
+        private final double sigma;
+        private final double outlierFraction;
+
+        Frame(int level, double sigma, double outlierFraction) {
+            this.level = level;
+            this.sigma = sigma;
+            this.outlierFraction = outlierFraction;
+        }
+
+        ByteBuffer create(int nPixels, boolean packed) {
+            Random random = new Random(nPixels);
+            ByteBuffer bb = ByteBuffer.allocateDirect((packed ? 2 : 4) * nPixels);
+            for (int i = 0; i < nPixels; i++) {
+                int value = level + (int) Math.round(sigma * random.nextGaussian());
+                if (outlierFraction > 0 && random.nextDouble() < outlierFraction) {
+                    value += random.nextInt(40000);
+                }
+                value = Math.max(0, Math.min(65535, value));
+                if (packed) {
+                    bb.putShort((short) value);
+                } else {
+                    bb.putInt(value);
+                }
+            }
+            bb.flip();
+            return bb;
+        }
+    }
+
+    public enum Transport {
+        NATIVE(false, DataMessage.Compression.NONE),
+        PACKED_16(true, DataMessage.Compression.NONE),
+        RICE_32(false, DataMessage.Compression.RICE_32),
+        PACKED_16_RICE(true, DataMessage.Compression.RICE_16);
+
+        private final boolean packed;
+        private final DataMessage.Compression compression;
+
+        Transport(boolean packed, DataMessage.Compression compression) {
+            this.packed = packed;
+            this.compression = compression;
+        }
+    }
+
+    /**
+     * Bytes counted by the compress benchmark.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+
+        public long rawBytes;
+        public long compressedBytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            rawBytes = 0;
+            compressedBytes = 0;
+        }
+    }
+
+    @Param({"BIAS", "DARK", "SKY", "FLAT"})
+    private Frame frame;
+
+    @Param({"NATIVE", "PACKED_16", "RICE_32", "PACKED_16_RICE"})
+    private Transport transport;
+
+    @Param({"4096"})
+    private int ccdWidth;
+
+    @Param({"4004"})
+    private int ccdHeight;
+
+    private ByteBuffer pixels;
+    private DataMessage.Encoding encoding;
+    private DataMessage message;
+    private OffHeapSink sink;
+
+    @Setup
+    public void setup() {
+        int nPixels = ccdWidth * ccdHeight;
+        pixels = frame.create(nPixels, transport.packed);
+        encoding = transport.packed ? DataMessage.Encoding.PACKED_16 : DataMessage.Encoding.NATIVE;
+        message = compress();
+        sink = new OffHeapSink(4L * nPixels);
+    }
+
+    private DataMessage compress() {
+        return new DataMessage(frame.name(), 0, 0, 0, pixels, encoding, transport.compression);
+    }
+
+    @Benchmark
+    public DataMessage compress(Sizes sizes) {
+        DataMessage data = compress();
+        sizes.rawBytes += 4L * ccdWidth * ccdHeight;
+        sizes.compressedBytes += data.getDataLength();
+        return data;
+    }
+
+    @Benchmark
+    public long place() throws IOException {
+        return StridedWriter.write(new ByteBufferChannel(message.getPayload().duplicate()), sink, 0, message, 32);
+    }
+}
@@ -0,0 +1,84 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.lsst.ccs.visualization.benchmarks.Tmpfs;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.StartMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes of pixel data into an open image, either as contiguous rows, or as
+ * an amplifier segment placed with a stride (one column of amplifiers of a
+ * CCD). The image is created on tmpfs where available, so the cost of the
+ * copy rather than of the disk is measured. Each invocation rewrites the
+ * same region of the image.
+ *
+ * @author tonyj
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FitsFileHandlerBenchmark {
+
+    private static final int WIDTH = 4096;
+    private static final int HEIGHT = 4004;
+    private static final int SEGMENT_WIDTH = 512;
+    private static final int SEGMENT_HEIGHT = 2002;
+
+    @Param({"false", "true"})
+    private boolean mapped;
+
+    @Param({"32", "16"})
+    private int bitpix;
+
+    private File dir;
+    private FitsFileHandlerImpl handler;
+    private DataMessage contiguous;
+    private DataMessage strided;
+    private final ByteBufferChannel channel = new ByteBufferChannel(ByteBuffer.allocate(0));
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Tmpfs.createDirectory("fitsFileHandler");
+        StartMessage start = new StartMessage("bench", WIDTH, HEIGHT, 0, 1, bitpix);
+        handler = new FitsFileHandlerImpl(dir, start, FitsFileHandlerImpl.Options.DEFAULT.withMapped(mapped));
+        int bytesPerPixel = start.getBytesPerPixel();
+        // The same number of pixels for both kinds of write
+        ByteBuffer data = ByteBuffer.allocateDirect(bytesPerPixel * SEGMENT_WIDTH * SEGMENT_HEIGHT);
+        contiguous = new DataMessage("bench", 0, 0, 0, data);
+        strided = new DataMessage("bench", SEGMENT_WIDTH, SEGMENT_WIDTH, WIDTH, data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        handler.close();
+        Tmpfs.delete(dir);
+    }
+
+    @Benchmark
+    public void contiguousWrite() throws IOException {
+        handler.handle(contiguous, channel.reset(contiguous.getPayload()));
+    }
+
+    @Benchmark
+    public void stridedWrite() throws IOException {
+        handler.handle(strided, channel.reset(strided.getPayload()));
+    }
+}
@@ -0,0 +1,163 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.lsst.ccs.visualization.client.IngestClient;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.Message;
+import org.lsst.ccs.visualization.message.StartMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loopback comparison of the server IO modes. Each operation is one
+ * exposure, in which a set of clients, one per CCD, each send a CCD worth of
+ * data to a server whose handlers discard the data, so only the networking
+ * and dispatch cost is measured. Virtual threads can be included on Java 21
+ * or later with <code>-p mode=THREADED,VIRTUAL_THREADS,REACTOR</code>.
+ *
+ * @author tonyj
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestModeBenchmark {
+
+    @Param({"THREADED", "REACTOR"})
+    private VisualizationIngestServer.IOMode mode;
+
+    @Param({"9", "189"})
+    private int nCCDs;
+
+    @Param({"1024"})
+    private int ccdWidth;
+
+    @Param({"1024"})
+    private int ccdHeight;
+
+    private VisualizationIngestServer server;
+    private Thread serverThread;
+    private IngestClient control;
+    private final List<IngestClient> clients = new ArrayList<>();
+    private ExecutorService senders;
+    private ByteBuffer ccd;
+    private final ConcurrentHashMap<String, CountDownLatch> closed = new ConcurrentHashMap<>();
+    private int exposure;
+
+    @Setup
+    public void setup() throws IOException {
+        FitsFileManager ffManager = new FitsFileManager(new File("/notused")) {
+            @Override
+            FitsFileHandler createHandler(File dir, StartMessage msg) throws IOException {
+                return new DiscardingHandler(latch(msg.getImageName()));
+            }
+        };
+        InetSocketAddress inputAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        server = new VisualizationIngestServer(inputAddress, ffManager, mode, Runtime.getRuntime().availableProcessors());
+        SocketAddress address = server.start();
+        serverThread = new Thread(server, "Benchmark server");
+        serverThread.start();
+        control = new IngestClient(address);
+        for (int i = 0; i < nCCDs; i++) {
+            clients.add(new IngestClient(address));
+        }
+        senders = Executors.newFixedThreadPool(nCCDs);
+        ccd = ByteBuffer.allocateDirect(4 * ccdWidth * ccdHeight);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        for (IngestClient client : clients) {
+            client.close();
+        }
+        control.close();
+        senders.shutdown();
+        server.shutdown();
+        serverThread.join(10000);
+    }
+
+    private CountDownLatch latch(String imageName) {
+        return closed.computeIfAbsent(imageName, k -> new CountDownLatch(1));
+    }
+
+    @Benchmark
+    public void exposure() throws Exception {
+        final String imageName = "bench_" + exposure++;
+        CountDownLatch latch = latch(imageName);
+        control.send(new StartMessage(imageName, ccdWidth * nCCDs, ccdHeight, 0, nCCDs));
+        List<Future<Void>> sent = new ArrayList<>();
+        for (int i = 0; i < nCCDs; i++) {
+            final IngestClient client = clients.get(i);
+            final int offset = i * ccdWidth * ccdHeight;
+            sent.add(senders.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    client.send(new DataMessage(imageName, offset, 0, 0, ccd.duplicate()));
+                    client.send(new EndMessage(imageName));
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : sent) {
+                future.get();
+            }
+        } catch (ExecutionException x) {
+            throw new IOException("Error sending " + imageName, x.getCause());
+        }
+        if (!latch.await(60, TimeUnit.SECONDS)) {
+            throw new IOException("Timeout waiting for " + imageName);
+        }
+        closed.remove(imageName);
+    }
+
+    private static class DiscardingHandler implements FitsFileHandler {
+
+        private final CountDownLatch closed;
+
+        DiscardingHandler(CountDownLatch closed) {
+            this.closed = closed;
+        }
+
+        @Override
+        public void handle(Message msg, ReadableByteChannel in) throws IOException {
+            if (msg instanceof DataMessage) {
+                FitsFileManager.discardData((DataMessage) msg, in);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.lsst.ccs.visualization.benchmarks.Tmpfs;
+import org.lsst.ccs.visualization.client.IngestClient;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.StartMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end ingest of complete images over loopback. Each operation is one
+ * exposure: a start message, then each client sends its share of the rows in
+ * parallel followed by an end message, and the operation completes once the
+ * server has finalized the image. Images are written to tmpfs where
+ * available.
+ *
+ * @author tonyj
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackIngestBenchmark {
+
+    private static final int WIDTH = 2048;
+    private static final int HEIGHT = 2048;
+
+    @Param({"THREADED", "REACTOR"})
+    private VisualizationIngestServer.IOMode mode;
+
+    @Param({"FILE", "MAPPED"})
+    private VisualizationIngestServer.StorageMode storageMode;
+
+    @Param({"4"})
+    private int nClients;
+
+    private File dir;
+    private VisualizationIngestServer server;
+    private Thread serverThread;
+    private IngestClient control;
+    private final List<IngestClient> clients = new ArrayList<>();
+    private ExecutorService senders;
+    private ByteBuffer rows;
+    private final ConcurrentHashMap<String, CountDownLatch> finalized = new ConcurrentHashMap<>();
+    private int exposure;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Tmpfs.createDirectory("loopback");
+        InetSocketAddress inputAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        server = new VisualizationIngestServer(inputAddress, new FitsFileManager(dir), mode, Runtime.getRuntime().availableProcessors());
+        server.setStorageMode(storageMode);
+        server.addFinalizationListener((imageName, error) -> latch(imageName).countDown());
+        SocketAddress address = server.start();
+        serverThread = new Thread(server, "Benchmark server");
+        serverThread.start();
+        control = new IngestClient(address);
+        for (int i = 0; i < nClients; i++) {
+            clients.add(new IngestClient(address));
+        }
+        senders = Executors.newFixedThreadPool(nClients);
+        rows = ByteBuffer.allocateDirect(4 * WIDTH * (HEIGHT / nClients));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        for (IngestClient client : clients) {
+            client.close();
+        }
+        control.close();
+        senders.shutdown();
+        server.shutdown();
+        serverThread.join(10000);
+        Tmpfs.delete(dir);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        Tmpfs.clear(dir);
+    }
+
+    private CountDownLatch latch(String imageName) {
+        return finalized.computeIfAbsent(imageName, k -> new CountDownLatch(1));
+    }
+
+    @Benchmark
+    public void exposure() throws Exception {
+        final String imageName = "loopback_" + exposure++;
+        CountDownLatch latch = latch(imageName);
+        control.send(new StartMessage(imageName, WIDTH, HEIGHT, 0, nClients));
+        List<Future<Void>> sent = new ArrayList<>();
+        for (int i = 0; i < nClients; i++) {
+            final IngestClient client = clients.get(i);
+            final int offset = i * WIDTH * (HEIGHT / nClients);
+            sent.add(senders.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    client.send(new DataMessage(imageName, offset, 0, 0, rows.duplicate()));
+                    client.send(new EndMessage(imageName));
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : sent) {
+                future.get();
+            }
+        } catch (ExecutionException x) {
+            throw new IOException("Error sending " + imageName, x.getCause());
+        }
+        if (!latch.await(60, TimeUnit.SECONDS)) {
+            throw new IOException("Timeout waiting for " + imageName);
+        }
+        finalized.remove(imageName);
+    }
+}
@@ -0,0 +1,125 @@
+package org.lsst.ccs.visualization.client;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import nom.tam.fits.Header;
+
+/**
+ * Where the pixels of one amplifier segment belong in the assembled CCD,
+ * parsed once from the DATASEC and DETSEC keywords of its header.
+ *
+ * @author tonyj
+ */
+class AmplifierGeometry {
+
+    private static final Pattern IRAF_SECTION = Pattern.compile("\\[(\\d+):(\\d+),(\\d+):(\\d+)\\]");
+    /**
+     * Used when a section keyword is missing, as in some old files.
+     */
+    static final String DEFAULT_SECTION = "[1:4096,1:4004]";
+
+    private final int dataX;
+    private final int dataY;
+    private final int width;
+    private final int height;
+    private final int detX;
+    private final int detY;
+    private final boolean flipX;
+    private final boolean flipY;
+
+    /**
+     * Create the geometry for one segment.
+     *
+     * @param datasec The DATASEC of the segment, 1 based and inclusive
+     * @param detsec The DETSEC of the segment. A section with start greater
+     * than end is flipped in that direction.
+     * @throws IOException If the sections have different sizes
+     */
+    AmplifierGeometry(int[] datasec, int[] detsec) throws IOException {
+        dataX = Math.min(datasec[0], datasec[1]) - 1;
+        dataY = Math.min(datasec[2], datasec[3]) - 1;
+        width = Math.abs(datasec[1] - datasec[0]) + 1;
+        height = Math.abs(datasec[3] - datasec[2]) + 1;
+        if (width != Math.abs(detsec[1] - detsec[0]) + 1 || height != Math.abs(detsec[3] - detsec[2]) + 1) {
+            throw new IOException("DATASEC and DETSEC sizes differ");
+        }
+        flipX = detsec[0] > detsec[1];
+        flipY = detsec[2] > detsec[3];
+        detX = Math.min(detsec[0], detsec[1]) - 1;
+        detY = Math.min(detsec[2], detsec[3]) - 1;
+    }
+
+    static AmplifierGeometry of(Header header) throws IOException {
+        return new AmplifierGeometry(parseSection("DATASEC", header), parseSection("DETSEC", header));
+    }
+
+    /**
+     * Parse an IRAF style section keyword, such as DETSIZE or DATASEC.
+     *
+     * @param name The keyword
+     * @param header The header containing the keyword
+     * @return The section as {x1, x2, y1, y2}
+     * @throws IOException If the keyword is invalid
+     */
+    static int[] parseSection(String name, Header header) throws IOException {
+        String value = header.getStringValue(name);
+        if (value == null) {
+            value = DEFAULT_SECTION;
+        }
+        Matcher matcher = IRAF_SECTION.matcher(value.trim());
+        if (!matcher.matches()) {
+            throw new IOException("Invalid " + name + " keyword: " + value);
+        }
+        return new int[]{
+            Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+            Integer.parseInt(matcher.group(3)), Integer.parseInt(matcher.group(4))};
+    }
+
+    /**
+     * @return The first column of the data section in the segment, 0 based
+     */
+    int getDataX() {
+        return dataX;
+    }
+
+    /**
+     * @return The first row of the data section in the segment, 0 based
+     */
+    int getDataY() {
+        return dataY;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * The row of the assembled image for a row of the data section.
+     *
+     * @param row The row within the data section, 0 based
+     * @return The row in the assembled image
+     */
+    int detectorRow(int row) {
+        return flipY ? detY + height - 1 - row : detY + row;
+    }
+
+    /**
+     * @return The first (lowest) column of the segment in the assembled
+     * image.
+     */
+    int getDetectorX() {
+        return detX;
+    }
+
+    /**
+     * @return <code>true</code> if rows are reversed in the assembled image
+     */
+    boolean isFlipX() {
+        return flipX;
+    }
+}
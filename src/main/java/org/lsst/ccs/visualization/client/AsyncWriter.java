@@ -0,0 +1,186 @@
+package org.lsst.ccs.visualization.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.lsst.ccs.visualization.message.Message;
+
+/**
+ * Writes messages to a channel from a dedicated writer thread. Messages are
+ * queued in a bounded queue, so producers only block when the queue is full.
+ * The writer drains as many queued messages as are available and sends them,
+ * frame headers and payloads together, using a single gathering write. Frame
+ * header buffers are taken from a pool owned by the writer thread.
+ *
+ * @author tonyj
+ */
+class AsyncWriter extends Thread {
+
+    private static final int MAX_BATCH = 64;
+    private static final int POOLED_BUFFER_SIZE = 512;
+    private static final Message SHUTDOWN = new Message(Message.MessageType.END, 0, "");
+    private final GatheringByteChannel out;
+    private final BlockingQueue<Message> queue;
+    private final Deque<ByteBuffer> pool = new ArrayDeque<>();
+    private final Object lock = new Object();
+    private long nQueued;
+    private long nWritten;
+    private IOException error;
+
+    AsyncWriter(GatheringByteChannel out, int queueSize) {
+        super("IngestClient writer");
+        this.out = out;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        setDaemon(true);
+    }
+
+    /**
+     * Queue a message for sending. Blocks if the queue is full. Any payload
+     * must not be modified until the message has been written.
+     *
+     * @param msg The message to send
+     * @throws IOException If a previous write failed, or the thread is
+     * interrupted.
+     */
+    void send(Message msg) throws IOException {
+        checkError();
+        try {
+            while (!queue.offer(msg, 100, TimeUnit.MILLISECONDS)) {
+                checkError();
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while queueing message");
+        }
+        // Only counted once queued, so that a failed send can't make flush
+        // wait for a message which will never be written
+        synchronized (lock) {
+            nQueued++;
+        }
+    }
+
+    /**
+     * Wait until all messages queued so far have been written.
+     *
+     * @throws IOException If a write failed, or the thread is interrupted.
+     */
+    void flush() throws IOException {
+        synchronized (lock) {
+            long target = nQueued;
+            try {
+                while (nWritten < target && error == null) {
+                    lock.wait();
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted during flush");
+            }
+        }
+        checkError();
+    }
+
+    /**
+     * Flush any pending messages and stop the writer thread.
+     *
+     * @throws IOException If a write failed
+     */
+    void shutdown() throws IOException {
+        try {
+            flush();
+        } finally {
+            queue.offer(SHUTDOWN);
+        }
+    }
+
+    private void checkError() throws IOException {
+        synchronized (lock) {
+            if (error != null) {
+                throw new IOException("Asynchronous write failed", error);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+        List<ByteBuffer> buffers = new ArrayList<>(2 * MAX_BATCH);
+        List<ByteBuffer> used = new ArrayList<>(MAX_BATCH);
+        try {
+            for (;;) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean shutdown = false;
+                for (Message msg : batch) {
+                    if (msg == SHUTDOWN) {
+                        shutdown = true;
+                        break;
+                    }
+                    ByteBuffer header = allocate(msg.getFrameLength());
+                    msg.encodeFrame(header);
+                    header.flip();
+                    buffers.add(header);
+                    used.add(header);
+                    ByteBuffer payload = msg.getPayload();
+                    if (payload != null && payload.hasRemaining()) {
+                        buffers.add(payload);
+                    }
+                }
+                if (!buffers.isEmpty()) {
+                    Message.write(out, buffers.toArray(new ByteBuffer[buffers.size()]));
+                }
+                synchronized (lock) {
+                    nWritten += shutdown ? batch.size() - 1 : batch.size();
+                    lock.notifyAll();
+                }
+                for (ByteBuffer header : used) {
+                    release(header);
+                }
+                batch.clear();
+                buffers.clear();
+                used.clear();
+                if (shutdown) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            synchronized (lock) {
+                error = ex;
+                lock.notifyAll();
+            }
+        } catch (RuntimeException ex) {
+            synchronized (lock) {
+                error = new IOException("Writer thread failed", ex);
+                lock.notifyAll();
+            }
+        } catch (InterruptedException ex) {
+            synchronized (lock) {
+                error = new InterruptedIOException("Writer thread interrupted");
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int size) {
+        if (size > POOLED_BUFFER_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer bb = pool.poll();
+        if (bb == null) {
+            bb = ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE);
+        }
+        bb.clear();
+        return bb;
+    }
+
+    private void release(ByteBuffer bb) {
+        if (bb.capacity() == POOLED_BUFFER_SIZE && pool.size() < 2 * MAX_BATCH) {
+            pool.push(bb);
+        }
+    }
+}
@@ -6,8 +6,14 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCard;
+import nom.tam.util.Cursor;
 import org.lsst.ccs.visualization.message.DataMessage;
 import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.HeaderBatchMessage;
 import org.lsst.ccs.visualization.message.Message;
 import org.lsst.ccs.visualization.message.StartMessage;
 
@@ -18,23 +24,99 @@ import org.lsst.ccs.visualization.message.StartMessage;
 public class IngestClient implements Closeable {
 
     private final SocketChannel socket;
+    private final AsyncWriter writer;
 
     public IngestClient(String hostname, int port) throws IOException  {
         this(new InetSocketAddress(hostname, port));
     }
 
     public IngestClient(SocketAddress address) throws IOException {
+        this(address, 0);
+    }
+
+    /**
+     * Create a client, optionally in asynchronous mode. In asynchronous mode
+     * {@link #send(Message)} queues the message and returns immediately
+     * (unless the queue is full), and a dedicated writer thread sends queued
+     * messages, coalescing them into gathering writes. Since data payloads are
+     * sent asynchronously, their buffers must not be modified until
+     * {@link #flush()} has returned.
+     *
+     * @param address The address of the ingest server
+     * @param queueSize The maximum number of queued messages, or 0 to send
+     * synchronously.
+     * @throws IOException If the connection cannot be opened
+     */
+    public IngestClient(SocketAddress address, int queueSize) throws IOException {
         socket = SocketChannel.open(address);
         socket.shutdownInput();
+        if (queueSize > 0) {
+            writer = new AsyncWriter(socket, queueSize);
+            writer.start();
+        } else {
+            writer = null;
+        }
     }
 
     public void send(Message msg) throws IOException {
-        msg.encode(socket);
+        if (writer != null) {
+            writer.send(msg);
+        } else {
+            msg.encode(socket);
+        }
+    }
+
+    /**
+     * Wait until all messages sent so far have been written to the socket.
+     * Does nothing in synchronous mode.
+     *
+     * @throws IOException If an earlier asynchronous write failed
+     */
+    public void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Send a set of header cards as a single batch message.
+     *
+     * @param imageName The image to which the cards belong
+     * @param cards The cards to send
+     * @throws IOException If an IO error occurs
+     */
+    public void sendHeaders(String imageName, List<String> cards) throws IOException {
+        send(new HeaderBatchMessage(imageName, cards));
+    }
+
+    /**
+     * Send all the cards in a fits header as a single batch message.
+     *
+     * @param imageName The image to which the cards belong
+     * @param header The header to send
+     * @throws IOException If an IO error occurs
+     */
+    public void sendHeaders(String imageName, Header header) throws IOException {
+        List<String> cards = new ArrayList<>();
+        for (Cursor<String, HeaderCard> i = header.iterator(); i.hasNext();) {
+            String card = i.next().toString();
+            // Long string values may be written as several consecutive cards
+            for (int pos = 0; pos < card.length(); pos += HeaderBatchMessage.CARD_SIZE) {
+                cards.add(card.substring(pos, Math.min(card.length(), pos + HeaderBatchMessage.CARD_SIZE)));
+            }
+        }
+        sendHeaders(imageName, cards);
     }
 
     @Override
     public void close() throws IOException {
-        socket.close();
+        try {
+            if (writer != null) {
+                writer.shutdown();
+            }
+        } finally {
+            socket.close();
+        }
     }
 
     public static void main(String[] args) throws InterruptedException, IOException {
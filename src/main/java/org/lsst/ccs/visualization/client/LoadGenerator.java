@@ -0,0 +1,695 @@
+package org.lsst.ccs.visualization.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.StartMessage;
+import org.lsst.ccs.visualization.server.IngestMetricsMXBean;
+import org.lsst.ccs.visualization.server.VisualizationIngestServer;
+
+/**
+ * Generates focal plane like load for an ingest server, for sizing ingest
+ * hardware. Synthetic CCD pixel data (a bias level per amplifier plus read
+ * noise) is created once in memory and sent for each exposure, so the load is
+ * limited only by the network and the server.
+ * <p>
+ * As in the camera, each exposure produces one image per raft of up to 3x3
+ * CCDs. CCDs are shared round-robin between a configurable number of
+ * connections, each of which sends its CCDs and then an end message for each
+ * raft it contributed to. With {@link Layout#STRIDED} CCDs are placed in a
+ * 3x3 grid and sent as amplifier segments with a stride, with
+ * {@link Layout#CONTIGUOUS} CCDs are stacked so that each is a single
+ * contiguous message.
+ * <p>
+ * The server can either be run in process, in which case START to close
+ * latency is measured exactly for each image, or be remote, in which case
+ * its metrics are read over JMX if a JMX service URL is given.
+ *
+ * @author tonyj
+ */
+public class LoadGenerator {
+
+    /**
+     * The largest focal plane, 21 rafts of 9 CCDs.
+     */
+    public static final int MAX_CCDS = 189;
+    private static final int CCDS_PER_RAFT = 9;
+    private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+
+    /**
+     * How the pixels of each CCD are placed in the raft image.
+     */
+    public enum Layout {
+        /**
+         * CCDs are stacked vertically, and each is sent as one contiguous
+         * message.
+         */
+        CONTIGUOUS,
+        /**
+         * CCDs are placed in a 3x3 grid, and each amplifier segment is sent
+         * as a separate strided message.
+         */
+        STRIDED
+    }
+
+    private String host = "localhost";
+    private int port = 9999;
+    private boolean local;
+    private File localDir;
+    private String jmxUrl;
+    private int nCCDs = CCDS_PER_RAFT;
+    private int ccdWidth = 4096;
+    private int ccdHeight = 4004;
+    private int segmentColumns = 8;
+    private int segmentRows = 2;
+    private int nExposures = 10;
+    private long cadenceMillis = 0;
+    private int nConnections = CCDS_PER_RAFT;
+    private Layout layout = Layout.STRIDED;
+    private boolean packed;
+    private int maxOpenImages;
+    private long maxReservedBytes;
+    private long maxInFlightBytes;
+
+    /**
+     * Send to a remote server.
+     *
+     * @param host The host on which the ingest server is running
+     * @param port The port on which it listens
+     */
+    public void setServer(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.local = false;
+    }
+
+    /**
+     * Run an ingest server in process for the duration of the run, writing
+     * to the given directory. Images are deleted once they have been
+     * finalized.
+     *
+     * @param port The port on which the server will listen
+     * @param dir The directory to write to, or <code>null</code> to use
+     * tmpfs (/dev/shm) if available, or otherwise the temporary directory.
+     */
+    public void setLocalServer(int port, File dir) {
+        this.host = "localhost";
+        this.port = port;
+        this.local = true;
+        this.localDir = dir;
+    }
+
+    /**
+     * Limit the resources used by the in process server, so that it applies
+     * back-pressure to the generator rather than accepting every exposure at
+     * once.
+     *
+     * @param maxOpenImages The maximum number of images open at once, or 0
+     * @param maxReservedBytes The maximum bytes reserved for open images, or
+     * 0
+     * @param maxInFlightBytes The maximum bytes of data messages being
+     * written at once, or 0
+     * @see VisualizationIngestServer#setAdmissionLimits(int, long, long)
+     */
+    public void setAdmissionLimits(int maxOpenImages, long maxReservedBytes, long maxInFlightBytes) {
+        this.maxOpenImages = maxOpenImages;
+        this.maxReservedBytes = maxReservedBytes;
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * Read the metrics of a remote server over JMX.
+     *
+     * @param jmxUrl The service URL, for example
+     * <code>service:jmx:rmi:///jndi/rmi://host:9010/jmxrmi</code>, or
+     * <code>null</code> to not read remote metrics.
+     */
+    public void setJmxUrl(String jmxUrl) {
+        this.jmxUrl = jmxUrl;
+    }
+
+    public void setCCDs(int nCCDs) {
+        if (nCCDs < 1 || nCCDs > MAX_CCDS) {
+            throw new IllegalArgumentException("Number of CCDs must be between 1 and " + MAX_CCDS);
+        }
+        this.nCCDs = nCCDs;
+    }
+
+    /**
+     * Set the CCD geometry.
+     *
+     * @param width The width of each CCD in pixels
+     * @param height The height of each CCD in pixels
+     * @param segmentColumns The number of columns of amplifier segments
+     * @param segmentRows The number of rows of amplifier segments
+     */
+    public void setGeometry(int width, int height, int segmentColumns, int segmentRows) {
+        if (width <= 0 || height <= 0 || segmentColumns <= 0 || segmentRows <= 0
+                || width % segmentColumns != 0 || height % segmentRows != 0) {
+            throw new IllegalArgumentException("Invalid CCD geometry " + width + "x" + height + " with " + segmentColumns + "x" + segmentRows + " segments");
+        }
+        this.ccdWidth = width;
+        this.ccdHeight = height;
+        this.segmentColumns = segmentColumns;
+        this.segmentRows = segmentRows;
+    }
+
+    /**
+     * Set the number of exposures, and how often they start.
+     *
+     * @param nExposures The number of exposures
+     * @param cadenceMillis The interval between the start of each exposure,
+     * or 0 to send exposures back to back.
+     */
+    public void setExposures(int nExposures, long cadenceMillis) {
+        this.nExposures = nExposures;
+        this.cadenceMillis = cadenceMillis;
+    }
+
+    public void setConnections(int nConnections) {
+        if (nConnections < 1) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+        this.nConnections = nConnections;
+    }
+
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * @param packed If <code>true</code> pixels are sent as 16 bit values
+     * using {@link DataMessage.Encoding#PACKED_16}.
+     */
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    /**
+     * Generate the load, and wait for it to complete.
+     *
+     * @return The results
+     * @throws IOException If connecting to the server fails
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public Report run() throws IOException, InterruptedException {
+        int connections = Math.min(nConnections, nCCDs);
+        int nRafts = (nCCDs + CCDS_PER_RAFT - 1) / CCDS_PER_RAFT;
+        String prefix = "load_" + Long.toString(System.currentTimeMillis(), 36);
+        Report report = new Report(nExposures * nRafts);
+        ByteBuffer ccd = createCCD();
+        VisualizationIngestServer server = null;
+        Thread serverThread = null;
+        File dir = null;
+        JMXConnector jmx = null;
+        IngestMetricsMXBean metrics = null;
+        Map<String, Long> started = new ConcurrentHashMap<>();
+        CountDownLatch closed = new CountDownLatch(local ? nExposures * nRafts : 0);
+        List<IngestClient> clients = new ArrayList<>();
+        List<ExecutorService> senders = new ArrayList<>();
+        try {
+            if (local) {
+                dir = localDir != null ? localDir : createScratchDirectory();
+                final File outputDir = dir;
+                server = new VisualizationIngestServer(port, dir);
+                server.setAdmissionLimits(maxOpenImages, maxReservedBytes, maxInFlightBytes);
+                server.addCompletionListener((imageName, reason, coverage) -> {
+                    if (started.containsKey(imageName) && !(coverage >= 1)) {
+                        report.incomplete.incrementAndGet();
+                    }
+                });
+                server.addFinalizationListener((imageName, error) -> {
+                    Long start = started.get(imageName);
+                    if (start != null) {
+                        report.closeLatencies.add(System.nanoTime() - start);
+                        if (error != null) {
+                            report.incomplete.incrementAndGet();
+                        }
+                        for (File file : outputDir.listFiles((d, name) -> name.startsWith(imageName + "."))) {
+                            file.delete();
+                        }
+                        closed.countDown();
+                    }
+                });
+                metrics = server.getMetrics();
+                serverThread = new Thread(server, "Ingest server");
+                serverThread.setDaemon(true);
+                serverThread.start();
+            } else if (jmxUrl != null) {
+                jmx = JMXConnectorFactory.connect(new JMXServiceURL(jmxUrl));
+                metrics = remoteMetrics(jmx.getMBeanServerConnection());
+            }
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            IngestClient control = connect(address);
+            clients.add(control);
+            for (int i = 0; i < connections; i++) {
+                clients.add(connect(address));
+                senders.add(Executors.newSingleThreadExecutor());
+            }
+            long discardedBefore = metrics == null ? 0 : metrics.getDiscardedMessages();
+            long idleBefore = metrics == null ? 0 : metrics.getIdleTimeoutCloses();
+            long waitsBefore = metrics == null ? 0 : metrics.getAdmissionWaits();
+            if (metrics != null && !local) {
+                metrics.resetLatency();
+            }
+            long begin = System.nanoTime();
+            AtomicInteger pendingExposures = new AtomicInteger();
+            for (int exposure = 0; exposure < nExposures; exposure++) {
+                long due = begin + TimeUnit.MILLISECONDS.toNanos(exposure * cadenceMillis);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                if (exposure > 0 && cadenceMillis > 0 && pendingExposures.get() > 0) {
+                    report.overruns.incrementAndGet();
+                }
+                pendingExposures.incrementAndGet();
+                String[] imageNames = new String[nRafts];
+                AtomicInteger[] pendingConnections = new AtomicInteger[nRafts];
+                for (int raft = 0; raft < nRafts; raft++) {
+                    imageNames[raft] = String.format("%s_%04d_R%02d", prefix, exposure, raft);
+                    int nClients = connectionsForRaft(raft, connections);
+                    pendingConnections[raft] = new AtomicInteger(nClients);
+                    started.put(imageNames[raft], System.nanoTime());
+                    control.send(new StartMessage(imageNames[raft], raftWidth(raft), raftHeight(raft), 0, nClients));
+                }
+                AtomicInteger pendingSenders = new AtomicInteger(connections);
+                for (int c = 0; c < connections; c++) {
+                    final int connection = c;
+                    senders.get(c).execute(() -> {
+                        send(clients.get(connection + 1), connection, connections, ccd, imageNames, pendingConnections, started, report);
+                        if (pendingSenders.decrementAndGet() == 0) {
+                            pendingExposures.decrementAndGet();
+                        }
+                    });
+                }
+            }
+            for (ExecutorService sender : senders) {
+                sender.shutdown();
+                sender.awaitTermination(1, TimeUnit.HOURS);
+            }
+            report.elapsedNanos = System.nanoTime() - begin;
+            if (local && !closed.await(60, TimeUnit.SECONDS)) {
+                LOGGER.log(Level.WARNING, "{0} images were not finalized", closed.getCount());
+            }
+            if (metrics != null) {
+                report.discarded = metrics.getDiscardedMessages() - discardedBefore;
+                report.idleCloses = metrics.getIdleTimeoutCloses() - idleBefore;
+                report.admissionWaits = metrics.getAdmissionWaits() - waitsBefore;
+                report.serverMedianLatencyMillis = metrics.getMedianLatencyMillis();
+                report.server99thLatencyMillis = metrics.getLatency99thPercentileMillis();
+            }
+            report.local = local;
+            return report;
+        } finally {
+            for (ExecutorService sender : senders) {
+                sender.shutdownNow();
+            }
+            for (IngestClient client : clients) {
+                client.close();
+            }
+            if (jmx != null) {
+                jmx.close();
+            }
+            if (server != null) {
+                server.shutdown();
+                if (localDir == null) {
+                    for (File file : dir.listFiles()) {
+                        file.delete();
+                    }
+                    dir.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the CCDs handled by one connection for one exposure.
+     */
+    private void send(IngestClient client, int connection, int connections, ByteBuffer ccd, String[] imageNames,
+            AtomicInteger[] pendingConnections, Map<String, Long> started, Report report) {
+        for (int raft = 0; raft < imageNames.length; raft++) {
+            boolean contributed = false;
+            for (int i = 0; i < ccdsInRaft(raft); i++) {
+                int ccdIndex = raft * CCDS_PER_RAFT + i;
+                if (ccdIndex % connections != connection) {
+                    continue;
+                }
+                contributed = true;
+                for (DataMessage msg : messages(imageNames[raft], raft, i, ccd)) {
+                    try {
+                        client.send(msg);
+                        report.bytesSent.addAndGet(msg.getFrameLength() + msg.getDataLength());
+                    } catch (IOException x) {
+                        report.dropped.incrementAndGet();
+                        LOGGER.log(Level.WARNING, "Error sending " + imageNames[raft], x);
+                    }
+                }
+            }
+            if (contributed) {
+                try {
+                    client.send(new EndMessage(imageNames[raft]));
+                } catch (IOException x) {
+                    report.dropped.incrementAndGet();
+                    LOGGER.log(Level.WARNING, "Error sending end for " + imageNames[raft], x);
+                }
+                if (pendingConnections[raft].decrementAndGet() == 0) {
+                    report.sendLatencies.add(System.nanoTime() - started.get(imageNames[raft]));
+                }
+            }
+        }
+    }
+
+    /**
+     * The data messages for one CCD of a raft.
+     */
+    private List<DataMessage> messages(String imageName, int raft, int ccdInRaft, ByteBuffer ccd) {
+        DataMessage.Encoding encoding = packed ? DataMessage.Encoding.PACKED_16 : DataMessage.Encoding.NATIVE;
+        List<DataMessage> result = new ArrayList<>();
+        if (layout == Layout.CONTIGUOUS) {
+            result.add(new DataMessage(imageName, ccdInRaft * ccdWidth * ccdHeight, 0, 0, ccd.duplicate(), encoding));
+            return result;
+        }
+        int rowStride = raftWidth(raft);
+        int columns = Math.min(3, ccdsInRaft(raft));
+        int origin = (ccdInRaft / columns) * ccdHeight * rowStride + (ccdInRaft % columns) * ccdWidth;
+        int segmentWidth = ccdWidth / segmentColumns;
+        int segmentHeight = ccdHeight / segmentRows;
+        int segmentBytes = ccd.remaining() / (segmentColumns * segmentRows);
+        for (int s = 0; s < segmentColumns * segmentRows; s++) {
+            ByteBuffer segment = ccd.duplicate();
+            segment.position(s * segmentBytes);
+            segment.limit((s + 1) * segmentBytes);
+            int offset = origin + (s / segmentColumns) * segmentHeight * rowStride + (s % segmentColumns) * segmentWidth;
+            result.add(new DataMessage(imageName, offset, segmentWidth, rowStride, segment.slice(), encoding));
+        }
+        return result;
+    }
+
+    /**
+     * Create the pixels of a CCD, in row order for the contiguous layout, or
+     * one amplifier segment after another for the strided layout.
+     */
+    private ByteBuffer createCCD() {
+        int bytesPerPixel = packed ? 2 : 4;
+        ByteBuffer ccd = ByteBuffer.allocateDirect(bytesPerPixel * ccdWidth * ccdHeight);
+        int segmentWidth = ccdWidth / segmentColumns;
+        int segmentHeight = ccdHeight / segmentRows;
+        Random random = new Random(ccdWidth * ccdHeight);
+        for (int i = 0; i < ccdWidth * ccdHeight; i++) {
+            int segment;
+            if (layout == Layout.STRIDED) {
+                segment = i / (segmentWidth * segmentHeight);
+            } else {
+                int x = i % ccdWidth;
+                int y = i / ccdWidth;
+                segment = (y / segmentHeight) * segmentColumns + x / segmentWidth;
+            }
+            int value = 20000 + 500 * segment + (int) Math.round(5 * random.nextGaussian());
+            if (packed) {
+                ccd.putShort((short) value);
+            } else {
+                ccd.putInt(value);
+            }
+        }
+        ccd.flip();
+        return ccd;
+    }
+
+    private int ccdsInRaft(int raft) {
+        return Math.min(CCDS_PER_RAFT, nCCDs - raft * CCDS_PER_RAFT);
+    }
+
+    private int raftWidth(int raft) {
+        return layout == Layout.CONTIGUOUS ? ccdWidth : Math.min(3, ccdsInRaft(raft)) * ccdWidth;
+    }
+
+    private int raftHeight(int raft) {
+        int n = ccdsInRaft(raft);
+        return layout == Layout.CONTIGUOUS ? n * ccdHeight : (n + 2) / 3 * ccdHeight;
+    }
+
+    private int connectionsForRaft(int raft, int connections) {
+        boolean[] used = new boolean[connections];
+        int count = 0;
+        for (int i = 0; i < ccdsInRaft(raft); i++) {
+            int connection = (raft * CCDS_PER_RAFT + i) % connections;
+            if (!used[connection]) {
+                used[connection] = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static File createScratchDirectory() throws IOException {
+        File shm = new File("/dev/shm");
+        if (shm.isDirectory() && shm.canWrite()) {
+            return Files.createTempDirectory(shm.toPath(), "load").toFile();
+        }
+        return Files.createTempDirectory("load").toFile();
+    }
+
+    /**
+     * Connect to the server, retrying for a few seconds in case an in
+     * process server has not started listening yet.
+     */
+    private IngestClient connect(InetSocketAddress address) throws IOException, InterruptedException {
+        for (int retry = 0;; retry++) {
+            try {
+                return new IngestClient(address);
+            } catch (ConnectException x) {
+                if (!local || retry >= 50) {
+                    throw x;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static IngestMetricsMXBean remoteMetrics(MBeanServerConnection connection) throws IOException {
+        try {
+            Set<ObjectName> names = connection.queryNames(new ObjectName("org.lsst.ccs.visualization:type=IngestServer,*"), null);
+            if (names.isEmpty()) {
+                throw new IOException("No ingest server metrics found");
+            }
+            return JMX.newMXBeanProxy(connection, names.iterator().next(), IngestMetricsMXBean.class);
+        } catch (JMException x) {
+            throw new IOException("Unable to read ingest server metrics", x);
+        }
+    }
+
+    /**
+     * The results of a run.
+     */
+    public static class Report {
+
+        private final int nImages;
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicInteger overruns = new AtomicInteger();
+        private final AtomicInteger incomplete = new AtomicInteger();
+        private final List<Long> sendLatencies = new CopyOnWriteArrayList<>();
+        private final List<Long> closeLatencies = new CopyOnWriteArrayList<>();
+        private long elapsedNanos;
+        private long discarded = -1;
+        private long idleCloses = -1;
+        private long admissionWaits = -1;
+        private long serverMedianLatencyMillis = -1;
+        private long server99thLatencyMillis = -1;
+        private boolean local;
+
+        Report(int nImages) {
+            this.nImages = nImages;
+        }
+
+        public int getImages() {
+            return nImages;
+        }
+
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        /**
+         * @return The rate at which data was sent, in MB (10^6 bytes) per
+         * second.
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : bytesSent.get() * 1e3 / elapsedNanos;
+        }
+
+        /**
+         * @return The number of messages which could not be sent
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * @return The number of exposures which started before the previous
+         * exposure had been sent.
+         */
+        public int getOverruns() {
+            return overruns.get();
+        }
+
+        /**
+         * @return The number of messages discarded by the server, or -1 if
+         * not known.
+         */
+        public long getDiscarded() {
+            return discarded;
+        }
+
+        /**
+         * @return The number of images the server closed because they were
+         * idle, or -1 if not known.
+         */
+        public long getIdleCloses() {
+            return idleCloses;
+        }
+
+        /**
+         * @return The number of times the server paused reading from a
+         * connection because a message could not be admitted, or -1 if not
+         * known.
+         */
+        public long getAdmissionWaits() {
+            return admissionWaits;
+        }
+
+        /**
+         * @return The number of images which were finalized with missing
+         * pixels or errors. Only known when the server is run in process.
+         */
+        public int getIncomplete() {
+            return incomplete.get();
+        }
+
+        /**
+         * Get a percentile of the time from sending the start message of an
+         * image until the last of its data was sent.
+         *
+         * @param percent The percentile, between 0 and 100
+         * @return The latency in milliseconds, or NaN if no images were sent
+         */
+        public double getSendLatency(double percent) {
+            return percentile(sendLatencies, percent);
+        }
+
+        /**
+         * Get a percentile of the time from sending the start message of an
+         * image until the server finalized it. Only known when the server is
+         * run in process.
+         *
+         * @param percent The percentile, between 0 and 100
+         * @return The latency in milliseconds, or NaN if not known
+         */
+        public double getCloseLatency(double percent) {
+            return percentile(closeLatencies, percent);
+        }
+
+        private static double percentile(List<Long> latencies, double percent) {
+            if (latencies.isEmpty()) {
+                return Double.NaN;
+            }
+            long[] sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(String.format("%d images, %,d bytes in %.1fs: %.1f MB/s%n", nImages, bytesSent.get(), elapsedNanos / 1e9, getThroughput()));
+            result.append(String.format("Send latency (ms)  p50 %8.1f p90 %8.1f p99 %8.1f max %8.1f%n",
+                    getSendLatency(50), getSendLatency(90), getSendLatency(99), getSendLatency(100)));
+            if (local) {
+                result.append(String.format("Close latency (ms) p50 %8.1f p90 %8.1f p99 %8.1f max %8.1f%n",
+                        getCloseLatency(50), getCloseLatency(90), getCloseLatency(99), getCloseLatency(100)));
+            } else if (serverMedianLatencyMillis >= 0) {
+                result.append(String.format("Server START to close latency (ms) p50 <= %d p99 <= %d%n", serverMedianLatencyMillis, server99thLatencyMillis));
+            }
+            result.append(String.format("Dropped messages %d, cadence overruns %d", dropped.get(), overruns.get()));
+            if (discarded >= 0) {
+                result.append(String.format(", discarded by server %d, idle closes %d, admission waits %d", discarded, idleCloses, admissionWaits));
+            }
+            if (local) {
+                result.append(String.format(", incomplete images %d", incomplete.get()));
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Usage: LoadGenerator [host:port|local:port] [nCCDs] [nExposures]
+     * [cadenceMillis] [nConnections] [contiguous|strided] [ccdWidth]
+     * [ccdHeight] [packed] [jmxUrl]
+     *
+     * @param args The command line arguments
+     * @throws Exception If the run fails
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        if (args.length > 0) {
+            String[] target = args[0].split(":");
+            int port = target.length > 1 ? Integer.parseInt(target[1]) : 9999;
+            if ("local".equals(target[0])) {
+                generator.setLocalServer(port, null);
+            } else {
+                generator.setServer(target[0], port);
+            }
+        }
+        if (args.length > 1) {
+            generator.setCCDs(Integer.parseInt(args[1]));
+        }
+        generator.setExposures(args.length > 2 ? Integer.parseInt(args[2]) : 10, args.length > 3 ? Long.parseLong(args[3]) : 0);
+        if (args.length > 4) {
+            generator.setConnections(Integer.parseInt(args[4]));
+        }
+        if (args.length > 5) {
+            generator.setLayout(Layout.valueOf(args[5].toUpperCase()));
+        }
+        if (args.length > 7) {
+            generator.setGeometry(Integer.parseInt(args[6]), Integer.parseInt(args[7]), 8, 2);
+        }
+        generator.setPacked(args.length > 8 && Boolean.parseBoolean(args[8]));
+        if (args.length > 9) {
+            generator.setJmxUrl(args[9]);
+        }
+        System.out.println(generator.run());
+    }
+}
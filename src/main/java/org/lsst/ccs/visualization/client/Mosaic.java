@@ -0,0 +1,240 @@
+package org.lsst.ccs.visualization.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCard;
+import nom.tam.fits.header.Standard;
+import nom.tam.util.Cursor;
+import org.lsst.ccs.visualization.message.DataMessage;
+
+/**
+ * A CCD image assembled from the amplifier segments of a multi-extension fits
+ * file, ready to be sent to the ingest server. Each segment's data section is
+ * placed according to its DETSEC, with the prescan and overscan removed.
+ * <p>
+ * Segments are assembled in parallel on the common fork join pool. Each row
+ * is converted into a scratch array and then bulk copied into a direct
+ * buffer, so the data can be sent without further copies.
+ *
+ * @author tonyj
+ */
+public class Mosaic {
+
+    private final int width;
+    private final int height;
+    private final boolean packed;
+    private final ByteBuffer data;
+    private final List<String> headers;
+
+    private Mosaic(int width, int height, boolean packed, ByteBuffer data, List<String> headers) {
+        this.width = width;
+        this.height = height;
+        this.packed = packed;
+        this.data = data;
+        this.headers = headers;
+    }
+
+    /**
+     * Read and assemble a multi-extension fits file.
+     *
+     * @param file The file to read
+     * @param packed If <code>true</code> pixels are stored as unsigned 16 bit
+     * values, to be sent using {@link DataMessage.Encoding#PACKED_16},
+     * otherwise as 32 bit integers.
+     * @return The assembled image
+     * @throws IOException If the file cannot be read, or is invalid
+     */
+    public static Mosaic read(File file, boolean packed) throws IOException {
+        try (Fits fits = new Fits(file)) {
+            BasicHDU<?>[] hdus = fits.read();
+            if (hdus.length < 2) {
+                throw new IOException("No image extensions in " + file);
+            }
+            Header primary = hdus[0].getHeader();
+            int[] detsize = AmplifierGeometry.parseSection("DETSIZE", primary);
+            int width = detsize[1];
+            int height = detsize[3];
+            ByteBuffer data = ByteBuffer.allocateDirect((packed ? 2 : 4) * width * height);
+            List<Segment> segments = new ArrayList<>();
+            for (int i = 1; i < hdus.length; i++) {
+                Header header = hdus[i].getHeader();
+                int bzero = (int) header.getDoubleValue(Standard.BZERO, 0);
+                segments.add(new Segment(AmplifierGeometry.of(header), hdus[i].getKernel(), bzero, data, width, packed));
+            }
+            ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(segments);
+                }
+            });
+            for (Segment segment : segments) {
+                if (segment.error != null) {
+                    throw segment.error;
+                }
+            }
+            primary.addValue(Standard.BITPIX, 32);
+            primary.addValue(Standard.NAXIS, 2);
+            List<String> headers = new ArrayList<>();
+            for (Cursor<String, HeaderCard> i = primary.iterator(); i.hasNext();) {
+                headers.add(i.next().toString());
+            }
+            return new Mosaic(width, height, packed, data, Collections.unmodifiableList(headers));
+        } catch (FitsException x) {
+            throw new IOException("Error reading " + file, x);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isPacked() {
+        return packed;
+    }
+
+    /**
+     * @return The primary header cards, adjusted to describe the assembled
+     * image.
+     */
+    public List<String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return A read only view of the assembled pixels
+     */
+    public ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Create a data message containing the assembled image.
+     *
+     * @param imageName The name of the image being sent
+     * @param offset The offset of the first pixel in the image
+     * @param stepLength The number of contiguous pixels per row, or 0
+     * @param stepOffset The distance in pixels between rows in the image
+     * @return The data message
+     */
+    public DataMessage toDataMessage(String imageName, int offset, int stepLength, int stepOffset) {
+        return new DataMessage(imageName, offset, stepLength, stepOffset, getData(), packed ? DataMessage.Encoding.PACKED_16 : DataMessage.Encoding.NATIVE);
+    }
+
+    /**
+     * Copies one amplifier segment into the assembled image, a row at a time.
+     */
+    private static class Segment extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final AmplifierGeometry geometry;
+        private final Object kernel;
+        private final int bzero;
+        private final ByteBuffer data;
+        private final int width;
+        private final boolean packed;
+        private IOException error;
+
+        Segment(AmplifierGeometry geometry, Object kernel, int bzero, ByteBuffer data, int width, boolean packed) {
+            this.geometry = geometry;
+            this.kernel = kernel;
+            this.bzero = bzero;
+            this.data = data;
+            this.width = width;
+            this.packed = packed;
+        }
+
+        @Override
+        protected void compute() {
+            if (!(kernel instanceof short[][]) && !(kernel instanceof int[][])) {
+                error = new IOException("Unsupported amplifier data type " + (kernel == null ? null : kernel.getClass().getSimpleName()));
+                return;
+            }
+            if (packed && !(kernel instanceof short[][])) {
+                error = new IOException("Packed encoding requires 16 bit amplifier data");
+                return;
+            }
+            int n = geometry.getWidth();
+            int x0 = geometry.getDataX();
+            boolean flip = geometry.isFlipX();
+            // Each segment uses its own views, so positions are not shared
+            ShortBuffer shorts = packed ? data.duplicate().asShortBuffer() : null;
+            IntBuffer ints = packed ? null : data.duplicate().asIntBuffer();
+            short[] shortRow = packed ? new short[n] : null;
+            int[] intRow = packed ? null : new int[n];
+            for (int row = 0; row < geometry.getHeight(); row++) {
+                Object source = ((Object[]) kernel)[geometry.getDataY() + row];
+                int position = geometry.detectorRow(row) * width + geometry.getDetectorX();
+                if (packed) {
+                    copy((short[]) source, x0, shortRow, bzero, flip);
+                    shorts.position(position);
+                    shorts.put(shortRow);
+                } else {
+                    if (source instanceof short[]) {
+                        copy((short[]) source, x0, intRow, bzero, flip);
+                    } else {
+                        copy((int[]) source, x0, intRow, bzero, flip);
+                    }
+                    ints.position(position);
+                    ints.put(intRow);
+                }
+            }
+        }
+
+        // Separate loops for each direction, so that each is a simple loop the
+        // JIT can vectorize.
+        private static void copy(short[] src, int x0, short[] dst, int bzero, boolean flip) {
+            int n = dst.length;
+            if (flip) {
+                for (int i = 0; i < n; i++) {
+                    dst[n - 1 - i] = (short) (src[x0 + i] + bzero);
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    dst[i] = (short) (src[x0 + i] + bzero);
+                }
+            }
+        }
+
+        private static void copy(short[] src, int x0, int[] dst, int bzero, boolean flip) {
+            int n = dst.length;
+            if (flip) {
+                for (int i = 0; i < n; i++) {
+                    dst[n - 1 - i] = src[x0 + i] + bzero;
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    dst[i] = src[x0 + i] + bzero;
+                }
+            }
+        }
+
+        private static void copy(int[] src, int x0, int[] dst, int bzero, boolean flip) {
+            int n = dst.length;
+            if (flip) {
+                for (int i = 0; i < n; i++) {
+                    dst[n - 1 - i] = src[x0 + i] + bzero;
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    dst[i] = src[x0 + i] + bzero;
+                }
+            }
+        }
+    }
+}
@@ -14,9 +14,15 @@ import org.lsst.ccs.visualization.message.StartMessage;
 public class MultiExtensionFitsFileTest {
 
     public static void main(String[] args) throws FitsException, IOException, InterruptedException {
-        String imageName = "snap_1440463613702-firstset-dark-500-0";
-        File fits = new File("/home/tonyj/Data/" + imageName + ".fits");
-        MultiExtensionFitsFile ff = new MultiExtensionFitsFile(fits);
+        if (args.length < 1) {
+            System.err.println("Usage: MultiExtensionFitsFileTest file.fits [packed]");
+            System.err.println("Use LoadGenerator to send synthetic data instead of a file");
+            System.exit(2);
+        }
+        File fits = new File(args[0]);
+        String imageName = fits.getName().replaceFirst("\\.fits$", "");
+        boolean packed = args.length > 1 && Boolean.parseBoolean(args[1]);
+        MultiExtensionFitsFile ff = new MultiExtensionFitsFile(fits, packed);
         long startMillis = System.currentTimeMillis();
         // Now send the image 
         try (IngestClient client = new IngestClient("localhost", 9999)) {
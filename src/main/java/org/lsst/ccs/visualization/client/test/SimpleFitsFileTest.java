@@ -1,15 +1,12 @@
 package org.lsst.ccs.visualization.client.test;
 
-import org.lsst.ccs.visualization.message.HeaderMessage;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import nom.tam.fits.BasicHDU;
 import nom.tam.fits.Fits;
 import nom.tam.fits.FitsException;
-import nom.tam.fits.HeaderCard;
 import nom.tam.util.BufferedDataOutputStream;
-import nom.tam.util.Cursor;
 import org.lsst.ccs.visualization.client.IngestClient;
 import org.lsst.ccs.visualization.message.DataMessage;
 import org.lsst.ccs.visualization.message.EndMessage;
@@ -32,11 +29,7 @@ public class SimpleFitsFileTest {
             StartMessage start = new StartMessage(imageName, axes[0], axes[1], nHeaders, 1);
             client.send(start);
 
-            for (Cursor<String, HeaderCard> i = primary.getHeader().iterator(); i.hasNext();) {
-                HeaderCard next = i.next();
-                HeaderMessage hdr = new HeaderMessage(imageName, next.toString());
-                client.send(hdr);
-            }
+            client.sendHeaders(imageName, primary.getHeader());
 
             OutputStream out = new OutputStream() {
                 private int offset = 0;
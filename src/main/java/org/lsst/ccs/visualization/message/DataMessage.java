@@ -2,7 +2,6 @@ package org.lsst.ccs.visualization.message;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
 
 /**
  *
@@ -10,23 +9,140 @@ import java.nio.channels.SocketChannel;
  */
 public class DataMessage extends Message {
 
-    private final int offset;
-    private final int stepLength;
-    private final int stepOffset;
-    private final int dataLength;
+    /**
+     * How pixels are encoded in the payload.
+     */
+    public enum Encoding {
+        /**
+         * Pixels are sent in the pixel type of the image (see
+         * {@link StartMessage#getBitpix()}).
+         */
+        NATIVE,
+        /**
+         * Pixels are sent as unsigned 16 bit values, and widened by the server
+         * to the pixel type of the image. This halves the data sent for 32 bit
+         * images whose pixels originate from 16 bit ADCs.
+         */
+        PACKED_16
+    }
+    private static final Encoding[] ENCODINGS = Encoding.values();
+
+    /**
+     * How the payload is compressed. A compressed payload consists of
+     * independently compressed chunks, each of at most
+     * {@link #CHUNK_PIXELS} pixels, so that the server can decompress them
+     * in parallel. Each chunk is sent as the number of pixels, the number of
+     * compressed bytes, and then the compressed bytes.
+     */
+    public enum Compression {
+        NONE(0),
+        /**
+         * Rice compression of 16 bit pixels, for use with
+         * {@link Encoding#PACKED_16} or BITPIX 16 images.
+         */
+        RICE_16(2),
+        /**
+         * Rice compression of 32 bit pixels, for use with BITPIX 32 images.
+         */
+        RICE_32(4);
+
+        private final int bytesPerPixel;
+
+        Compression(int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        /**
+         * @return The size of the pixels being compressed.
+         */
+        public int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+    }
+    private static final Compression[] COMPRESSIONS = Compression.values();
+
+    /**
+     * The maximum number of pixels in each compressed chunk.
+     */
+    public static final int CHUNK_PIXELS = 65536;
+
+    private int offset;
+    private int stepLength;
+    private int stepOffset;
+    private int dataLength;
+    private Encoding encoding;
+    private Compression compression;
     private ByteBuffer data;
 
     public DataMessage(String imageName, int offset, int stepLength, int stepOffset, ByteBuffer data) {
-        this(imageName, offset, stepLength, stepOffset, data.remaining());
-        this.data = data;
+        this(imageName, offset, stepLength, stepOffset, data, Encoding.NATIVE);
+    }
+
+    /**
+     * Create a data message with an explicit encoding. The offset, step
+     * length and step offset are always in pixels, the data length is the
+     * number of bytes in the payload.
+     *
+     * @param imageName The name of the image
+     * @param offset The offset in pixels of the first pixel
+     * @param stepLength The number of contiguous pixels in each row, or 0 if
+     * the data is contiguous
+     * @param stepOffset The distance in pixels between the start of each row
+     * @param data The encoded pixels
+     * @param encoding The encoding of the pixels
+     */
+    public DataMessage(String imageName, int offset, int stepLength, int stepOffset, ByteBuffer data, Encoding encoding) {
+        this(imageName, offset, stepLength, stepOffset, data, encoding, Compression.NONE);
     }
 
-    private DataMessage(String imageName, int offset, int stepLength, int stepOffset, int dataLength) {
-        super(Message.MessageType.DATA, 16, imageName);
+    /**
+     * Create a data message with an explicit encoding and compression. If
+     * compression is requested the data is compressed immediately, the
+     * data length is then the compressed length.
+     *
+     * @param imageName The name of the image
+     * @param offset The offset in pixels of the first pixel
+     * @param stepLength The number of contiguous pixels in each row, or 0 if
+     * the data is contiguous
+     * @param stepOffset The distance in pixels between the start of each row
+     * @param data The encoded pixels
+     * @param encoding The encoding of the pixels
+     * @param compression The compression to apply to the pixels
+     */
+    public DataMessage(String imageName, int offset, int stepLength, int stepOffset, ByteBuffer data, Encoding encoding, Compression compression) {
+        super(Message.MessageType.DATA, 24, imageName);
         this.offset = offset;
         this.stepLength = stepLength;
         this.stepOffset = stepOffset;
-        this.dataLength = dataLength;
+        this.encoding = encoding;
+        this.compression = compression;
+        this.data = compression == Compression.NONE ? data : compress(data, compression.getBytesPerPixel());
+        this.dataLength = this.data.remaining();
+    }
+
+    DataMessage() {
+        super(Message.MessageType.DATA, 24, "");
+    }
+
+    private static ByteBuffer compress(ByteBuffer data, int bytesPerPixel) {
+        ByteBuffer src = data.duplicate();
+        int nPixels = src.remaining() / bytesPerPixel;
+        int nChunks = (nPixels + CHUNK_PIXELS - 1) / CHUNK_PIXELS;
+        ByteBuffer result = ByteBuffer.allocate(8 * nChunks + RiceCodec.maxCompressedLength(nPixels, bytesPerPixel) + nChunks * (bytesPerPixel + 2));
+        int limit = src.limit();
+        for (int i = 0; i < nPixels; i += CHUNK_PIXELS) {
+            int n = Math.min(CHUNK_PIXELS, nPixels - i);
+            src.limit(src.position() + n * bytesPerPixel);
+            int lengthPosition = result.position() + 4;
+            result.putInt(n).putInt(0);
+            result.putInt(lengthPosition, RiceCodec.compress(src, bytesPerPixel, result));
+            src.limit(limit);
+        }
+        if (src.hasRemaining()) {
+            throw new IllegalArgumentException("Data is not a whole number of pixels");
+        }
+        result.flip();
+        return result;
     }
 
     public int getOffset() {
@@ -45,31 +161,51 @@ public class DataMessage extends Message {
         return dataLength;
     }
 
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
     @Override
     void fill(ByteBuffer bb) {
         bb.putInt(offset);
         bb.putInt(stepLength);
         bb.putInt(stepOffset);
         bb.putInt(dataLength);
+        bb.putInt(encoding.ordinal());
+        bb.putInt(compression.ordinal());
     }
 
     @Override
-    public void encode(SocketChannel out) throws IOException {
-        super.encode(out);
-        out.write(data);
+    public ByteBuffer getPayload() {
+        return data == null ? null : data.duplicate();
     }
 
-    static Message decode(ByteBuffer bb, CharSequence name) {
-        int offset = bb.getInt();
-        int stepLength = bb.getInt();
-        int stepOffset = bb.getInt();
-        int dataLength = bb.getInt();
-        return new DataMessage(name.toString(), offset, stepLength, stepOffset, dataLength);
+    @Override
+    void read(ByteBuffer bb) throws IOException {
+        offset = bb.getInt();
+        stepLength = bb.getInt();
+        stepOffset = bb.getInt();
+        dataLength = bb.getInt();
+        // Older clients do not send the encoding
+        int index = bb.remaining() >= 4 ? bb.getInt() : 0;
+        if (index < 0 || index >= ENCODINGS.length) {
+            throw new IOException("Unknown data encoding " + index);
+        }
+        encoding = ENCODINGS[index];
+        index = bb.remaining() >= 4 ? bb.getInt() : 0;
+        if (index < 0 || index >= COMPRESSIONS.length) {
+            throw new IOException("Unknown data compression " + index);
+        }
+        compression = COMPRESSIONS[index];
     }
 
     @Override
     public String toString() {
-        return "DataMessage{" + "imageName=" + getImageName() + ", offset=" + offset + ", stepLength=" + stepLength + ", stepOffset=" + stepOffset + ", dataLength=" + dataLength + '}';
+        return "DataMessage{" + "imageName=" + getImageName() + ", offset=" + offset + ", stepLength=" + stepLength + ", stepOffset=" + stepOffset + ", dataLength=" + dataLength + ", encoding=" + encoding + ", compression=" + compression + '}';
     }
 
 }
@@ -1,7 +1,5 @@
 package org.lsst.ccs.visualization.message;
 
-import java.nio.ByteBuffer;
-
 
 /**
  * Message sent to indicate that image sending is complete.
@@ -13,8 +11,8 @@ public class EndMessage extends Message {
         super(Message.MessageType.END, 0, imageName);
     }
 
-    static Message decode(ByteBuffer bb, CharSequence name) {
-        return new EndMessage(name.toString());
+    EndMessage() {
+        super(Message.MessageType.END, 0, "");
     }
 
     @Override
@@ -0,0 +1,99 @@
+package org.lsst.ccs.visualization.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A message carrying many fits header cards in a single frame. Each card
+ * occupies exactly 80 bytes, cards are sent back to back.
+ *
+ * @author tonyj
+ */
+public class HeaderBatchMessage extends Message {
+
+    /**
+     * The size of a single fits header card in bytes.
+     */
+    public static final int CARD_SIZE = 80;
+    private byte[] cards;
+    private int nCards;
+
+    /**
+     * Create a header batch message.
+     *
+     * @param imageName The image to which the cards belong
+     * @param cards The cards to send. Cards shorter than 80 characters are
+     * padded with spaces.
+     */
+    public HeaderBatchMessage(String imageName, List<String> cards) {
+        this(imageName, pack(cards));
+    }
+
+    private HeaderBatchMessage(String imageName, byte[] cards) {
+        super(MessageType.HEADER_BATCH, cards.length, imageName);
+        this.cards = cards;
+        this.nCards = cards.length / CARD_SIZE;
+    }
+
+    HeaderBatchMessage() {
+        super(MessageType.HEADER_BATCH, 0, "");
+        cards = new byte[0];
+    }
+
+    private static byte[] pack(List<String> cards) {
+        byte[] result = new byte[CARD_SIZE * cards.size()];
+        Arrays.fill(result, (byte) ' ');
+        int offset = 0;
+        for (String card : cards) {
+            if (card.length() > CARD_SIZE) {
+                throw new IllegalArgumentException("Header card longer than " + CARD_SIZE + " characters: " + card);
+            }
+            byte[] bytes = card.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bytes, 0, result, offset, bytes.length);
+            offset += CARD_SIZE;
+        }
+        return result;
+    }
+
+    @Override
+    void fill(ByteBuffer bb) {
+        bb.put(cards, 0, nCards * CARD_SIZE);
+    }
+
+    @Override
+    void read(ByteBuffer bb) throws IOException {
+        if (bb.remaining() % CARD_SIZE != 0) {
+            throw new IOException("Header batch length " + bb.remaining() + " is not a multiple of " + CARD_SIZE);
+        }
+        nCards = bb.remaining() / CARD_SIZE;
+        if (cards.length < nCards * CARD_SIZE) {
+            cards = new byte[nCards * CARD_SIZE];
+        }
+        bb.get(cards, 0, nCards * CARD_SIZE);
+    }
+
+    public int getCardCount() {
+        return nCards;
+    }
+
+    /**
+     * Get a single card from the batch.
+     *
+     * @param index The index of the card
+     * @return The card, always 80 characters long.
+     */
+    public String getCard(int index) {
+        if (index < 0 || index >= getCardCount()) {
+            throw new IndexOutOfBoundsException("Card index " + index + " out of range");
+        }
+        return new String(cards, index * CARD_SIZE, CARD_SIZE, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return "HeaderBatchMessage{" + "imageName=" + getImageName() + ", nCards=" + getCardCount() + '}';
+    }
+}
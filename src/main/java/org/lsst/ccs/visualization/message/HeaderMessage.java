@@ -9,33 +9,51 @@ import java.nio.charset.StandardCharsets;
  */
 public class HeaderMessage extends Message {
 
-    private final String card;
+    private String card;
+    private byte[] cardBytes;
+    private int cardLength;
 
     public HeaderMessage(String imageName, String card) {
         super(MessageType.HEADER, card.length(), imageName);
         this.card = card;
     }
 
+    HeaderMessage() {
+        super(MessageType.HEADER, 0, "");
+        cardBytes = new byte[HeaderBatchMessage.CARD_SIZE];
+    }
+
     @Override
     void fill(ByteBuffer bb) {
-        bb.put(card.getBytes(StandardCharsets.US_ASCII));
+        if (card != null) {
+            for (int i = 0; i < card.length(); i++) {
+                bb.put((byte) card.charAt(i));
+            }
+        } else {
+            bb.put(cardBytes, 0, cardLength);
+        }
     }
 
-
-    static Message decode(ByteBuffer bb, CharSequence name) {
-        byte[] bytes = new byte[bb.remaining()];
-        bb.get(bytes);
-        String card = new String(bytes, StandardCharsets.US_ASCII);
-        return new HeaderMessage(name.toString(), card);
+    @Override
+    void read(ByteBuffer bb) {
+        cardLength = bb.remaining();
+        if (cardBytes.length < cardLength) {
+            cardBytes = new byte[cardLength];
+        }
+        bb.get(cardBytes, 0, cardLength);
+        card = null;
     }
 
     public String getCard() {
+        if (card == null) {
+            card = new String(cardBytes, 0, cardLength, StandardCharsets.US_ASCII);
+        }
         return card;
     }
 
     @Override
     public String toString() {
-        return "HeaderMessage{" + "imageName=" + getImageName() + ", card=" + card + '}';
+        return "HeaderMessage{" + "imageName=" + getImageName() + ", card=" + getCard() + '}';
     }
 
 }
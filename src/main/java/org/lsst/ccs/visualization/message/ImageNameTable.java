@@ -0,0 +1,71 @@
+package org.lsst.ccs.visualization.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A small fixed size cache mapping the raw bytes of an image name to a String,
+ * so that decoding a name which has been seen recently does not allocate.
+ * Collisions simply replace the existing entry. Not thread safe.
+ *
+ * @author tonyj
+ */
+class ImageNameTable {
+
+    private final byte[][] keys;
+    private final String[] values;
+    private final int mask;
+
+    /**
+     * Create a table.
+     *
+     * @param size The number of entries, must be a power of two.
+     */
+    ImageNameTable(int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size must be a power of 2: " + size);
+        }
+        keys = new byte[size][];
+        values = new String[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Read a name from the buffer, returning the cached String if available.
+     *
+     * @param bb The buffer, positioned at the start of the name
+     * @param length The length of the name in bytes
+     * @return The name
+     */
+    String intern(ByteBuffer bb, int length) {
+        int pos = bb.position();
+        int hash = length;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + bb.get(pos + i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        byte[] key = keys[slot];
+        if (key != null && matches(key, bb, pos, length)) {
+            bb.position(pos + length);
+            return values[slot];
+        }
+        key = new byte[length];
+        bb.get(key);
+        String name = new String(key, StandardCharsets.US_ASCII);
+        keys[slot] = key;
+        values[slot] = name;
+        return name;
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer bb, int pos, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bb.get(pos + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -2,7 +2,8 @@ package org.lsst.ccs.visualization.message;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -12,13 +13,14 @@ import java.nio.charset.StandardCharsets;
  */
 public class Message {
 
-    private final int headerLength;
+    private int headerLength;
 
     public enum MessageType {
-        START, END, DATA, HEADER
+        START, END, DATA, HEADER, HEADER_BATCH
     }
+    static final MessageType[] TYPES = MessageType.values();
     private final MessageType type;
-    private final String imageName;
+    private String imageName;
 
     public Message(MessageType type, int length, String imageName) {
         this.type = type;
@@ -34,39 +36,151 @@ public class Message {
         return type;
     }
 
-    public void encode(SocketChannel socket) throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(headerLength+4);
+    public void encode(WritableByteChannel socket) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(getFrameLength());
+        encodeFrame(bb);
+        bb.flip();
+        ByteBuffer payload = getPayload();
+        if (payload == null) {
+            write(socket, bb);
+        } else if (socket instanceof GatheringByteChannel) {
+            write((GatheringByteChannel) socket, new ByteBuffer[]{bb, payload});
+        } else {
+            write(socket, bb);
+            write(socket, payload);
+        }
+    }
+
+    /**
+     * The length of the encoded frame, excluding any payload.
+     *
+     * @return The frame length in bytes
+     */
+    public int getFrameLength() {
+        return headerLength + 4;
+    }
+
+    /**
+     * Encode the frame (excluding any payload) into the given buffer.
+     *
+     * @param bb The buffer, which must have at least
+     * {@link #getFrameLength()} bytes remaining.
+     */
+    public void encodeFrame(ByteBuffer bb) {
         bb.putInt(headerLength);
         bb.put((byte) type.ordinal());
         bb.put((byte) imageName.length());
-        bb.put(imageName.getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < imageName.length(); i++) {
+            bb.put((byte) imageName.charAt(i));
+        }
         fill(bb);
-        bb.flip();
-        socket.write(bb);
+    }
+
+    /**
+     * The payload which follows the frame on the wire, if any. The returned
+     * buffer is a view, so consuming it does not modify the message.
+     *
+     * @return The payload, or <code>null</code> if this message has none.
+     */
+    public ByteBuffer getPayload() {
+        return null;
+    }
+
+    static void write(WritableByteChannel out, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            out.write(bb);
+        }
+    }
+
+    /**
+     * Write all of the given buffers using a single gathering write where
+     * possible.
+     *
+     * @param out The channel to write to
+     * @param buffers The buffers to write
+     * @throws IOException If an IO error occurs
+     */
+    public static void write(GatheringByteChannel out, ByteBuffer[] buffers) throws IOException {
+        int first = 0;
+        while (first < buffers.length) {
+            out.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
     }
 
     void fill(ByteBuffer bb) {
         // NOOP by default
     }
     
+    /**
+     * Read the message specific fields from the frame. Called by decode after
+     * the image name has been read, the buffer limit is the end of the frame.
+     *
+     * @param bb The buffer to read from
+     * @throws IOException If the fields are invalid
+     */
+    void read(ByteBuffer bb) throws IOException {
+        // NOOP by default
+    }
+
+    /**
+     * Reinitialize a reusable message instance while decoding.
+     */
+    void reset(String imageName, int headerLength) {
+        this.imageName = imageName;
+        this.headerLength = headerLength;
+    }
+
+    /**
+     * Decode a single frame into a newly allocated message. For an allocation
+     * free alternative see {@link MessageDecoder}.
+     *
+     * @param bb The buffer containing the frame, with the limit set to the end
+     * of the frame.
+     * @return The decoded message
+     * @throws IOException If the frame is invalid
+     */
     public static Message decode(ByteBuffer bb) throws IOException {
+        return decode(bb, null, null);
+    }
+
+    static Message decode(ByteBuffer bb, Message[] reusable, ImageNameTable names) throws IOException {
         int len = bb.getInt();
-        MessageType type = MessageType.values()[bb.get()];
-        int nameLength = bb.get();
-        byte[] bytes = new byte[nameLength];
-        bb.get(bytes);
-        String name = new String(bytes,StandardCharsets.US_ASCII);
+        int typeIndex = bb.get();
+        if (typeIndex < 0 || typeIndex >= TYPES.length) {
+            throw new IOException("Unknown message type " + typeIndex);
+        }
+        int nameLength = bb.get() & 0xff;
+        String name;
+        if (names != null) {
+            name = names.intern(bb, nameLength);
+        } else {
+            byte[] bytes = new byte[nameLength];
+            bb.get(bytes);
+            name = new String(bytes, StandardCharsets.US_ASCII);
+        }
+        Message msg = reusable != null ? reusable[typeIndex] : create(TYPES[typeIndex]);
+        msg.reset(name, len);
+        msg.read(bb);
+        return msg;
+    }
+
+    static Message create(MessageType type) throws IOException {
         switch (type) {
             case START:
-                return StartMessage.decode(bb, name);
+                return new StartMessage();
             case END:
-                return EndMessage.decode(bb, name);
+                return new EndMessage();
             case DATA:
-                return DataMessage.decode(bb, name);
+                return new DataMessage();
             case HEADER:
-                return HeaderMessage.decode(bb, name);
+                return new HeaderMessage();
+            case HEADER_BATCH:
+                return new HeaderBatchMessage();
             default:
-                throw new IOException("Unknown message type" + type);
+                throw new IOException("Unknown message type " + type);
         }
     }
 }
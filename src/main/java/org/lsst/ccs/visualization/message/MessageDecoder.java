@@ -0,0 +1,45 @@
+package org.lsst.ccs.visualization.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An allocation free alternative to {@link Message#decode(ByteBuffer)},
+ * intended to be used once per connection. One reusable message instance is
+ * kept for each message type, and image names are looked up in a small intern
+ * table keyed on the raw bytes, so in the steady state decoding does not
+ * allocate.
+ * <p>
+ * The message returned by {@link #decode(ByteBuffer)} is only valid until the
+ * next call to decode, and must not be retained. Not thread safe.
+ *
+ * @author tonyj
+ */
+public class MessageDecoder {
+
+    private static final int NAME_TABLE_SIZE = 64;
+    private final Message[] reusable = new Message[Message.TYPES.length];
+    private final ImageNameTable names = new ImageNameTable(NAME_TABLE_SIZE);
+
+    public MessageDecoder() {
+        try {
+            for (int i = 0; i < reusable.length; i++) {
+                reusable[i] = Message.create(Message.TYPES[i]);
+            }
+        } catch (IOException x) {
+            throw new IllegalStateException("Missing message type", x);
+        }
+    }
+
+    /**
+     * Decode a single frame.
+     *
+     * @param bb The buffer containing the frame, with the limit set to the end
+     * of the frame.
+     * @return The decoded message, only valid until the next call.
+     * @throws IOException If the frame is invalid
+     */
+    public Message decode(ByteBuffer bb) throws IOException {
+        return Message.decode(bb, reusable, names);
+    }
+}
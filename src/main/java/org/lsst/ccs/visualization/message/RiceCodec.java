@@ -0,0 +1,249 @@
+package org.lsst.ccs.visualization.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pure java, lossless Rice codec for 16 and 32 bit integer pixels. The bit
+ * stream has the same layout as the fits RICE_1 tile compression algorithm:
+ * the first pixel is written verbatim, then pixels are coded in blocks of 32
+ * as differences from the previous pixel, with the number of low order bits to
+ * send verbatim chosen per block. Blocks whose differences are too large to
+ * code are sent verbatim, so the output is never much larger than the input.
+ * The choice of coding for each block follows fits_rcomp() in cfitsio's
+ * ricecomp.c.
+ * <p>
+ * Works well for CCD data, where differences between neighbouring pixels are
+ * dominated by (small) noise.
+ *
+ * @author tonyj
+ */
+public final class RiceCodec {
+
+    /**
+     * The number of pixels in each coding block.
+     */
+    public static final int BLOCK_SIZE = 32;
+
+    private RiceCodec() {
+    }
+
+    /**
+     * The maximum number of bytes compressing the given number of pixels can
+     * produce.
+     *
+     * @param nPixels The number of pixels
+     * @param bytesPerPixel The size of each pixel, 2 or 4
+     * @return The maximum compressed length in bytes
+     */
+    public static int maxCompressedLength(int nPixels, int bytesPerPixel) {
+        int nBlocks = (nPixels + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        return bytesPerPixel * (nPixels + 1) + nBlocks + 1;
+    }
+
+    /**
+     * Compress all remaining pixels in the source buffer.
+     *
+     * @param src The pixels, in the byte order of the buffer. The position is
+     * advanced to the limit.
+     * @param bytesPerPixel The size of each pixel, 2 or 4
+     * @param dst The buffer to write the compressed data to, which must have
+     * at least {@link #maxCompressedLength(int, int)} bytes remaining.
+     * @return The number of compressed bytes written
+     */
+    public static int compress(ByteBuffer src, int bytesPerPixel, ByteBuffer dst) {
+        checkPixelSize(bytesPerPixel);
+        int nPixels = src.remaining() / bytesPerPixel;
+        if (nPixels * bytesPerPixel != src.remaining()) {
+            throw new IllegalArgumentException("Data is not a whole number of pixels");
+        }
+        int start = dst.position();
+        if (nPixels == 0) {
+            return 0;
+        }
+        int bbits = 8 * bytesPerPixel;
+        int fsbits = bytesPerPixel == 2 ? 4 : 5;
+        int fsmax = bytesPerPixel == 2 ? 14 : 25;
+        BitWriter out = new BitWriter(dst);
+        int[] diff = new int[BLOCK_SIZE];
+        int last = pixel(src, bytesPerPixel);
+        out.write(last, bbits);
+        src.position(src.position() - bytesPerPixel);
+        for (int i = 0; i < nPixels; i += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, nPixels - i);
+            long sum = 0;
+            for (int j = 0; j < count; j++) {
+                int next = pixel(src, bytesPerPixel);
+                int d = next - last;
+                if (bytesPerPixel == 2) {
+                    d = (short) d;
+                }
+                // Map signed differences to unsigned, 0, -1, 1, -2, ...
+                diff[j] = (d << 1) ^ (d >> 31);
+                sum += diff[j] & 0xffffffffL;
+                last = next;
+            }
+            long dpsum = Math.max(0, (sum - count / 2 - 1) / count);
+            int fs = 0;
+            for (long psum = dpsum >> 1; psum > 0; psum >>= 1) {
+                fs++;
+            }
+            if (fs == 0 && sum == 0) {
+                // All differences zero
+                out.write(0, fsbits);
+            } else if (fs >= fsmax) {
+                out.write(fsmax + 1, fsbits);
+                for (int j = 0; j < count; j++) {
+                    out.write(diff[j], bbits);
+                }
+            } else {
+                out.write(fs + 1, fsbits);
+                for (int j = 0; j < count; j++) {
+                    long v = diff[j] & 0xffffffffL;
+                    out.zeros(v >>> fs);
+                    out.write(1, 1);
+                    out.write((int) v, fs);
+                }
+            }
+        }
+        out.flush();
+        return dst.position() - start;
+    }
+
+    /**
+     * Decompress pixels.
+     *
+     * @param src The compressed data
+     * @param bytesPerPixel The size of each pixel, 2 or 4
+     * @param dst The buffer to write the pixels to, in the byte order of the
+     * buffer.
+     * @param nPixels The number of pixels to decompress
+     * @throws java.nio.BufferUnderflowException If the compressed data is
+     * truncated
+     */
+    public static void decompress(ByteBuffer src, int bytesPerPixel, ByteBuffer dst, int nPixels) {
+        checkPixelSize(bytesPerPixel);
+        if (nPixels == 0) {
+            return;
+        }
+        int bbits = 8 * bytesPerPixel;
+        int fsbits = bytesPerPixel == 2 ? 4 : 5;
+        int fsmax = bytesPerPixel == 2 ? 14 : 25;
+        BitReader in = new BitReader(src);
+        int last = in.read(bbits);
+        for (int i = 0; i < nPixels; i += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, nPixels - i);
+            int fs = in.read(fsbits) - 1;
+            for (int j = 0; j < count; j++) {
+                int v;
+                if (fs < 0) {
+                    v = 0;
+                } else if (fs == fsmax) {
+                    v = in.read(bbits);
+                } else {
+                    v = (in.unary() << fs) | in.read(fs);
+                }
+                last += (v >>> 1) ^ -(v & 1);
+                if (bytesPerPixel == 2) {
+                    dst.putShort((short) last);
+                } else {
+                    dst.putInt(last);
+                }
+            }
+        }
+    }
+
+    private static int pixel(ByteBuffer src, int bytesPerPixel) {
+        return bytesPerPixel == 2 ? src.getShort() : src.getInt();
+    }
+
+    private static void checkPixelSize(int bytesPerPixel) {
+        if (bytesPerPixel != 2 && bytesPerPixel != 4) {
+            throw new IllegalArgumentException("Unsupported pixel size " + bytesPerPixel);
+        }
+    }
+
+    /**
+     * Writes bit fields, most significant bit first.
+     */
+    private static class BitWriter {
+
+        private final ByteBuffer dst;
+        private long bits;
+        private int nBits;
+
+        BitWriter(ByteBuffer dst) {
+            this.dst = dst;
+        }
+
+        /**
+         * Write the low order n bits of value, n &lt;= 32.
+         */
+        void write(int value, int n) {
+            bits = (bits << n) | (value & ((1L << n) - 1));
+            nBits += n;
+            while (nBits >= 8) {
+                nBits -= 8;
+                dst.put((byte) (bits >>> nBits));
+            }
+        }
+
+        void zeros(long n) {
+            for (; n >= 32; n -= 32) {
+                write(0, 32);
+            }
+            write(0, (int) n);
+        }
+
+        void flush() {
+            if (nBits > 0) {
+                dst.put((byte) (bits << (8 - nBits)));
+                nBits = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads bit fields, most significant bit first.
+     */
+    private static class BitReader {
+
+        private final ByteBuffer src;
+        private long bits;
+        private int nBits;
+
+        BitReader(ByteBuffer src) {
+            this.src = src;
+        }
+
+        /**
+         * Read an n bit field, n &lt;= 32.
+         */
+        int read(int n) {
+            while (nBits < n) {
+                bits = (bits << 8) | (src.get() & 0xff);
+                nBits += 8;
+            }
+            nBits -= n;
+            return (int) ((bits >>> nBits) & ((1L << n) - 1));
+        }
+
+        /**
+         * Count zero bits up to and including the next one bit.
+         */
+        int unary() {
+            int count = 0;
+            for (;;) {
+                long v = bits & ((1L << nBits) - 1);
+                if (v != 0) {
+                    int highest = 63 - Long.numberOfLeadingZeros(v);
+                    count += nBits - 1 - highest;
+                    nBits = highest;
+                    return count;
+                }
+                count += nBits;
+                bits = src.get() & 0xff;
+                nBits = 8;
+            }
+        }
+    }
+}
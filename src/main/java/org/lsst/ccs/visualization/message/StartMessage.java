@@ -9,17 +9,59 @@ import java.nio.ByteBuffer;
  */
 public class StartMessage extends Message {
 
-    private final int width;
-    private final int height;
-    private final int nHeaders;
-    private final int nClients;
+    private int width;
+    private int height;
+    private int nHeaders;
+    private int nClients;
+    private int bitpix;
+
+    /**
+     * The default pixel type, 32 bit integers.
+     */
+    public static final int DEFAULT_BITPIX = 32;
 
     public StartMessage(String imageName, int width, int height, int nHeaders, int nClients) {
-        super(Message.MessageType.START, 16, imageName);
+        this(imageName, width, height, nHeaders, nClients, DEFAULT_BITPIX);
+    }
+
+    /**
+     * Create a start message with an explicit pixel type. All data sent for
+     * the image must use the corresponding number of bytes per pixel, in big
+     * endian order. For BITPIX 16 the image is stored as unsigned (BZERO
+     * 32768), so data must be sent in fits representation (pixel value minus
+     * 32768).
+     *
+     * @param imageName The name of the image
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param nHeaders The expected number of header cards
+     * @param nClients The number of clients which will send data
+     * @param bitpix The fits BITPIX of the image, one of 16, 32 or -32
+     */
+    public StartMessage(String imageName, int width, int height, int nHeaders, int nClients, int bitpix) {
+        super(Message.MessageType.START, 20, imageName);
+        if (!isSupportedBitpix(bitpix)) {
+            throw new IllegalArgumentException("Unsupported BITPIX " + bitpix);
+        }
         this.width = width;
         this.height = height;
         this.nHeaders = nHeaders;
         this.nClients = nClients;
+        this.bitpix = bitpix;
+    }
+
+    StartMessage() {
+        super(Message.MessageType.START, 20, "");
+    }
+
+    /**
+     * Test if a BITPIX value is supported.
+     *
+     * @param bitpix The BITPIX value
+     * @return <code>true</code> for 16, 32 and -32
+     */
+    public static boolean isSupportedBitpix(int bitpix) {
+        return bitpix == 16 || bitpix == 32 || bitpix == -32;
     }
 
     public int getWidth() {
@@ -38,25 +80,36 @@ public class StartMessage extends Message {
         return nClients;
     }
 
+    public int getBitpix() {
+        return bitpix;
+    }
+
+    public int getBytesPerPixel() {
+        return Math.abs(bitpix) / 8;
+    }
+
     @Override
     void fill(ByteBuffer bb) {
         bb.putInt(width);
         bb.putInt(height);
         bb.putInt(nHeaders);
         bb.putInt(nClients);
+        bb.putInt(bitpix);
     }
     
-    static Message decode(ByteBuffer bb, CharSequence name) {
-        int width = bb.getInt();
-        int height = bb.getInt();
-        int nHeaders = bb.getInt();
-        int nClients = bb.getInt();
-        return new StartMessage(name.toString(), width, height, nHeaders, nClients);
+    @Override
+    void read(ByteBuffer bb) {
+        width = bb.getInt();
+        height = bb.getInt();
+        nHeaders = bb.getInt();
+        nClients = bb.getInt();
+        // Older clients do not send the pixel type
+        bitpix = bb.remaining() >= 4 ? bb.getInt() : DEFAULT_BITPIX;
     }
 
     @Override
     public String toString() {
-        return "StartMessage{" + "imageName=" + getImageName() + ", width=" + width + ", height=" + height + ", nHeaders=" + nHeaders + ", nClients=" + nClients+ '}';
+        return "StartMessage{" + "imageName=" + getImageName() + ", width=" + width + ", height=" + height + ", nHeaders=" + nHeaders + ", nClients=" + nClients + ", bitpix=" + bitpix + '}';
     }
 
 }
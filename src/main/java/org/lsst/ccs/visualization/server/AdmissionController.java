@@ -0,0 +1,305 @@
+package org.lsst.ccs.visualization.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the resources used by the images being received, so that a burst
+ * of exposures makes the server stop reading from its connections, and TCP
+ * flow control slow down the clients, rather than filling the disk or page
+ * cache. Three things are limited:
+ * <ul>
+ * <li>The number of open images.</li>
+ * <li>The bytes reserved for open images. Each image reserves its full size
+ * when its start message is handled, until it has been finalized.</li>
+ * <li>The bytes of data messages being written into images.</li>
+ * </ul>
+ * A limit of 0 means unlimited. A single request larger than a limit is
+ * admitted once nothing else is using that resource, so it cannot wait
+ * forever.
+ * <p>
+ * Callers which can block use {@link #admitImage(long, boolean)} and
+ * {@link #admitData(long, boolean)}. Callers which must not block test
+ * whether a request can be admitted, and if not register a listener to be
+ * called when resources are released, then admit without waiting. Since the
+ * test and the admission are separate, limits may be exceeded by one request
+ * per such caller.
+ * <p>
+ * Usage is kept in atomic counters, so admitting and releasing data, which
+ * happens for every data message, does not take a lock. The lock is only
+ * taken by requests which have to wait, and by a release which brings usage
+ * down to where a waiting request fits.
+ *
+ * @author tonyj
+ */
+class AdmissionController {
+
+    private final Resource openImages = new Resource();
+    private final Resource reservedBytes = new Resource();
+    private final Resource inFlightBytes = new Resource();
+    private final LongAdder waits = new LongAdder();
+    private List<Runnable> listeners = new ArrayList<>();
+
+    /**
+     * Set the limits. Requests which are waiting are admitted if they fit
+     * within the new limits.
+     *
+     * @param maxOpenImages The maximum number of open images, or 0
+     * @param maxReservedBytes The maximum bytes reserved for open images, or
+     * 0
+     * @param maxInFlightBytes The maximum bytes of data messages being
+     * written, or 0
+     */
+    void setLimits(int maxOpenImages, long maxReservedBytes, long maxInFlightBytes) {
+        if (maxOpenImages < 0 || maxReservedBytes < 0 || maxInFlightBytes < 0) {
+            throw new IllegalArgumentException("Invalid admission limits");
+        }
+        synchronized (this) {
+            openImages.max = maxOpenImages;
+            reservedBytes.max = maxReservedBytes;
+            inFlightBytes.max = maxInFlightBytes;
+        }
+        wake();
+    }
+
+    boolean canAdmitImage(long bytes) {
+        return openImages.fits(1) && reservedBytes.fits(bytes);
+    }
+
+    boolean canAdmitData(long bytes) {
+        return inFlightBytes.fits(bytes);
+    }
+
+    /**
+     * Admit an image, reserving its size until {@link #releaseImage(long)}
+     * is called.
+     *
+     * @param bytes The size of the image
+     * @param wait If <code>true</code> wait until the image can be admitted,
+     * otherwise admit it immediately.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    void admitImage(long bytes, boolean wait) throws InterruptedException {
+        if (wait && (openImages.max != 0 || reservedBytes.max != 0)) {
+            // Two counters can't be updated in a single CAS, but images are
+            // admitted once per exposure, so just take the lock
+            synchronized (this) {
+                if (!canAdmitImage(bytes)) {
+                    waits.increment();
+                    do {
+                        openImages.waitFor(1);
+                        reservedBytes.waitFor(bytes);
+                        if (canAdmitImage(bytes)) {
+                            break;
+                        }
+                        wait();
+                    } while (true);
+                }
+                openImages.used.incrementAndGet();
+                reservedBytes.used.addAndGet(bytes);
+            }
+        } else {
+            openImages.used.incrementAndGet();
+            reservedBytes.used.addAndGet(bytes);
+        }
+    }
+
+    void releaseImage(long bytes) {
+        boolean wake = openImages.release(1);
+        wake |= reservedBytes.release(bytes);
+        if (wake) {
+            wake();
+        }
+    }
+
+    /**
+     * Admit a data message, until {@link #releaseData(long)} is called.
+     *
+     * @param bytes The length of the data
+     * @param wait If <code>true</code> wait until the message can be
+     * admitted, otherwise admit it immediately.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    void admitData(long bytes, boolean wait) throws InterruptedException {
+        if (!wait) {
+            inFlightBytes.used.addAndGet(bytes);
+        } else if (!inFlightBytes.tryAcquire(bytes)) {
+            waits.increment();
+            synchronized (this) {
+                do {
+                    inFlightBytes.waitFor(bytes);
+                    if (inFlightBytes.tryAcquire(bytes)) {
+                        break;
+                    }
+                    wait();
+                } while (true);
+            }
+        }
+    }
+
+    void releaseData(long bytes) {
+        if (inFlightBytes.release(bytes)) {
+            wake();
+        }
+    }
+
+    /**
+     * Register a listener to be called when an image may be admissible,
+     * without blocking.
+     *
+     * @param bytes The size of the image
+     * @param listener The listener, called once from the thread which
+     * releases resources.
+     * @return <code>true</code> if the image can be admitted now, in which
+     * case the listener is not registered.
+     */
+    boolean whenImageAdmissible(long bytes, Runnable listener) {
+        if (canAdmitImage(bytes)) {
+            return true;
+        }
+        synchronized (this) {
+            openImages.waitFor(1);
+            reservedBytes.waitFor(bytes);
+            return canAdmitImage(bytes) || addListener(listener);
+        }
+    }
+
+    /**
+     * Register a listener to be called when a data message may be
+     * admissible, without blocking.
+     *
+     * @param bytes The length of the data
+     * @param listener The listener, called once from the thread which
+     * releases resources.
+     * @return <code>true</code> if the message can be admitted now, in which
+     * case the listener is not registered.
+     */
+    boolean whenDataAdmissible(long bytes, Runnable listener) {
+        if (canAdmitData(bytes)) {
+            return true;
+        }
+        synchronized (this) {
+            inFlightBytes.waitFor(bytes);
+            return canAdmitData(bytes) || addListener(listener);
+        }
+    }
+
+    private boolean addListener(Runnable listener) {
+        waits.increment();
+        listeners.add(listener);
+        return false;
+    }
+
+    /**
+     * Wake waiting threads and call the listeners. Those which still can't be
+     * admitted will wait or register again.
+     */
+    private void wake() {
+        List<Runnable> released;
+        synchronized (this) {
+            openImages.wakeAt = -1;
+            reservedBytes.wakeAt = -1;
+            inFlightBytes.wakeAt = -1;
+            notifyAll();
+            if (listeners.isEmpty()) {
+                return;
+            }
+            released = listeners;
+            listeners = new ArrayList<>();
+        }
+        for (Runnable listener : released) {
+            listener.run();
+        }
+    }
+
+    int getMaxOpenImages() {
+        return (int) openImages.max;
+    }
+
+    long getMaxReservedBytes() {
+        return reservedBytes.max;
+    }
+
+    long getMaxInFlightBytes() {
+        return inFlightBytes.max;
+    }
+
+    int getOpenImages() {
+        return (int) openImages.used.get();
+    }
+
+    long getReservedBytes() {
+        return reservedBytes.used.get();
+    }
+
+    long getInFlightBytes() {
+        return inFlightBytes.used.get();
+    }
+
+    long getWaits() {
+        return waits.sum();
+    }
+
+    /**
+     * The usage and limit of one resource.
+     */
+    private static class Resource {
+
+        private final AtomicLong used = new AtomicLong();
+        private volatile long max;
+        /**
+         * The usage at or below which some waiting request fits, or -1 if
+         * nothing is waiting. Only raised holding the controller's lock, and
+         * always before the waiting request tests the usage again, so a
+         * release which brings the usage down to it can't be missed.
+         */
+        private volatile long wakeAt = -1;
+
+        boolean fits(long amount) {
+            long limit = max;
+            if (limit == 0) {
+                return true;
+            }
+            long current = used.get();
+            return current == 0 || current + amount <= limit;
+        }
+
+        boolean tryAcquire(long amount) {
+            long limit = max;
+            if (limit == 0) {
+                used.addAndGet(amount);
+                return true;
+            }
+            for (;;) {
+                long current = used.get();
+                if (current != 0 && current + amount > limit) {
+                    return false;
+                }
+                if (used.compareAndSet(current, current + amount)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Must be called holding the controller's lock.
+         */
+        void waitFor(long amount) {
+            wakeAt = Math.max(wakeAt, Math.max(0, max - amount));
+        }
+
+        /**
+         * Release an amount.
+         *
+         * @return <code>true</code> if the release took the usage from above
+         * to at or below the level at which a waiting request fits.
+         */
+        boolean release(long amount) {
+            long current = used.addAndGet(-amount);
+            long threshold = wakeAt;
+            return current <= threshold && current + amount > threshold;
+        }
+    }
+}
@@ -4,110 +4,198 @@ import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A simple blocking map. Only get, put and remove are supported.
+ * A simple blocking map. Only get, put and remove are supported, plus
+ * non-blocking notification when a value becomes available.
+ * <p>
+ * Each key maps to a future which is completed when the value is put, so
+ * readers wait on the future without any lock, and writers only use the
+ * atomic operations of the underlying {@link ConcurrentHashMap}. Removed keys
+ * are replaced by a tombstone, so that a get for a key which has been
+ * removed returns <code>null</code> immediately, rather than waiting for a
+ * value which will never arrive. The most recent tombstones are kept, up to
+ * a fixed limit.
  *
  * @author tonyj
  */
 class BlockingMap<K, V> {
 
-    private final ConcurrentMap<K, Latch<V>> map = new ConcurrentHashMap<>();
-    private final Lock lock = new ReentrantLock();
+    static final int DEFAULT_MAX_TOMBSTONES = 1024;
+    private final ConcurrentMap<K, CompletableFuture<V>> map = new ConcurrentHashMap<>();
+    private final Queue<Tombstone<K, V>> tombstones = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nTombstones = new AtomicInteger();
+    private final int maxTombstones;
 
     BlockingMap() {
+        this(DEFAULT_MAX_TOMBSTONES);
+    }
 
+    /**
+     * Create a blocking map.
+     *
+     * @param maxTombstones The number of removed keys remembered
+     */
+    BlockingMap(int maxTombstones) {
+        this.maxTombstones = maxTombstones;
     }
 
+    /**
+     * Put a value, waking any threads waiting for it and calling any
+     * listeners. Replaces any tombstone for the key.
+     *
+     * @param key The key
+     * @param value The value, which must not be <code>null</code>
+     */
     void put(K key, V value) {
-        lock.lock();
+        CompletableFuture<V> previous = map.put(key, CompletableFuture.completedFuture(value));
+        if (previous != null) {
+            // Waiters and listeners hold the previous future
+            previous.complete(value);
+        }
+    }
+
+    /**
+     * Get the value for a key, waiting for it to be put if necessary.
+     *
+     * @param key The key
+     * @param timeout The maximum time to wait
+     * @param unit The units of timeout
+     * @return The value, or <code>null</code> if the key was removed, or no
+     * value was put before the timeout.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    V get(K key, long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<V> future = map.computeIfAbsent(key, k -> new CompletableFuture<>());
         try {
-            Latch<V> latch = map.get(key);
-            if (latch == null) {
-                map.put(key, new Latch<>(value));
-            } else {
-                latch.put(value);
-            }
-        } finally {
-            lock.unlock();
+            return future.get(timeout, unit);
+        } catch (TimeoutException | ExecutionException x) {
+            return null;
         }
     }
 
-    V get(K key, int timeout, TimeUnit unit) throws InterruptedException {
-        Latch<V> latch = map.get(key);
-        if (latch == null) {
-            lock.lock();
-            try {
-                latch = map.get(key);
-                if (latch == null) {
-                    latch = new Latch<>();
-                    map.put(key, latch);
-                }
-            } finally {
-                lock.unlock();
-            }
+    /**
+     * Get the value for the key if it is already available, without waiting.
+     *
+     * @param key The key
+     * @return The value, or <code>null</code> if not (yet) available, or
+     * removed.
+     */
+    V getImmediate(K key) {
+        CompletableFuture<V> future = map.get(key);
+        return future == null ? null : future.getNow(null);
+    }
+
+    /**
+     * Test if a key has been removed, and not put again since.
+     *
+     * @param key The key
+     * @return <code>true</code> if the key has a tombstone
+     */
+    boolean isRemoved(K key) {
+        return map.get(key) instanceof Tombstone;
+    }
+
+    /**
+     * Register a listener to be called once a value is available for the given
+     * key, without blocking. If the value is already available, or the key
+     * has been removed, the listener is not registered, otherwise it will be
+     * called from the thread which calls put or remove, or from this thread
+     * if that happens while the listener is being registered.
+     *
+     * @param key The key
+     * @param listener The listener to call
+     * @return <code>true</code> if the value was already available (or
+     * removed), in which case the listener will not be called.
+     */
+    boolean whenAvailable(K key, Runnable listener) {
+        CompletableFuture<V> future = map.computeIfAbsent(key, k -> new CompletableFuture<>());
+        if (future.isDone()) {
+            return true;
         }
-        return latch.get(timeout, unit);
+        future.thenRun(listener);
+        return false;
     }
 
+    /**
+     * Remove a key, leaving a tombstone. Any threads waiting for the key
+     * receive <code>null</code>.
+     *
+     * @param key The key
+     */
     void remove(K key) {
-        // TODO: Should we distinguish a key which was explictly removed, from
-        // a get which was never created? Perhaps get should always return null
-        // without waiting in the former case.
-        lock.lock();
-        try {
-            map.remove(key);
-        } finally {
-            lock.unlock();
+        Tombstone<K, V> tombstone = new Tombstone<>(key);
+        CompletableFuture<V> previous = map.put(key, tombstone);
+        if (previous != null) {
+            previous.complete(null);
         }
+        addTombstone(tombstone);
     }
-    
-    Set<Map.Entry<K,V>> entrySet() {
-        Set<Map.Entry<K,V>> result = new HashSet<>();
-        for (Map.Entry<K,Latch<V>> entry : map.entrySet()) {
-            V value = entry.getValue().getImmediate();
-            if (value != null) {
-                result.add(new SimpleImmutableEntry<>(entry.getKey(),value));
-            }
+
+    /**
+     * Remove a key only if it currently maps to the given value, leaving a
+     * tombstone.
+     *
+     * @param key The key
+     * @param value The expected value
+     * @return <code>true</code> if the key was removed
+     */
+    boolean remove(K key, V value) {
+        Tombstone<K, V> tombstone = new Tombstone<>(key);
+        boolean[] removed = new boolean[1];
+        map.computeIfPresent(key, (k, future) -> {
+            removed[0] = future.getNow(null) == value;
+            return removed[0] ? tombstone : future;
+        });
+        if (removed[0]) {
+            addTombstone(tombstone);
         }
-        return Collections.unmodifiableSet(result);
+        return removed[0];
     }
 
-    private static class Latch<V> {
-
-        private final CountDownLatch count;
-        private V value;
-
-        Latch() {
-            this.value = null;
-            count = new CountDownLatch(1);
+    private void addTombstone(Tombstone<K, V> tombstone) {
+        tombstones.add(tombstone);
+        if (nTombstones.incrementAndGet() > maxTombstones) {
+            Tombstone<K, V> oldest = tombstones.poll();
+            if (oldest != null) {
+                // Does nothing if the key has since been put, or removed again
+                map.remove(oldest.key, oldest);
+                nTombstones.decrementAndGet();
+            }
         }
+    }
 
-        Latch(V value) {
-            this.value = value;
-            count = new CountDownLatch(0);
+    Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> result = new HashSet<>();
+        for (Map.Entry<K, CompletableFuture<V>> entry : map.entrySet()) {
+            V value = entry.getValue().getNow(null);
+            if (value != null) {
+                result.add(new SimpleImmutableEntry<>(entry.getKey(), value));
+            }
         }
+        return Collections.unmodifiableSet(result);
+    }
 
-        void put(V value) {
-            this.value = value;
-            count.countDown();
-        }
+    /**
+     * Marks a removed key. Always complete, with a <code>null</code> value.
+     */
+    private static class Tombstone<K, V> extends CompletableFuture<V> {
 
-        V get(int timeout, TimeUnit unit) throws InterruptedException {
-            count.await(timeout, unit);
-            return value;
-        }
-        
-        V getImmediate() {
-            return value;
-        }
+        private final K key;
 
+        Tombstone(K key) {
+            this.key = key;
+            complete(null);
+        }
     }
 }
@@ -0,0 +1,71 @@
+package org.lsst.ccs.visualization.server;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A readable channel which reads from an in-memory buffer. Used to pass
+ * message payloads which have already been read from the socket to the file
+ * handlers.
+ *
+ * @author tonyj
+ */
+class ByteBufferChannel implements ReadableByteChannel {
+
+    private ByteBuffer buffer;
+    private boolean open = true;
+
+    ByteBufferChannel(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reuse this channel to read from a different buffer.
+     *
+     * @param buffer The new buffer
+     * @return This channel
+     */
+    ByteBufferChannel reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.open = true;
+        return this;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), buffer.remaining());
+        ByteBuffer src = buffer.duplicate();
+        src.limit(src.position() + n);
+        dst.put(src);
+        buffer.position(buffer.position() + n);
+        return n;
+    }
+
+    /**
+     * Consume up to length bytes without copying them.
+     *
+     * @param length The maximum number of bytes to consume
+     * @return A view of the consumed bytes
+     */
+    ByteBuffer remaining(long length) {
+        ByteBuffer result = buffer.slice();
+        if (result.remaining() > length) {
+            result.limit((int) length);
+        }
+        buffer.position(buffer.position() + result.remaining());
+        return result;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
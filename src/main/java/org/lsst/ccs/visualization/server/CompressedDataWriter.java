@@ -0,0 +1,176 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.RiceCodec;
+
+/**
+ * Places compressed pixel data. The compressed payload is read in full, and
+ * its chunks are then decompressed and scattered to their place in the output
+ * in parallel on a shared pool of worker threads.
+ *
+ * @author tonyj
+ */
+final class CompressedDataWriter {
+
+    /**
+     * Chunks must decompress (and widen) into a single pooled block.
+     */
+    static final int MAX_CHUNK_PIXELS = StridedWriter.BLOCK_SIZE / 4;
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Decompressor-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private CompressedDataWriter() {
+    }
+
+    /**
+     * Decompress the payload of a data message and copy it to the sink.
+     *
+     * @param in The input channel
+     * @param sink The output
+     * @param position The position in the output of the first pixel
+     * @param rowBytes The number of contiguous output bytes in each row, or 0
+     * if the data is contiguous
+     * @param strideBytes The distance in the output between the start of each
+     * row
+     * @param data The data message
+     * @param bitpix The pixel type of the output
+     * @return The number of pixels written
+     * @throws IOException If an IO error occurs, or the payload is invalid
+     */
+    static long write(ReadableByteChannel in, final StridedWriter.Sink sink, final long position, long rowBytes, final long strideBytes, DataMessage data, final int bitpix) throws IOException {
+        final int bytesPerPixel = Math.abs(bitpix) / 8;
+        final boolean packed = data.getEncoding() == DataMessage.Encoding.PACKED_16;
+        final int wordSize = data.getCompression().getBytesPerPixel();
+        if (wordSize != (packed ? 2 : bytesPerPixel)) {
+            throw new IOException("Compression " + data.getCompression() + " does not match pixel type " + (packed ? "PACKED_16" : "BITPIX " + bitpix));
+        }
+        ByteBuffer payload = readPayload(in, data.getDataLength());
+        List<Chunk> chunks = new ArrayList<>();
+        long nPixels = 0;
+        while (payload.hasRemaining()) {
+            if (payload.remaining() < 8) {
+                throw new IOException("Truncated compressed chunk header");
+            }
+            int n = payload.getInt();
+            int length = payload.getInt();
+            if (n <= 0 || n > MAX_CHUNK_PIXELS || length < 0 || length > payload.remaining()) {
+                throw new IOException("Invalid compressed chunk, pixels=" + n + " length=" + length);
+            }
+            ByteBuffer compressed = payload.slice();
+            compressed.limit(length);
+            payload.position(payload.position() + length);
+            chunks.add(new Chunk(compressed, nPixels, n));
+            nPixels += n;
+        }
+        long outLength = nPixels * bytesPerPixel;
+        if (rowBytes <= 0 || rowBytes > outLength) {
+            rowBytes = outLength;
+        }
+        if (chunks.size() == 1) {
+            chunks.get(0).write(sink, position, rowBytes, strideBytes, wordSize, packed, bitpix);
+            return nPixels;
+        }
+        final long row = rowBytes;
+        List<Callable<Void>> tasks = new ArrayList<>(chunks.size());
+        for (final Chunk chunk : chunks) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    chunk.write(sink, position, row, strideBytes, wordSize, packed, bitpix);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : WORKERS.invokeAll(tasks)) {
+                future.get();
+            }
+            return nPixels;
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decompressing data", x);
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof IOException) {
+                throw (IOException) x.getCause();
+            }
+            throw new IOException("Error decompressing data", x.getCause());
+        }
+    }
+
+    private static ByteBuffer readPayload(ReadableByteChannel in, int length) throws IOException {
+        if (in instanceof ByteBufferChannel) {
+            ByteBuffer payload = ((ByteBufferChannel) in).remaining(length);
+            if (payload.remaining() < length) {
+                throw new EOFException("Payload shorter than data length");
+            }
+            return payload;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        while (payload.hasRemaining()) {
+            if (in.read(payload) < 0) {
+                throw new EOFException("Unexpected end of stream while reading data");
+            }
+        }
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * An independently compressed chunk of the payload.
+     */
+    private static class Chunk {
+
+        private final ByteBuffer compressed;
+        private final long firstPixel;
+        private final int nPixels;
+
+        Chunk(ByteBuffer compressed, long firstPixel, int nPixels) {
+            this.compressed = compressed;
+            this.firstPixel = firstPixel;
+            this.nPixels = nPixels;
+        }
+
+        void write(StridedWriter.Sink sink, long position, long rowBytes, long strideBytes, int wordSize, boolean packed, int bitpix) throws IOException {
+            long skip = firstPixel * (Math.abs(bitpix) / 8);
+            ByteBuffer block = StridedWriter.borrow();
+            try {
+                block.clear();
+                try {
+                    RiceCodec.decompress(compressed, wordSize, block, nPixels);
+                } catch (BufferUnderflowException x) {
+                    throw new IOException("Truncated compressed data", x);
+                }
+                block.flip();
+                if (packed) {
+                    StridedWriter.scatterPacked16(block, sink, position, rowBytes, strideBytes, skip, bitpix);
+                } else {
+                    StridedWriter.scatter(block, sink, position, rowBytes, strideBytes, skip);
+                }
+            } finally {
+                StridedWriter.release(block);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.lsst.ccs.visualization.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for the executors used to run blocking connection handlers. Each
+ * connection is submitted as a single long running task. These are the
+ * executors used for each {@link VisualizationIngestServer.IOMode}, other
+ * executors can be given to the server directly.
+ * <p>
+ * Virtual threads are looked up reflectively so that the server can still be
+ * built and run on Java 8, while taking advantage of virtual threads when run
+ * on Java 21 or later.
+ *
+ * @author tonyj
+ */
+final class ConnectionExecutors {
+
+    private ConnectionExecutors() {
+    }
+
+    /**
+     * An executor which runs each connection on its own platform thread. Idle
+     * threads are reused for later connections.
+     *
+     * @return The executor
+     */
+    static ExecutorService platformThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "MessageHandler-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * An executor which runs each connection on its own virtual thread.
+     *
+     * @return The executor
+     * @throws UnsupportedOperationException If the JVM does not support
+     * virtual threads.
+     */
+    static ExecutorService virtualThreads() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException x) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running on " + System.getProperty("java.version"));
+        } catch (ReflectiveOperationException x) {
+            throw new UnsupportedOperationException("Unable to create virtual thread executor", x);
+        }
+    }
+
+    /**
+     * Test if virtual threads are supported by the running JVM. The executor
+     * is actually created, since on Java 19 and 20 the method exists but
+     * fails unless preview features are enabled.
+     *
+     * @return <code>true</code> if virtual threads are available
+     */
+    static boolean isVirtualThreadSupported() {
+        try {
+            virtualThreads().shutdown();
+            return true;
+        } catch (UnsupportedOperationException x) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.lsst.ccs.visualization.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks which pixels of an image have been received, using one bit per
+ * pixel. Bits are set a word at a time with compare and set, so concurrent
+ * writers do not need to lock, and pixels received more than once are
+ * counted as duplicates.
+ *
+ * @author tonyj
+ */
+class Coverage {
+
+    private final long nPixels;
+    private final AtomicLongArray bits;
+    private final AtomicLong covered = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * Create an empty coverage map.
+     *
+     * @param nPixels The number of pixels in the image
+     */
+    Coverage(long nPixels) {
+        this.nPixels = nPixels;
+        this.bits = new AtomicLongArray((int) ((nPixels + 63) / 64));
+    }
+
+    /**
+     * Record pixels placed by a data message. Pixels outside the image are
+     * ignored.
+     *
+     * @param offset The index of the first pixel
+     * @param stepLength The number of contiguous pixels in each row, or 0 if
+     * the pixels are contiguous
+     * @param stepOffset The distance between the start of each row
+     * @param count The total number of pixels placed
+     * @return <code>true</code> if this call completed the coverage of the
+     * image. Exactly one call returns <code>true</code>.
+     */
+    boolean add(long offset, long stepLength, long stepOffset, long count) {
+        if (stepLength <= 0 || stepLength >= count) {
+            return addRange(offset, count);
+        }
+        boolean completed = false;
+        for (long start = offset; count > 0; start += stepOffset) {
+            completed |= addRange(start, Math.min(stepLength, count));
+            count -= stepLength;
+        }
+        return completed;
+    }
+
+    private boolean addRange(long first, long count) {
+        long last = Math.min(first + count, nPixels);
+        first = Math.max(first, 0);
+        if (first >= last) {
+            return false;
+        }
+        long added = 0;
+        long duplicated = 0;
+        for (long word = first / 64; word * 64 < last; word++) {
+            long wordStart = word * 64;
+            long from = Math.max(first, wordStart) - wordStart;
+            long to = Math.min(last, wordStart + 64) - wordStart;
+            long mask = to - from == 64 ? -1L : ((1L << (to - from)) - 1) << from;
+            int index = (int) word;
+            for (;;) {
+                long old = bits.get(index);
+                if ((old & mask) == mask || bits.compareAndSet(index, old, old | mask)) {
+                    added += Long.bitCount(mask & ~old);
+                    duplicated += Long.bitCount(mask & old);
+                    break;
+                }
+            }
+        }
+        if (duplicated > 0) {
+            duplicates.addAndGet(duplicated);
+        }
+        return added > 0 && covered.addAndGet(added) == nPixels;
+    }
+
+    long getPixelCount() {
+        return nPixels;
+    }
+
+    long getCovered() {
+        return covered.get();
+    }
+
+    /**
+     * @return The number of pixels which have been received more than once,
+     * counting each repeat.
+     */
+    long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return The fraction of pixels received, between 0 and 1
+     */
+    double getFraction() {
+        return nPixels == 0 ? 1 : (double) covered.get() / nPixels;
+    }
+
+    boolean isComplete() {
+        return covered.get() == nPixels;
+    }
+
+    /**
+     * @return The index of the first pixel not yet received, or -1 if all
+     * pixels have been received.
+     */
+    long getFirstMissing() {
+        for (int i = 0; i < bits.length(); i++) {
+            long word = bits.get(i);
+            if (word != -1L) {
+                long pixel = i * 64L + Long.numberOfTrailingZeros(~word);
+                return pixel < nPixels ? pixel : -1;
+            }
+        }
+        return -1;
+    }
+}
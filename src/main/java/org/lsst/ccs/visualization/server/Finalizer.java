@@ -0,0 +1,241 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finalizes completed images off the connection threads. Closing a handler
+ * (rewriting the header, compressing, closing the file) and making the result
+ * durable are done on a small bounded pool, so that a connection can move on
+ * to the next exposure immediately. Finalization never runs on the
+ * submitting thread, which may be a reactor IO thread. Instead an image keeps
+ * its admission reservation until it has been finalized, so if the pool falls
+ * behind the admission limits on open images and reserved bytes stop new
+ * images being read from the connections.
+ * <p>
+ * Durability is controlled by a {@link VisualizationIngestServer.Durability}
+ * policy. With group commit, images completed within a time window are
+ * forced to disk together at the end of the window, and complete together.
+ *
+ * @author tonyj
+ */
+class Finalizer {
+
+    static final int DEFAULT_THREADS = 2;
+    static final long DEFAULT_GROUP_COMMIT_MILLIS = 50;
+    private static final Logger logger = Logger.getLogger(Finalizer.class.getName());
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService groupCommitTimer;
+    private final List<VisualizationIngestServer.FinalizationListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile VisualizationIngestServer.Durability durability = VisualizationIngestServer.Durability.NONE;
+    private volatile long groupCommitMillis = DEFAULT_GROUP_COMMIT_MILLIS;
+    private List<Pending> group = new ArrayList<>();
+
+    Finalizer() {
+        this(DEFAULT_THREADS);
+    }
+
+    Finalizer(int nThreads) {
+        // The queue is bounded by admission, see AdmissionController
+        executor = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Finalizer"),
+                new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // Only once shut down, finalize on the calling thread
+                r.run();
+            }
+        });
+        groupCommitTimer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Group commit"));
+    }
+
+    void setDurability(VisualizationIngestServer.Durability durability, long groupCommitMillis) {
+        this.durability = durability;
+        this.groupCommitMillis = groupCommitMillis;
+    }
+
+    void addListener(VisualizationIngestServer.FinalizationListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(VisualizationIngestServer.FinalizationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Finalize an image asynchronously.
+     *
+     * @param imageName The name of the image
+     * @param handler The handler to close
+     * @return A future which completes (with the image name) once the image
+     * is closed and durable according to the current policy.
+     */
+    CompletableFuture<String> submit(final String imageName, final FitsFileHandler handler) {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        future.whenComplete((name, error) -> notifyListeners(imageName, error));
+        executor.execute(() -> finish(imageName, handler, future));
+        return future;
+    }
+
+    private void finish(String imageName, FitsFileHandler handler, CompletableFuture<String> future) {
+        try {
+            handler.close();
+            switch (durability) {
+                case FSYNC:
+                    force(handler.getOutputFiles());
+                    future.complete(imageName);
+                    break;
+                case GROUP_COMMIT:
+                    addToGroup(new Pending(imageName, handler.getOutputFiles(), future));
+                    break;
+                default:
+                    future.complete(imageName);
+            }
+        } catch (IOException | RuntimeException x) {
+            logger.log(Level.WARNING, "Error while finalizing " + imageName, x);
+            future.completeExceptionally(x);
+        }
+    }
+
+    private void addToGroup(Pending pending) {
+        boolean first;
+        synchronized (this) {
+            first = group.isEmpty();
+            group.add(pending);
+        }
+        if (first) {
+            try {
+                groupCommitTimer.schedule(this::commitGroup, groupCommitMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException x) {
+                // Shutting down, commit immediately
+                commitGroup();
+            }
+        }
+    }
+
+    /**
+     * Force all files of the images in the current group, then complete them.
+     */
+    void commitGroup() {
+        List<Pending> committing;
+        synchronized (this) {
+            committing = group;
+            group = new ArrayList<>();
+        }
+        if (committing.isEmpty()) {
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        for (Pending pending : committing) {
+            files.addAll(pending.files);
+        }
+        try {
+            force(files);
+            for (Pending pending : committing) {
+                pending.future.complete(pending.imageName);
+            }
+        } catch (IOException | RuntimeException x) {
+            logger.log(Level.WARNING, "Error during group commit", x);
+            for (Pending pending : committing) {
+                pending.future.completeExceptionally(x);
+            }
+        }
+    }
+
+    /**
+     * Force files, and the directories containing them, to stable storage.
+     */
+    static void force(List<File> files) throws IOException {
+        Set<File> dirs = new LinkedHashSet<>();
+        for (File file : files) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            dirs.add(file.getAbsoluteFile().getParentFile());
+        }
+        for (File dir : dirs) {
+            try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException x) {
+                // Not all platforms allow directories to be forced
+                logger.log(Level.FINE, "Unable to force directory " + dir, x);
+            }
+        }
+    }
+
+    private void notifyListeners(String imageName, Throwable error) {
+        for (VisualizationIngestServer.FinalizationListener listener : listeners) {
+            try {
+                listener.imageFinalized(imageName, error);
+            } catch (RuntimeException x) {
+                logger.log(Level.WARNING, "Error in finalization listener", x);
+            }
+        }
+    }
+
+    /**
+     * Finish all queued finalizations and commit any pending group, then stop
+     * the finalizer threads.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @throws InterruptedException If interrupted while waiting
+     */
+    void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(timeout, unit);
+        groupCommitTimer.shutdown();
+        groupCommitTimer.awaitTermination(timeout, unit);
+        commitGroup();
+    }
+
+    private static class Pending {
+
+        private final String imageName;
+        private final List<File> files;
+        private final CompletableFuture<String> future;
+
+        Pending(String imageName, List<File> files, CompletableFuture<String> future) {
+            this.imageName = imageName;
+            this.files = files;
+            this.future = future;
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package org.lsst.ccs.visualization.server;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.lsst.ccs.visualization.message.Message;
 
 /**
@@ -11,6 +15,65 @@ import org.lsst.ccs.visualization.message.Message;
  */
 interface FitsFileHandler extends Closeable {
 
-    void handle(Message msg, SocketChannel socket) throws IOException;
-    
+    void handle(Message msg, ReadableByteChannel in) throws IOException;
+
+    /**
+     * The files written by this handler, which must be forced to stable
+     * storage for the image to be durable. Called after the handler is
+     * closed.
+     *
+     * @return The list of files, by default empty.
+     */
+    default List<File> getOutputFiles() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * The preview pyramid maintained while the image is received.
+     *
+     * @return The preview, or <code>null</code> if none is kept.
+     */
+    default PreviewPyramid getPreview() {
+        return null;
+    }
+
+    /**
+     * The statistics of the pixels received so far.
+     *
+     * @return The statistics, or <code>null</code> if they are not kept.
+     */
+    default ImageStatistics getStatistics() {
+        return null;
+    }
+
+    /**
+     * Which pixels of the image have been received so far.
+     *
+     * @return The coverage, or <code>null</code> if not tracked.
+     */
+    default Coverage getCoverage() {
+        return null;
+    }
+
+    /**
+     * A reader for the pixels of the image, which may be used while the
+     * image is being received, and after it has been closed for as long as
+     * the data remains available.
+     *
+     * @return The reader, or <code>null</code> if pixels cannot be read back.
+     */
+    default PixelReader getReader() {
+        return null;
+    }
+
+    /**
+     * Completes once the memory reserved for the image is no longer needed.
+     * An image held in memory keeps its memory after it is closed, until it
+     * has been written to disk. Called after the handler is closed.
+     *
+     * @return The future, by default already complete.
+     */
+    default CompletableFuture<Void> whenReleased() {
+        return CompletableFuture.completedFuture(null);
+    }
 }
@@ -1,9 +1,16 @@
 package org.lsst.ccs.visualization.server;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import nom.tam.fits.BasicHDU;
@@ -12,9 +19,11 @@ import nom.tam.fits.FitsFactory;
 import nom.tam.fits.FitsUtil;
 import nom.tam.fits.Header;
 import nom.tam.fits.HeaderCard;
+import nom.tam.fits.HeaderCardException;
 import nom.tam.fits.header.Standard;
 import nom.tam.util.BufferedFile;
 import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.HeaderBatchMessage;
 import org.lsst.ccs.visualization.message.HeaderMessage;
 import org.lsst.ccs.visualization.message.Message;
 import org.lsst.ccs.visualization.message.StartMessage;
@@ -32,74 +41,367 @@ class FitsFileHandlerImpl implements FitsFileHandler {
     private final Header header;
     private final long dataPointer;
     private final File file;
+    private final StridedWriter.Sink sink;
+    private final int bitpix;
+    private final int width;
+    private final int height;
+    private final File compressedFile;
+    private final PreviewPyramid preview;
+    private final File previewFile;
+    private final PixelStatistics statistics;
+    private final MappedSink mappedSink;
+    private final Coverage coverage;
+    private final Reader reader = new Reader();
+    private volatile boolean closed;
     private static final Logger logger = Logger.getLogger(FitsFileHandlerImpl.class.getName());
 
     FitsFileHandlerImpl(File dir, StartMessage start) throws IOException {
+        this(dir, start, Options.DEFAULT);
+    }
+
+    /**
+     * Create a handler.
+     *
+     * @param dir The directory in which to create the file
+     * @param start The start message for the image
+     * @param options How the image is written
+     * @throws IOException If the file cannot be created
+     */
+    FitsFileHandlerImpl(File dir, StartMessage start, Options options) throws IOException {
         try {
-            file = new File(dir, start.getImageName() + ".fits");
+            checkBitpix(start);
+            bitpix = start.getBitpix();
+            width = start.getWidth();
+            height = start.getHeight();
+            if (options.isCompressed()) {
+                file = new File(dir, start.getImageName() + ".fits.part");
+                compressedFile = new File(dir, start.getImageName() + ".fits" + TiledImageWriter.SUFFIX);
+            } else {
+                file = new File(dir, start.getImageName() + ".fits");
+                compressedFile = null;
+            }
+            coverage = new Coverage((long) width * height);
             bf = new BufferedFile(file, "rw");
-            BasicHDU primary = BasicHDU.getDummyHDU();
-            header = primary.getHeader();
-            header.setNaxis(1, start.getWidth());
-            header.setNaxis(2, start.getHeight());
-            primary.addValue(Standard.BITPIX, 32);
-            primary.addValue(Standard.NAXIS, 2);
+            header = createHeader(start);
             header.write(bf);
-            // Reserve space for extra headers
+            // Reserve space for extra headers, including the statistics
             long filePointer = bf.getFilePointer();
+            int nHeaders = start.getnHeaders() + (options.isStatistics() ? PixelStatistics.CARDS : 0);
             int extraBlocks
-                    = (start.getnHeaders() + (MAX_CARDS_PER_HEADER - 1)) / MAX_CARDS_PER_HEADER
+                    = (nHeaders + (MAX_CARDS_PER_HEADER - 1)) / MAX_CARDS_PER_HEADER
                     - (header.getNumberOfPhysicalCards() + (MAX_CARDS_PER_HEADER - 1)) / MAX_CARDS_PER_HEADER;
             dataPointer = filePointer + extraBlocks * FitsFactory.FITS_BLOCK_SIZE;
-            // reserve space for data (necessary?)
-            long imageSize = 4 * start.getWidth() * start.getHeight();
-            bf.seek(dataPointer + imageSize);
-            FitsUtil.pad(bf, imageSize);
-            logger.log(Level.INFO, "Created {0} imagesize={1} nClients={2} nHeaders={3}", new Object[]{file, imageSize, start.getnClients(), start.getnHeaders()});
+            long imageSize = (long) start.getBytesPerPixel() * start.getWidth() * start.getHeight();
+            StridedWriter.Sink output;
+            if (options.isMapped()) {
+                // Extending the file leaves the data and padding as (sparse) zeros
+                bf.setLength(dataPointer + imageSize + FitsUtil.padding(imageSize));
+                mappedSink = new MappedSink(bf.getChannel(), dataPointer, imageSize);
+                output = mappedSink;
+            } else {
+                // reserve space for data (necessary?)
+                bf.seek(dataPointer + imageSize);
+                FitsUtil.pad(bf, imageSize);
+                mappedSink = null;
+                output = StridedWriter.of(bf.getChannel());
+            }
+            if (options.getPreviewFactors().length > 0) {
+                preview = new PreviewPyramid(width, height, bitpix, options.getPreviewFactors());
+                previewFile = new File(dir, start.getImageName() + PreviewPyramid.SUFFIX);
+                output = preview.wrap(output, dataPointer);
+            } else {
+                preview = null;
+                previewFile = null;
+            }
+            if (options.isStatistics()) {
+                this.statistics = new PixelStatistics(bitpix);
+                output = this.statistics.wrap(output);
+            } else {
+                this.statistics = null;
+            }
+            sink = output;
+            logger.log(Level.INFO, "Created {0} imagesize={1} nClients={2} nHeaders={3} bitpix={4} mapped={5} compressed={6}", new Object[]{file, imageSize, start.getnClients(), start.getnHeaders(), start.getBitpix(), options.isMapped(), options.isCompressed()});
         } catch (FitsException fx) {
             throw new IOException("Fits error during IO", fx);
         }
     }
 
     @Override
-    public void handle(Message msg, SocketChannel socket) throws IOException {
+    public void handle(Message msg, ReadableByteChannel in) throws IOException {
         switch (msg.getType()) {
             case DATA:
                 DataMessage data = (DataMessage) msg;
-                FileChannel channel = bf.getChannel();
-                if (data.getStepLength() == 0) {
-                    channel.transferFrom(socket, dataPointer + 4 * data.getOffset(), data.getDataLength());
-                } else {
-                    int stepLength = data.getStepLength();
-                    int stepOffset = data.getStepOffset();
-                    int limit = data.getDataLength();
-                    long position = dataPointer + 4 * data.getOffset();
-                    while (limit > 0) {
-                        channel.transferFrom(socket, position, 4 * stepLength);
-                        position += 4 * stepOffset;
-                        limit -= 4 * stepLength;
-                    }
-                }
+                long nPixels = StridedWriter.write(in, sink, dataPointer, data, bitpix);
+                coverage.add(data.getOffset(), data.getStepLength(), data.getStepOffset(), nPixels);
                 break;
 
             case HEADER:
-                HeaderMessage hdr = (HeaderMessage) msg;
-                header.addLine(HeaderCard.create(hdr.getCard()));
+            case HEADER_BATCH:
+                addCards(header, msg);
                 break;
         }
     }
 
+    /**
+     * Create the primary header for a new image.
+     *
+     * @param start The start message for the image
+     * @return The header
+     * @throws FitsException If the header cannot be created
+     */
+    static Header createHeader(StartMessage start) throws FitsException {
+        BasicHDU primary = BasicHDU.getDummyHDU();
+        Header header = primary.getHeader();
+        header.setNaxis(1, start.getWidth());
+        header.setNaxis(2, start.getHeight());
+        primary.addValue(Standard.BITPIX, start.getBitpix());
+        primary.addValue(Standard.NAXIS, 2);
+        if (start.getBitpix() == 16) {
+            // CCD data is unsigned
+            header.addValue(Standard.BSCALE, 1);
+            header.addValue(Standard.BZERO, 32768);
+        }
+        return header;
+    }
+
+    static void checkBitpix(StartMessage start) throws IOException {
+        if (!StartMessage.isSupportedBitpix(start.getBitpix())) {
+            throw new IOException("Unsupported BITPIX " + start.getBitpix() + " for " + start.getImageName());
+        }
+    }
+
+    /**
+     * Add the cards from a HEADER or HEADER_BATCH message to a header. Since
+     * messages for the same image may arrive concurrently on different
+     * connections, access to the header is synchronized.
+     *
+     * @param header The header to add to
+     * @param msg The message containing the cards
+     */
+    static void addCards(Header header, Message msg) {
+        synchronized (header) {
+            if (msg instanceof HeaderMessage) {
+                header.addLine(HeaderCard.create(((HeaderMessage) msg).getCard()));
+            } else if (msg instanceof HeaderBatchMessage) {
+                HeaderBatchMessage batch = (HeaderBatchMessage) msg;
+                for (int i = 0; i < batch.getCardCount(); i++) {
+                    header.addLine(HeaderCard.create(batch.getCard(i)));
+                }
+            }
+        }
+    }
+
+    @Override
+    public PreviewPyramid getPreview() {
+        return preview;
+    }
+
+    @Override
+    public Coverage getCoverage() {
+        return coverage;
+    }
+
+    @Override
+    public PixelReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public ImageStatistics getStatistics() {
+        return statistics == null ? null : statistics.getStatistics();
+    }
+
+    @Override
+    public List<File> getOutputFiles() {
+        File output = compressedFile != null ? compressedFile : file;
+        return previewFile != null ? Arrays.asList(output, previewFile) : Collections.singletonList(output);
+    }
+
     @Override
     public void close() throws IOException {
+        closed = true;
+        try {
+            if (preview != null) {
+                preview.write(previewFile);
+            }
+            if (statistics != null) {
+                statistics.addCards(header);
+            }
+        } catch (HeaderCardException x) {
+            throw new IOException("Fits error while adding statistics", x);
+        } finally {
+            closeImage();
+        }
+    }
+
+    private void closeImage() throws IOException {
+        if (compressedFile != null) {
+            try {
+                TiledImageWriter.write(compressedFile, header, bf.getChannel(), dataPointer, width, height, bitpix);
+            } finally {
+                bf.close();
+                Files.delete(file.toPath());
+            }
+            logger.log(Level.INFO, "Closed {0}", compressedFile);
+            return;
+        }
         try {
             bf.seek(0);
             // FIXME: We need to deal with case where we did not 
             // receive enough headers to fill the header block
-            header.write(bf);
+            synchronized (header) {
+                header.write(bf);
+            }
             bf.close();
             logger.log(Level.INFO, "Closed {0}", file);
         } catch (FitsException fx) {
             throw new IOException("Fits error during IO", fx);
         }
     }
+
+    /**
+     * Reads pixels from the mapping, or from the file. Once the image is
+     * closed the mapping remains readable, otherwise the (uncompressed) file
+     * is reopened for reading.
+     */
+    private class Reader implements PixelReader {
+
+        private FileChannel closedChannel;
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getBitpix() {
+            return bitpix;
+        }
+
+        @Override
+        public void read(ByteBuffer dst, long offset) throws IOException {
+            if (mappedSink != null) {
+                mappedSink.read(dst, dataPointer + offset);
+            } else {
+                long position = dataPointer + offset;
+                FileChannel channel = closed ? closedChannel() : bf.getChannel();
+                while (dst.hasRemaining()) {
+                    int n = channel.read(dst, position);
+                    if (n < 0) {
+                        throw new EOFException("Unexpected end of file reading " + file);
+                    }
+                    position += n;
+                }
+            }
+        }
+
+        private synchronized FileChannel closedChannel() throws IOException {
+            if (compressedFile != null) {
+                throw new IOException("Uncompressed data for " + compressedFile + " is no longer available");
+            }
+            if (closedChannel == null) {
+                closedChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+            return closedChannel;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closedChannel != null) {
+                try {
+                    closedChannel.close();
+                } catch (IOException x) {
+                    logger.log(Level.FINE, "Error closing " + file, x);
+                }
+                closedChannel = null;
+            }
+        }
+    }
+
+    /**
+     * How images are written, shared by all the handlers created with the
+     * same settings. Options are immutable, each <code>with</code> method
+     * returns a copy with one setting changed.
+     */
+    static final class Options {
+
+        /**
+         * Uncompressed files written with positional writes, without preview
+         * or statistics.
+         */
+        static final Options DEFAULT = new Options(false, false, new int[0], false);
+        private final boolean mapped;
+        private final boolean compressed;
+        private final int[] previewFactors;
+        private final boolean statistics;
+
+        private Options(boolean mapped, boolean compressed, int[] previewFactors, boolean statistics) {
+            this.mapped = mapped;
+            this.compressed = compressed;
+            this.previewFactors = previewFactors;
+            this.statistics = statistics;
+        }
+
+        /**
+         * @param mapped If <code>true</code> the data region of the file is
+         * memory mapped, and incoming data is copied directly into the
+         * mapping, otherwise data is written using positional writes.
+         * @return The new options
+         */
+        Options withMapped(boolean mapped) {
+            return new Options(mapped, compressed, previewFactors, statistics);
+        }
+
+        /**
+         * @param compressed If <code>true</code> the image is assembled in a
+         * temporary file, and written as a tile compressed fits file (with
+         * suffix {@value TiledImageWriter#SUFFIX}) when it is closed.
+         * @return The new options
+         */
+        Options withCompressed(boolean compressed) {
+            return new Options(mapped, compressed, previewFactors, statistics);
+        }
+
+        /**
+         * @param previewFactors The binning factors of the preview levels to
+         * maintain while the image is received, which are written (with
+         * suffix {@value PreviewPyramid#SUFFIX}) when it is closed. If empty
+         * no preview is kept.
+         * @return The new options
+         */
+        Options withPreviewFactors(int... previewFactors) {
+            return new Options(mapped, compressed, previewFactors.clone(), statistics);
+        }
+
+        /**
+         * @param statistics If <code>true</code> statistics of the pixels are
+         * accumulated as they are received, and written to the header when
+         * the image is closed.
+         * @return The new options
+         */
+        Options withStatistics(boolean statistics) {
+            return new Options(mapped, compressed, previewFactors, statistics);
+        }
+
+        boolean isMapped() {
+            return mapped;
+        }
+
+        boolean isCompressed() {
+            return compressed;
+        }
+
+        int[] getPreviewFactors() {
+            return previewFactors.clone();
+        }
+
+        boolean isStatistics() {
+            return statistics;
+        }
+    }
 }
@@ -1,19 +1,33 @@
 package org.lsst.ccs.visualization.server;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.lsst.ccs.visualization.message.DataMessage;
 import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.HeaderBatchMessage;
+import org.lsst.ccs.visualization.message.HeaderMessage;
 import org.lsst.ccs.visualization.message.Message;
 import org.lsst.ccs.visualization.message.StartMessage;
 
@@ -22,12 +36,66 @@ import org.lsst.ccs.visualization.message.StartMessage;
  *
  * @author tonyj
  */
-class FitsFileManager extends TimerTask {
+class FitsFileManager {
 
+    /**
+     * By default, how long to wait for a delayed start message before
+     * discarding messages for an unknown image.
+     */
+    static final int START_WAIT_MILLIS = 1000;
+    /**
+     * By default, how long an image can go without receiving any messages
+     * before it is closed.
+     */
+    static final long IDLE_MILLIS = 60 * 1000;
+    static final long DEFAULT_MEMORY_BUDGET = 1L << 30;
+    /**
+     * The number of finalized images whose statistics and pixels are
+     * remembered.
+     */
+    static final int RECENT_IMAGES = 16;
+    /**
+     * The number of completed image names remembered, so that late messages
+     * for them can be discarded without waiting for a start message.
+     */
+    static final int COMPLETED_IMAGES = 1024;
     private final File dir;
-    private BlockingMap<String, ManagedFile> handlers = new BlockingMap<>();
+    private volatile VisualizationIngestServer.StorageMode storageMode = VisualizationIngestServer.StorageMode.FILE;
+    private volatile ImageStore imageStore;
+    private volatile FitsFileHandlerImpl.Options handlerOptions = FitsFileHandlerImpl.Options.DEFAULT;
+    private final Map<String, RecentImage> recentImages = new LinkedHashMap<String, RecentImage>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RecentImage> eldest) {
+            if (size() > RECENT_IMAGES) {
+                if (eldest.getValue().reader != null) {
+                    eldest.getValue().reader.close();
+                }
+                return true;
+            }
+            return false;
+        }
+    };
+    private final List<VisualizationIngestServer.CompletionListener> completionListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean earlyFinalization = true;
+    private final Finalizer finalizer = new Finalizer();
+    private final AdmissionController admission = new AdmissionController();
+    private int maxOpenImages;
+    private long maxReservedBytes;
+    private long maxInFlightBytes;
+    private final IngestMetrics metrics = new IngestMetrics(admission);
+    private final BlockingMap<String, ManagedFile> handlers = new BlockingMap<>(COMPLETED_IMAGES);
+    /**
+     * Images whose start message is waiting for admission. Messages for them
+     * wait however long that takes, rather than being discarded.
+     */
+    private final Set<String> admitting = ConcurrentHashMap.newKeySet();
+    /**
+     * Timeouts keyed by image name prefix, replaced as a whole when changed.
+     */
+    private volatile Map<String, Timeouts> timeouts = new HashMap<>();
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new Finalizer.NamedThreadFactory("Idle timeout"));
     private static final Logger logger = Logger.getLogger(FitsFileManager.class.getName());
-    private static Timer timer = new Timer("Idle Timeout", true);
+
     /**
      * Create a fits file manager. This instance is shared by all incoming
      * connections.
@@ -36,58 +104,413 @@ class FitsFileManager extends TimerTask {
      */
     FitsFileManager(File dir) {
         this.dir = dir;
-        timer.scheduleAtFixedRate(this, 1000, 1000);
+        timeouts.put("", new Timeouts(IDLE_MILLIS, START_WAIT_MILLIS));
+        // Idle checks for completed images are cancelled, so remove them
+        timer.setRemoveOnCancelPolicy(true);
+        timer.scheduleAtFixedRate(() -> metrics.sample(System.nanoTime()), 1, 1, TimeUnit.SECONDS);
     }
 
-    void handleMessage(Message msg, SocketChannel socket) throws IOException {
-        ManagedFile handler = getHandlerForMessage(msg);
-        if (handler == null) {
-            discard(msg, socket);
+    void handleMessage(Message msg, ReadableByteChannel in) throws IOException {
+        handleMessage(msg, in, true, false);
+    }
+
+    /**
+     * Handle a message without waiting for a delayed start message. Should
+     * only be called once {@link #isReady(Message)} has returned
+     * <code>true</code> or its listener has been called, or once the caller
+     * has given up waiting, in which case the message will be discarded.
+     *
+     * @param msg The message to handle
+     * @param in The channel from which any payload can be read
+     * @throws IOException If an IO error occurs
+     */
+    void handleMessageNow(Message msg, ReadableByteChannel in) throws IOException {
+        handleMessage(msg, in, false, false);
+    }
+
+    /**
+     * Reserve the payload of a data message against the in flight limit,
+     * before the caller reads it into memory. Should only be called once
+     * {@link #isReady(Message)} has returned <code>true</code> or its
+     * listener has been called. The message must then be handled with
+     * {@link #handleReservedData(DataMessage, ReadableByteChannel)}, or the
+     * reservation released with {@link #releaseData(DataMessage)}.
+     *
+     * @param msg The data message
+     */
+    void reserveData(DataMessage msg) {
+        try {
+            admission.admitData(msg.getDataLength(), false);
+        } catch (InterruptedException x) {
+            // Can't happen, since we don't wait
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void releaseData(DataMessage msg) {
+        admission.releaseData(msg.getDataLength());
+    }
+
+    /**
+     * Handle a data message whose payload was reserved by
+     * {@link #reserveData(DataMessage)}. The reservation is released once the
+     * message has been handled.
+     *
+     * @param msg The message to handle
+     * @param in The channel from which the payload can be read
+     * @throws IOException If an IO error occurs
+     */
+    void handleReservedData(DataMessage msg, ReadableByteChannel in) throws IOException {
+        handleMessage(msg, in, false, true);
+    }
+
+    /**
+     * Non-blocking test of whether a message can be handled immediately.
+     * Intended for use by callers which must not block waiting for a delayed
+     * start message, or for admission.
+     *
+     * @param msg The message to be handled
+     * @return <code>true</code> if the message can be handled now
+     * @see #whenReady(Message, Runnable)
+     */
+    boolean isReady(Message msg) {
+        if (msg instanceof StartMessage) {
+            return admission.canAdmitImage(imageSize((StartMessage) msg));
+        } else if (handlers.getImmediate(msg.getImageName()) != null) {
+            return !(msg instanceof DataMessage) || admission.canAdmitData(((DataMessage) msg).getDataLength());
         } else {
-            handler.fitsFileHandler.handle(msg, socket);
+            return handlers.isRemoved(msg.getImageName());
+        }
+    }
+
+    /**
+     * Register a listener to be called when the start message for the image
+     * to which a message belongs arrives, or when resources are released so
+     * that the message may be admitted. Used after {@link #isReady(Message)}
+     * has returned <code>false</code>, the listener may be called when the
+     * message is still not ready, in which case the caller should test again.
+     *
+     * @param msg The message to be handled
+     * @param onReady Called (from another thread) when the message may be
+     * ready.
+     * @return <code>true</code> if the message became ready in the meantime,
+     * in which case the listener will not be called.
+     * @see #cancelWait(Message)
+     */
+    boolean whenReady(Message msg, Runnable onReady) {
+        String imageName = msg.getImageName();
+        if (msg instanceof StartMessage) {
+            admitting.add(imageName);
+            return admission.whenImageAdmissible(imageSize((StartMessage) msg), onReady);
+        } else if (!handlers.whenAvailable(imageName, onReady)) {
+            return false;
+        } else if (msg instanceof DataMessage && handlers.getImmediate(imageName) != null) {
+            return admission.whenDataAdmissible(((DataMessage) msg).getDataLength(), onReady);
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Called when a message which was not ready will not be handled, because
+     * its connection has been closed.
+     *
+     * @param msg The message
+     */
+    void cancelWait(Message msg) {
+        if (msg instanceof StartMessage) {
+            admitting.remove(msg.getImageName());
+        }
+    }
+
+    /**
+     * Test whether a message which is not ready is waiting for the start
+     * message of its image, rather than for admission. Only messages waiting
+     * for a start message are discarded if they wait too long.
+     *
+     * @param msg The message
+     * @return <code>true</code> if the message is waiting for a start message
+     * @see #getStartWaitMillis(String)
+     */
+    boolean isWaitingForStart(Message msg) {
+        String imageName = msg.getImageName();
+        return !(msg instanceof StartMessage) && handlers.getImmediate(imageName) == null
+                && !handlers.isRemoved(imageName) && !admitting.contains(imageName);
+    }
+
+    private void handleMessage(Message msg, ReadableByteChannel in, boolean wait, boolean reserved) throws IOException {
+        metrics.frame(msg);
+        ManagedFile handler = getHandlerForMessage(msg, wait);
+        if (handler == null) {
+            try {
+                discard(msg, in);
+            } finally {
+                if (reserved) {
+                    releaseData((DataMessage) msg);
+                }
+            }
+            return;
+        }
+        long admitted = msg instanceof DataMessage ? ((DataMessage) msg).getDataLength() : 0;
+        if (admitted > 0 && !reserved) {
+            try {
+                admission.admitData(admitted, wait);
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException("Interrupted while waiting for admission");
+            }
+        }
+        if (!(msg instanceof StartMessage)) {
+            // Start messages are counted before the image is published
+            handler.inFlight.incrementAndGet();
+        }
+        try {
+            if (handler.completion.get() != null) {
+                // Completed while this message was waiting. A start message
+                // has nothing left to do once its image has been published.
+                if (!(msg instanceof StartMessage)) {
+                    discard(msg, in);
+                }
+                return;
+            }
+            handler.fitsFileHandler.handle(msg, in);
             handler.lastActive.set(System.currentTimeMillis());
             if (msg instanceof EndMessage) {
                 int nClients = handler.nClients.decrementAndGet();
                 if (nClients == 0) {
-                    handlers.remove(msg.getImageName());
-                    handler.fitsFileHandler.close();
+                    complete(handler, VisualizationIngestServer.Completion.END);
                 }
+            } else if (msg instanceof DataMessage) {
+                handler.received.add(((DataMessage) msg).getDataLength());
+                completeIfCovered(handler);
+            } else if (msg instanceof HeaderMessage) {
+                handler.headersReceived.incrementAndGet();
+                completeIfCovered(handler);
+            } else if (msg instanceof HeaderBatchMessage) {
+                handler.headersReceived.addAndGet(((HeaderBatchMessage) msg).getCardCount());
+                completeIfCovered(handler);
+            }
+        } finally {
+            if (admitted > 0) {
+                admission.releaseData(admitted);
             }
+            if (handler.inFlight.decrementAndGet() == 0 && handler.completion.get() != null) {
+                submitIfIdle(handler);
+            }
+        }
+    }
+
+    /**
+     * Finalize an image early once all of its pixels, and all of the header
+     * cards declared by its start message, have been received. Headers
+     * usually follow the data, so waiting for the pixels alone would discard
+     * them.
+     */
+    private void completeIfCovered(ManagedFile file) {
+        if (!earlyFinalization || file.headersReceived.get() < file.nHeaders) {
+            return;
+        }
+        Coverage coverage = file.fitsFileHandler.getCoverage();
+        if (coverage != null && coverage.isComplete()) {
+            complete(file, VisualizationIngestServer.Completion.COVERAGE);
         }
     }
 
-    private ManagedFile getHandlerForMessage(Message msg) throws IOException {
+    /**
+     * Mark an image as complete. It is removed from the open images, and is
+     * finalized as soon as no messages for it are being handled. Only the
+     * first call for an image has any effect.
+     *
+     * @param file The image
+     * @param reason Why the image is complete
+     */
+    private void complete(ManagedFile file, VisualizationIngestServer.Completion reason) {
+        if (!file.completion.compareAndSet(null, reason)) {
+            return;
+        }
+        // Leaves a tombstone, unless the image has already been restarted
+        handlers.remove(file.imageName, file);
+        ScheduledFuture<?> idleCheck = file.idleCheck;
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+        }
+        metrics.imageCompleted(file.imageName, file.received, reason);
+        Coverage coverage = file.fitsFileHandler.getCoverage();
+        double fraction = coverage == null ? Double.NaN : coverage.getFraction();
+        if (coverage != null && (!coverage.isComplete() || coverage.getDuplicates() > 0)) {
+            logger.log(Level.WARNING, "Image {0} completed by {1} with {2}% coverage, first missing pixel {3}, {4} duplicate pixels",
+                    new Object[]{file.imageName, reason, 100 * fraction, coverage.getFirstMissing(), coverage.getDuplicates()});
+        }
+        for (VisualizationIngestServer.CompletionListener listener : completionListeners) {
+            try {
+                listener.imageCompleted(file.imageName, reason, fraction);
+            } catch (RuntimeException x) {
+                logger.log(Level.WARNING, "Error in completion listener", x);
+            }
+        }
+        submitIfIdle(file);
+    }
+
+    private void submitIfIdle(ManagedFile file) {
+        if (file.inFlight.get() == 0 && file.submitted.compareAndSet(false, true)) {
+            finalizeImage(file);
+        }
+    }
+
+    private ManagedFile getHandlerForMessage(Message msg, boolean wait) throws IOException {
         String imageName = msg.getImageName();
         if (msg instanceof StartMessage) {
-            final StartMessage start = (StartMessage) msg;
-            FitsFileHandler handler = createHandler(dir, start);
-            ManagedFile file = new ManagedFile(handler, start.getnClients(), start.getImageName());
+            return startImage((StartMessage) msg, wait);
+        }
+        ManagedFile file = handlers.getImmediate(imageName);
+        if (file != null || !wait) {
+            return file;
+        }
+        try {
+            // We wait in case the start message is delayed. Returns
+            // immediately for completed images.
+            long startWait = getTimeouts(imageName).startWaitMillis;
+            file = handlers.get(imageName, startWait, TimeUnit.MILLISECONDS);
+            while (file == null && admitting.contains(imageName) && !handlers.isRemoved(imageName)) {
+                // The start message is waiting for admission
+                file = handlers.get(imageName, startWait, TimeUnit.MILLISECONDS);
+            }
+            return file;
+        } catch (InterruptedException ex) {
+            return null;
+        }
+    }
+
+    private ManagedFile startImage(StartMessage start, boolean wait) throws IOException {
+        String imageName = start.getImageName();
+        long size = imageSize(start);
+        admitting.add(imageName);
+        try {
+            try {
+                admission.admitImage(size, wait);
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException("Interrupted while waiting for admission");
+            }
+            FitsFileHandler handler;
+            try {
+                handler = createHandler(dir, start);
+            } catch (IOException | RuntimeException x) {
+                admission.releaseImage(size);
+                throw x;
+            }
+            ManagedFile file = new ManagedFile(handler, start.getnClients(), start.getnHeaders(), imageName, metrics.imageStarted(imageName), getTimeouts(imageName).idleMillis, size);
+            // Otherwise data messages waiting for the start could complete
+            // and finalize the image before the start message is handled
+            file.inFlight.incrementAndGet();
+            scheduleIdleCheck(file, file.idleMillis);
             handlers.put(imageName, file);
             return file;
+        } finally {
+            admitting.remove(imageName);
+        }
+    }
+
+    private static long imageSize(StartMessage start) {
+        return (long) start.getWidth() * start.getHeight() * start.getBytesPerPixel();
+    }
+
+    /**
+     * Schedule a check of whether an image has gone idle. Messages only
+     * update the time the image was last active, so each image has at most
+     * one pending check, and only checks which are due are ever run.
+     *
+     * @param file The image
+     * @param delayMillis The delay before the check
+     */
+    private void scheduleIdleCheck(final ManagedFile file, long delayMillis) {
+        try {
+            file.idleCheck = timer.schedule(() -> checkIdle(file), delayMillis, TimeUnit.MILLISECONDS);
+            if (file.completion.get() != null) {
+                // Completed meanwhile, don't hold on to the image
+                file.idleCheck.cancel(false);
+            }
+        } catch (RejectedExecutionException x) {
+            // Shutting down, open images will be closed anyway
+        }
+    }
+
+    private void checkIdle(ManagedFile file) {
+        if (file.completion.get() != null) {
+            return;
+        }
+        long remaining = file.lastActive.get() + file.idleMillis - System.currentTimeMillis();
+        if (remaining > 0) {
+            // Active since the check was scheduled
+            scheduleIdleCheck(file, remaining);
         } else {
-            try {
-                // We wait up to 1 second, in case the start message is delayed
-                return handlers.get(imageName, 1, TimeUnit.SECONDS);
-            } catch (InterruptedException ex) {
-                return null;
+            logger.log(Level.WARNING, "Closing idle file {0}", file.imageName);
+            complete(file, VisualizationIngestServer.Completion.IDLE);
+        }
+    }
+
+    /**
+     * Set the timeouts for images whose names start with the given prefix.
+     * Where more than one prefix matches the longest is used, and the empty
+     * prefix sets the default for all images. The idle timeout applies to
+     * images started after this call, and should be comfortably longer than
+     * the gaps between the messages for an image, which depend on its readout
+     * and exposure cadence.
+     *
+     * @param imageNamePrefix The image name prefix, or <code>""</code>
+     * @param idleMillis How long an image can go without receiving any
+     * messages before it is closed
+     * @param startWaitMillis How long to wait for a delayed start message
+     * before discarding messages for an unknown image
+     */
+    synchronized void setTimeouts(String imageNamePrefix, long idleMillis, long startWaitMillis) {
+        if (idleMillis <= 0 || startWaitMillis < 0) {
+            throw new IllegalArgumentException("Invalid timeouts " + idleMillis + " " + startWaitMillis);
+        }
+        Map<String, Timeouts> newTimeouts = new HashMap<>(timeouts);
+        newTimeouts.put(imageNamePrefix, new Timeouts(idleMillis, startWaitMillis));
+        timeouts = newTimeouts;
+    }
+
+    /**
+     * How long to wait for a delayed start message for an image.
+     *
+     * @param imageName The name of the image
+     * @return The wait in milliseconds
+     */
+    long getStartWaitMillis(String imageName) {
+        return getTimeouts(imageName).startWaitMillis;
+    }
+
+    private Timeouts getTimeouts(String imageName) {
+        String best = "";
+        for (String prefix : timeouts.keySet()) {
+            if (prefix.length() > best.length() && imageName.startsWith(prefix)) {
+                best = prefix;
             }
         }
+        return timeouts.get(best);
     }
 
-    private void checkIdleFiles() {
-        long now = System.currentTimeMillis();
-        for (Map.Entry<String, ManagedFile> entry : handlers.entrySet()) {
-            final ManagedFile value = entry.getValue();
-            if (value.isIdle(now)) {
-                logger.log(Level.WARNING, "Closing idle file {0}", value.imageName);
-                handlers.remove(entry.getKey());
-                try {
-                    entry.getValue().fitsFileHandler.close();
-                } catch (IOException ex) {
-                    logger.log(Level.WARNING, "Error while closing idle file", ex);
+    private void finalizeImage(final ManagedFile file) {
+        final String imageName = file.imageName;
+        final FitsFileHandler handler = file.fitsFileHandler;
+        final long submitted = System.currentTimeMillis();
+        CompletableFuture<String> finalized = finalizer.submit(imageName, handler);
+        // An image held in memory keeps its reservation until it can be evicted
+        finalized.whenComplete((name, error) -> handler.whenReleased().thenRun(() -> admission.releaseImage(file.reservedBytes)));
+        finalized.thenRun(() -> {
+            long now = System.currentTimeMillis();
+            metrics.imageFinalized(now - file.startTime, now - submitted);
+            Coverage coverage = handler.getCoverage();
+            RecentImage recent = new RecentImage(handler.getStatistics(), handler.getReader(), coverage == null ? Double.NaN : coverage.getFraction());
+            if (recent.statistics != null || recent.reader != null || coverage != null) {
+                synchronized (recentImages) {
+                    RecentImage old = recentImages.put(imageName, recent);
+                    if (old != null && old.reader != null) {
+                        old.reader.close();
+                    }
                 }
             }
-        }
+        });
     }
 
     /**
@@ -99,17 +522,230 @@ class FitsFileManager extends TimerTask {
      * @throws IOException If an error occurs while creating the file
      */
     FitsFileHandler createHandler(File dir, StartMessage msg) throws IOException {
-        return new FitsFileHandlerImpl(dir, msg);
+        if (storageMode == VisualizationIngestServer.StorageMode.MEMORY) {
+            return new MemoryFitsFileHandler(getImageStore(), msg);
+        } else {
+            return new FitsFileHandlerImpl(dir, msg, handlerOptions);
+        }
+    }
+
+    /**
+     * The metrics describing the messages and images handled by this
+     * manager, and the connections which sent them.
+     *
+     * @return The metrics
+     */
+    IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    synchronized void setStorageMode(VisualizationIngestServer.StorageMode storageMode) {
+        this.storageMode = storageMode;
+        handlerOptions = handlerOptions.withMapped(storageMode == VisualizationIngestServer.StorageMode.MAPPED);
+        applyAdmissionLimits();
+    }
+
+    /**
+     * The finalizer used to close completed images asynchronously.
+     *
+     * @return The finalizer
+     */
+    Finalizer getFinalizer() {
+        return finalizer;
+    }
+
+    synchronized void setCompressedOutput(boolean compressedOutput) {
+        handlerOptions = handlerOptions.withCompressed(compressedOutput);
+    }
+
+    synchronized void setPreviewFactors(int... previewFactors) {
+        handlerOptions = handlerOptions.withPreviewFactors(previewFactors);
+    }
+
+    synchronized void setStatistics(boolean statistics) {
+        handlerOptions = handlerOptions.withStatistics(statistics);
+    }
+
+    /**
+     * Limit the resources used by the images being received.
+     *
+     * @param maxOpenImages The maximum number of open images, or 0
+     * @param maxReservedBytes The maximum bytes reserved for open images, or
+     * 0
+     * @param maxInFlightBytes The maximum bytes of data messages being
+     * written, or 0
+     * @see AdmissionController
+     */
+    synchronized void setAdmissionLimits(int maxOpenImages, long maxReservedBytes, long maxInFlightBytes) {
+        if (maxOpenImages < 0 || maxReservedBytes < 0 || maxInFlightBytes < 0) {
+            throw new IllegalArgumentException("Invalid admission limits");
+        }
+        this.maxOpenImages = maxOpenImages;
+        this.maxReservedBytes = maxReservedBytes;
+        this.maxInFlightBytes = maxInFlightBytes;
+        applyAdmissionLimits();
+    }
+
+    /**
+     * In memory mode the bytes reserved for open images are also limited by
+     * the memory budget, so that a start message waits for images to be
+     * written or evicted, rather than being refused by the store.
+     */
+    private synchronized void applyAdmissionLimits() {
+        long reserved = maxReservedBytes;
+        if (storageMode == VisualizationIngestServer.StorageMode.MEMORY) {
+            long budget = getImageStore().getBudget();
+            reserved = reserved == 0 ? budget : Math.min(reserved, budget);
+        }
+        admission.setLimits(maxOpenImages, reserved, maxInFlightBytes);
+    }
+
+    void setEarlyFinalization(boolean earlyFinalization) {
+        this.earlyFinalization = earlyFinalization;
+    }
+
+    void addCompletionListener(VisualizationIngestServer.CompletionListener listener) {
+        completionListeners.add(listener);
+    }
+
+    void removeCompletionListener(VisualizationIngestServer.CompletionListener listener) {
+        completionListeners.remove(listener);
+    }
+
+    /**
+     * Get the fraction of the pixels of an image which have been received.
+     *
+     * @param imageName The name of the image, which may be being received or
+     * recently finalized
+     * @return The fraction received, between 0 and 1, or NaN if unknown
+     */
+    double getCoverage(String imageName) {
+        ManagedFile file = handlers.getImmediate(imageName);
+        if (file != null) {
+            Coverage coverage = file.fitsFileHandler.getCoverage();
+            return coverage == null ? Double.NaN : coverage.getFraction();
+        }
+        synchronized (recentImages) {
+            RecentImage recent = recentImages.get(imageName);
+            return recent == null ? Double.NaN : recent.coverage;
+        }
     }
 
-    private void discard(Message msg, SocketChannel socket) throws IOException {
-        logger.log(Level.WARNING, "Discarding message because no handler found {0}", msg);
+    /**
+     * Get the statistics of an image which is being received, or which was
+     * recently finalized.
+     *
+     * @param imageName The name of the image
+     * @return The statistics, or <code>null</code> if the image is unknown,
+     * or statistics were not kept for it.
+     */
+    ImageStatistics getStatistics(String imageName) {
+        ManagedFile file = handlers.getImmediate(imageName);
+        if (file != null) {
+            return file.fitsFileHandler.getStatistics();
+        }
+        synchronized (recentImages) {
+            RecentImage recent = recentImages.get(imageName);
+            return recent == null ? null : recent.statistics;
+        }
+    }
+
+    /**
+     * Read a region of an image which is being received, or which was
+     * recently finalized, from the server's memory or from the file mapping
+     * or file it is being assembled in.
+     *
+     * @param imageName The name of the image
+     * @param x The first column of the region
+     * @param y The first row of the region
+     * @param width The width of the region
+     * @param height The height of the region
+     * @param binning The binning factor, 1 for no binning
+     * @return The pixels, indexed by [row][column], or <code>null</code> if
+     * the image is not available.
+     * @throws IOException If an IO error occurs while reading the pixels
+     * @see PixelReader#cutout(int, int, int, int, int)
+     */
+    float[][] getCutout(String imageName, int x, int y, int width, int height, int binning) throws IOException {
+        PixelReader reader = getReader(imageName);
+        return reader == null ? null : reader.cutout(x, y, width, height, binning);
+    }
+
+    private PixelReader getReader(String imageName) {
+        ImageStore store = imageStore;
+        if (store != null) {
+            ImageStore.StoredImage image = store.get(imageName);
+            if (image != null) {
+                return image;
+            }
+        }
+        ManagedFile file = handlers.getImmediate(imageName);
+        if (file != null) {
+            return file.fitsFileHandler.getReader();
+        }
+        synchronized (recentImages) {
+            RecentImage recent = recentImages.get(imageName);
+            return recent == null ? null : recent.reader;
+        }
+    }
+
+    /**
+     * Take a snapshot of the preview of an image which is still being
+     * received.
+     *
+     * @param imageName The name of the image
+     * @param factor The binning factor of the preview level
+     * @return The preview, indexed by [row][column], or <code>null</code> if
+     * the image is not open or has no preview at the given binning.
+     */
+    float[][] getPreview(String imageName, int factor) {
+        ManagedFile file = handlers.getImmediate(imageName);
+        if (file == null) {
+            return null;
+        }
+        PreviewPyramid preview = file.fitsFileHandler.getPreview();
+        return preview == null ? null : preview.snapshot(factor);
+    }
+
+    /**
+     * Configure the store used for {@link VisualizationIngestServer.StorageMode#MEMORY}.
+     *
+     * @param budget The maximum number of bytes of image data held in memory
+     * @param persist If <code>true</code> completed images are also written
+     * to the fits file directory, asynchronously.
+     */
+    synchronized void setImageStore(long budget, boolean persist) {
+        if (imageStore != null) {
+            imageStore.close();
+        }
+        imageStore = new ImageStore(budget, persist ? dir : null);
+        applyAdmissionLimits();
+    }
+
+    synchronized ImageStore getImageStore() {
+        if (imageStore == null) {
+            imageStore = new ImageStore(DEFAULT_MEMORY_BUDGET, null);
+        }
+        return imageStore;
+    }
+
+    private void discard(Message msg, ReadableByteChannel in) throws IOException {
+        if (!handlers.isRemoved(msg.getImageName())) {
+            metrics.discarded();
+            logger.log(Level.WARNING, "Discarding message because no handler found {0}", msg);
+        } else if (msg instanceof EndMessage) {
+            // Expected once an image is completed by coverage
+            logger.log(Level.FINE, "Ignoring end message for completed image {0}", msg.getImageName());
+        } else {
+            metrics.discarded();
+            logger.log(Level.WARNING, "Discarding late message for completed image {0}", msg);
+        }
         if (msg instanceof DataMessage) {
-            discardData((DataMessage) msg, socket);
+            discardData((DataMessage) msg, in);
         }
     }
 
-    static void discardData(DataMessage msg, SocketChannel socket) throws IOException {
+    static void discardData(DataMessage msg, ReadableByteChannel in) throws IOException {
         ByteBuffer dataBuffer = ByteBuffer.allocateDirect(65536);
         int size = msg.getDataLength();
         while (size > 0) {
@@ -117,48 +753,94 @@ class FitsFileManager extends TimerTask {
             if (size < dataBuffer.capacity()) {
                 dataBuffer.limit(size);
             }
-            size -= socket.read(dataBuffer);
+            int n = in.read(dataBuffer);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of stream while discarding data");
+            }
+            size -= n;
         }
     }
 
-    @Override
-    public void run() {
-        checkIdleFiles();
-    }
-
-    @Override
-    public boolean cancel() {
-        // Close any open files
+    /**
+     * Close any open files, and wait for pending finalization.
+     */
+    void cancel() {
+        timer.shutdownNow();
         for (Map.Entry<String, ManagedFile> entry : handlers.entrySet()) {
-            try {
-                entry.getValue().fitsFileHandler.close();
-            } catch (IOException ex) {
-                logger.log(Level.WARNING, "Error while closing file during cancel",ex);
+            complete(entry.getValue(), VisualizationIngestServer.Completion.SHUTDOWN);
+        }
+        try {
+            finalizer.shutdown(60, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (imageStore != null) {
+            imageStore.close();
+        }
+        synchronized (recentImages) {
+            for (RecentImage recent : recentImages.values()) {
+                if (recent.reader != null) {
+                    recent.reader.close();
+                }
             }
+            recentImages.clear();
         }
-        return super.cancel();
     }
     
     
 
+    /**
+     * What is remembered about a finalized image.
+     */
+    private static class RecentImage {
+
+        private final ImageStatistics statistics;
+        private final PixelReader reader;
+        private final double coverage;
+
+        RecentImage(ImageStatistics statistics, PixelReader reader, double coverage) {
+            this.statistics = statistics;
+            this.reader = reader;
+            this.coverage = coverage;
+        }
+    }
+
+    private static class Timeouts {
+
+        private final long idleMillis;
+        private final long startWaitMillis;
+
+        Timeouts(long idleMillis, long startWaitMillis) {
+            this.idleMillis = idleMillis;
+            this.startWaitMillis = startWaitMillis;
+        }
+    }
+
     private static class ManagedFile {
 
         private final String imageName;
         private final FitsFileHandler fitsFileHandler;
         private final AtomicInteger nClients;
+        private final int nHeaders;
+        private final AtomicInteger headersReceived = new AtomicInteger();
         private final long startTime = System.currentTimeMillis();
         private final AtomicLong lastActive = new AtomicLong(startTime);
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicReference<VisualizationIngestServer.Completion> completion = new AtomicReference<>();
+        private final AtomicBoolean submitted = new AtomicBoolean();
+        private final IngestMetrics.Rate received;
+        private final long idleMillis;
+        private final long reservedBytes;
+        private volatile ScheduledFuture<?> idleCheck;
 
-        public ManagedFile(FitsFileHandler fitsFileHandler, int nClients, String imageName) {
+        public ManagedFile(FitsFileHandler fitsFileHandler, int nClients, int nHeaders, String imageName, IngestMetrics.Rate received, long idleMillis, long reservedBytes) {
             this.fitsFileHandler = fitsFileHandler;
             this.nClients = new AtomicInteger(nClients);
+            this.nHeaders = nHeaders;
             this.imageName = imageName;
+            this.received = received;
+            this.idleMillis = idleMillis;
+            this.reservedBytes = reservedBytes;
         }
-
-        private boolean isIdle(long now) {
-            return now - lastActive.get() > 60*1000; 
-        }
-
-
     }
 }
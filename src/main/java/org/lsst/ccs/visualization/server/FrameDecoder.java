@@ -0,0 +1,202 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import org.lsst.ccs.visualization.message.Message;
+import org.lsst.ccs.visualization.message.MessageDecoder;
+
+/**
+ * Splits the incoming byte stream into message frames. Bytes are read from the
+ * channel in large chunks into a reusable buffer, and as many complete frames
+ * as are available can then be pulled out without further reads. Works with
+ * both blocking and non-blocking channels.
+ *
+ * @author tonyj
+ */
+class FrameDecoder {
+
+    private static final int DEFAULT_CAPACITY = 65536;
+    /**
+     * The largest frame accepted, not including any data payload. Large
+     * enough for a header batch of a couple of hundred thousand cards, but
+     * stops a corrupt length word from allocating a huge buffer.
+     */
+    static final int MAX_FRAME_LENGTH = 1 << 24;
+    private ByteBuffer buffer;
+    private final MessageDecoder messageDecoder = new MessageDecoder();
+    private final PayloadChannel payload = new PayloadChannel();
+    private int frameLength;
+
+    FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    FrameDecoder(int capacity) {
+        buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+    }
+
+    /**
+     * Read as many bytes as are available (and will fit) from the channel.
+     *
+     * @param in The channel to read from
+     * @return The number of bytes read, or -1 at end of stream
+     * @throws IOException If an IO error occurs
+     */
+    int read(ReadableByteChannel in) throws IOException {
+        buffer.compact();
+        try {
+            return in.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Decode the next complete frame from the buffer. Decoding does not
+     * allocate, the returned message is reused and is only valid until the
+     * next call.
+     *
+     * @return The decoded message, or <code>null</code> if the buffer does not
+     * currently contain a complete frame.
+     * @throws IOException If the frame is invalid
+     */
+    Message next() throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int len = buffer.getInt(buffer.position());
+        if (len < 2 || len > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + len);
+        }
+        if (len + 4 > buffer.capacity()) {
+            grow(len + 4);
+        }
+        if (buffer.remaining() < len + 4) {
+            return null;
+        }
+        int limit = buffer.limit();
+        int end = buffer.position() + 4 + len;
+        frameLength = len + 4;
+        buffer.limit(end);
+        try {
+            return messageDecoder.decode(buffer);
+        } finally {
+            buffer.limit(limit);
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * @return The length in bytes, including the length word, of the frame
+     * last returned by {@link #next()}. Does not include any data payload.
+     */
+    int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Copy already buffered bytes into the destination buffer.
+     *
+     * @param dst The destination buffer
+     * @return The number of bytes copied
+     */
+    int drainTo(ByteBuffer dst) {
+        int n = Math.min(dst.remaining(), buffer.remaining());
+        if (n > 0) {
+            ByteBuffer src = buffer.duplicate();
+            src.limit(src.position() + n);
+            dst.put(src);
+            buffer.position(buffer.position() + n);
+        }
+        return n;
+    }
+
+    /**
+     * Create a channel from which the payload following a frame can be read.
+     * Bytes already buffered are returned first, the remainder is read
+     * directly from the underlying channel. The returned channel reports end
+     * of stream once <code>length</code> bytes have been read. The channel is
+     * reused, and is only valid until the next call.
+     *
+     * @param in The underlying (blocking) channel
+     * @param length The length of the payload
+     * @return The payload channel
+     */
+    PayloadChannel payload(ReadableByteChannel in, long length) {
+        payload.in = in;
+        payload.remaining = length;
+        return payload;
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(capacity);
+        newBuffer.put(buffer);
+        newBuffer.flip();
+        buffer = newBuffer;
+    }
+
+    class PayloadChannel implements ReadableByteChannel {
+
+        private ReadableByteChannel in;
+        private long remaining;
+        private ByteBuffer skip;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > remaining) {
+                dst.limit(dst.position() + (int) remaining);
+            }
+            try {
+                int n = drainTo(dst);
+                if (n == 0) {
+                    n = in.read(dst);
+                    if (n < 0) {
+                        return n;
+                    }
+                }
+                remaining -= n;
+                return n;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        /**
+         * Skip any part of the payload which has not been read, so that the
+         * stream is positioned at the start of the next frame.
+         *
+         * @throws IOException If an IO error occurs, or the end of stream is
+         * reached before the payload is complete.
+         */
+        void skipRemaining() throws IOException {
+            if (remaining > 0) {
+                if (skip == null) {
+                    skip = ByteBuffer.allocate(65536);
+                }
+                while (remaining > 0) {
+                    skip.clear();
+                    if (read(skip) < 0) {
+                        throw new EOFException("Unexpected end of stream while skipping payload");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return in.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
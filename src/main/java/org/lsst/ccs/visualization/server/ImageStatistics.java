@@ -0,0 +1,210 @@
+package org.lsst.ccs.visualization.server;
+
+/**
+ * Summary statistics of the pixels of an image, as used for choosing display
+ * limits. The distribution is held as a histogram with one bin per unit
+ * between 0 and 65535 (the range of CCD data), so percentiles of values
+ * outside this range are reported as the minimum or maximum.
+ *
+ * @author tonyj
+ */
+public final class ImageStatistics {
+
+    /**
+     * The number of histogram bins.
+     */
+    static final int BINS = 65536;
+    private static final int ZSCALE_SAMPLES = 1000;
+    private static final double ZSCALE_CONTRAST = 0.25;
+    private static final double ZSCALE_REJECT = 2.5;
+    private static final int ZSCALE_ITERATIONS = 5;
+
+    private final long count;
+    private final double min;
+    private final double max;
+    private final double mean;
+    private final double stdev;
+    private final long underflow;
+    private final long overflow;
+    private final long[] histogram;
+    private final double zscaleLow;
+    private final double zscaleHigh;
+
+    ImageStatistics(long count, double min, double max, double sum, double sumSquares, long underflow, long overflow, long[] histogram) {
+        this.count = count;
+        this.min = count == 0 ? Double.NaN : min;
+        this.max = count == 0 ? Double.NaN : max;
+        this.mean = count == 0 ? Double.NaN : sum / count;
+        this.stdev = count == 0 ? Double.NaN : Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+        this.underflow = underflow;
+        this.overflow = overflow;
+        this.histogram = histogram;
+        double[] zscale = zscale();
+        zscaleLow = zscale[0];
+        zscaleHigh = zscale[1];
+    }
+
+    /**
+     * @return The number of pixels included, excluding any NaN pixels.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getStandardDeviation() {
+        return stdev;
+    }
+
+    public double getMedian() {
+        return getPercentile(50);
+    }
+
+    /**
+     * Get a percentile of the pixel values.
+     *
+     * @param percent The percentile, between 0 and 100
+     * @return The value, to the nearest histogram bin, or NaN if there are no
+     * pixels.
+     */
+    public double getPercentile(double percent) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = rank(percent);
+        if (rank < underflow) {
+            return min;
+        }
+        long seen = underflow;
+        for (int bin = 0; bin < BINS; bin++) {
+            seen += histogram[bin];
+            if (rank < seen) {
+                return Math.max(min, Math.min(max, bin));
+            }
+        }
+        return max;
+    }
+
+    private long rank(double percent) {
+        return Math.round(Math.max(0, Math.min(100, percent)) / 100 * (count - 1));
+    }
+
+    /**
+     * Take evenly spaced percentiles, from the minimum to the maximum, in a
+     * single pass over the histogram. Gives the same values as
+     * {@link #getPercentile(double)}.
+     *
+     * @param n The number of samples, at least 1
+     * @return The sampled values, in increasing order
+     */
+    double[] sortedSamples(int n) {
+        double[] samples = new double[n];
+        long seen = underflow;
+        int bin = -1;
+        for (int i = 0; i < n; i++) {
+            long rank = rank(n == 1 ? 50 : 100.0 * i / (n - 1));
+            // Ranks never decrease, so the walk carries on from the last bin
+            while (rank >= seen && bin < BINS - 1) {
+                seen += histogram[++bin];
+            }
+            if (rank < underflow) {
+                samples[i] = min;
+            } else if (rank < seen) {
+                samples[i] = Math.max(min, Math.min(max, bin));
+            } else {
+                samples[i] = max;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return The lower display limit chosen by the IRAF zscale algorithm
+     */
+    public double getZScaleLow() {
+        return zscaleLow;
+    }
+
+    /**
+     * @return The upper display limit chosen by the IRAF zscale algorithm
+     */
+    public double getZScaleHigh() {
+        return zscaleHigh;
+    }
+
+    /**
+     * The zscale algorithm fits a line to the sorted pixel values, with
+     * iterative rejection of outliers, and chooses limits around the median
+     * with the slope reduced by the contrast. Here the sorted values are
+     * sampled from the histogram rather than from the image.
+     */
+    private double[] zscale() {
+        if (count == 0) {
+            return new double[]{Double.NaN, Double.NaN};
+        }
+        int n = (int) Math.min(count, ZSCALE_SAMPLES);
+        double[] samples = sortedSamples(n);
+        int center = (n - 1) / 2;
+        double median = samples[center];
+        boolean[] rejected = new boolean[n];
+        int nGood = n;
+        double slope = 0;
+        for (int iteration = 0; iteration < ZSCALE_ITERATIONS; iteration++) {
+            double sx = 0, sy = 0, sxx = 0, sxy = 0;
+            for (int i = 0; i < n; i++) {
+                if (!rejected[i]) {
+                    sx += i;
+                    sy += samples[i];
+                    sxx += (double) i * i;
+                    sxy += i * samples[i];
+                }
+            }
+            double denominator = nGood * sxx - sx * sx;
+            if (denominator == 0) {
+                break;
+            }
+            slope = (nGood * sxy - sx * sy) / denominator;
+            double intercept = (sy - slope * sx) / nGood;
+            double sumSquares = 0;
+            for (int i = 0; i < n; i++) {
+                if (!rejected[i]) {
+                    double residual = samples[i] - intercept - slope * i;
+                    sumSquares += residual * residual;
+                }
+            }
+            double limit = ZSCALE_REJECT * Math.sqrt(sumSquares / nGood);
+            int newGood = 0;
+            for (int i = 0; i < n; i++) {
+                rejected[i] = Math.abs(samples[i] - intercept - slope * i) > limit;
+                if (!rejected[i]) {
+                    newGood++;
+                }
+            }
+            if (newGood == nGood || newGood < Math.max(5, n / 2)) {
+                break;
+            }
+            nGood = newGood;
+        }
+        if (nGood < Math.max(5, n / 2)) {
+            return new double[]{min, max};
+        }
+        slope /= ZSCALE_CONTRAST;
+        return new double[]{Math.max(min, median - center * slope), Math.min(max, median + (n - 1 - center) * slope)};
+    }
+
+    @Override
+    public String toString() {
+        return "ImageStatistics{" + "count=" + count + ", min=" + min + ", max=" + max + ", mean=" + mean + ", stdev=" + stdev + ", median=" + getMedian() + ", zscale=" + zscaleLow + ":" + zscaleHigh + '}';
+    }
+}
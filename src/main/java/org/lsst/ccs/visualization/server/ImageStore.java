@@ -0,0 +1,271 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.FitsUtil;
+import nom.tam.fits.Header;
+import nom.tam.util.BufferedFile;
+import org.lsst.ccs.visualization.message.StartMessage;
+
+/**
+ * Holds assembled images in off-heap memory. The total size of the images held
+ * is limited by a memory budget, when a new image would exceed the budget the
+ * least recently used completed images are evicted. Completed images can
+ * optionally be written to disk asynchronously.
+ * <p>
+ * Evicted images are simply dropped from the store, the memory they used is
+ * freed by the garbage collector once no readers hold a reference.
+ * <p>
+ * Images still being received or written can't be evicted. The budget is
+ * also used as the admission limit on reserved bytes, so that a start
+ * message waits until there is room rather than being refused.
+ *
+ * @author tonyj
+ */
+class ImageStore implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ImageStore.class.getName());
+    private final long budget;
+    private final File persistDir;
+    private final ExecutorService writer;
+    // Access ordered, so iteration order is least recently used first
+    private final LinkedHashMap<String, StoredImage> images = new LinkedHashMap<>(16, 0.75f, true);
+    private long reserved;
+
+    /**
+     * Create an image store.
+     *
+     * @param budget The maximum number of bytes of image data to hold
+     * @param persistDir If not <code>null</code> completed images are written
+     * as fits files to this directory.
+     */
+    ImageStore(long budget, File persistDir) {
+        this.budget = budget;
+        this.persistDir = persistDir;
+        this.writer = persistDir == null ? null : Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Image store writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Create a new (empty) image. Any existing image with the same name is
+     * replaced.
+     *
+     * @param start The start message for the image
+     * @return The new image
+     * @throws IOException If the image is larger than the memory budget.
+     */
+    synchronized StoredImage create(StartMessage start) throws IOException {
+        StoredImage old = images.remove(start.getImageName());
+        if (old != null) {
+            reserved -= old.getSize();
+        }
+        FitsFileHandlerImpl.checkBitpix(start);
+        StoredImage image;
+        try {
+            image = new StoredImage(start);
+        } catch (FitsException x) {
+            throw new IOException("Fits error creating header", x);
+        }
+        if (image.getSize() > budget) {
+            throw new IOException("Image " + start.getImageName() + " of " + image.getSize() + " bytes exceeds memory budget of " + budget + " bytes");
+        }
+        evict(image.getSize());
+        if (reserved + image.getSize() > budget) {
+            // Admission normally prevents this, but callers which can't wait
+            // may exceed its limits by one image
+            LOGGER.log(Level.FINE, "Image {0} exceeds memory budget, {1} of {2} bytes in use", new Object[]{start.getImageName(), reserved, budget});
+        }
+        reserved += image.getSize();
+        images.put(start.getImageName(), image);
+        return image;
+    }
+
+    /**
+     * Get an image, which may still be in the process of being received.
+     *
+     * @param imageName The name of the image
+     * @return The image, or <code>null</code> if not in the store
+     */
+    synchronized StoredImage get(String imageName) {
+        return images.get(imageName);
+    }
+
+    /**
+     * Called when all the data for an image has been received.
+     *
+     * @param image The image
+     * @return A future which completes once the image can be evicted, after
+     * it has been written to disk if the store persists images.
+     */
+    CompletableFuture<Void> completed(final StoredImage image) {
+        if (writer == null) {
+            image.complete = true;
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void> persisted = new CompletableFuture<>();
+        image.persistPending = true;
+        image.complete = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(persistDir, image.getImageName() + ".fits");
+                try {
+                    image.writeTo(file);
+                    LOGGER.log(Level.INFO, "Wrote {0}", file);
+                } catch (IOException | FitsException x) {
+                    LOGGER.log(Level.WARNING, "Error writing " + file, x);
+                } finally {
+                    image.persistPending = false;
+                    persisted.complete(null);
+                }
+            }
+        });
+        return persisted;
+    }
+
+    synchronized long getReservedBytes() {
+        return reserved;
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    private void evict(long needed) {
+        Iterator<StoredImage> i = images.values().iterator();
+        while (reserved + needed > budget && i.hasNext()) {
+            StoredImage image = i.next();
+            if (image.complete && !image.persistPending) {
+                LOGGER.log(Level.INFO, "Evicting {0}", image.getImageName());
+                i.remove();
+                reserved -= image.getSize();
+            }
+        }
+    }
+
+    /**
+     * Wait for any pending writes to complete, and stop the writer thread.
+     */
+    @Override
+    public void close() {
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(60, TimeUnit.SECONDS);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * An image held in memory.
+     */
+    static class StoredImage implements PixelReader {
+
+        private final String imageName;
+        private final int width;
+        private final int height;
+        private final int bitpix;
+        private final Header header;
+        private final OffHeapSink data;
+        private volatile boolean complete;
+        private volatile boolean persistPending;
+
+        StoredImage(StartMessage start) throws FitsException {
+            this.imageName = start.getImageName();
+            this.width = start.getWidth();
+            this.height = start.getHeight();
+            this.bitpix = start.getBitpix();
+            this.header = FitsFileHandlerImpl.createHeader(start);
+            this.data = new OffHeapSink((long) start.getBytesPerPixel() * width * height);
+        }
+
+        String getImageName() {
+            return imageName;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getBitpix() {
+            return bitpix;
+        }
+
+        @Override
+        public void read(ByteBuffer dst, long offset) throws IOException {
+            data.read(dst, offset);
+        }
+
+        int getBytesPerPixel() {
+            return Math.abs(bitpix) / 8;
+        }
+
+        Header getHeader() {
+            return header;
+        }
+
+        OffHeapSink getData() {
+            return data;
+        }
+
+        long getSize() {
+            return data.getLength();
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        void writeTo(File file) throws IOException, FitsException {
+            try (BufferedFile bf = new BufferedFile(file, "rw")) {
+                bf.setLength(0);
+                synchronized (header) {
+                    header.write(bf);
+                }
+                bf.flush();
+                long dataPointer = bf.getFilePointer();
+                FileChannel channel = bf.getChannel();
+                for (int i = 0; i < data.getWindowCount(); i++) {
+                    ByteBuffer window = data.existingWindow(i);
+                    if (window != null) {
+                        ByteBuffer src = window.duplicate();
+                        src.clear();
+                        long position = dataPointer + (long) i * WindowedSink.WINDOW_SIZE;
+                        while (src.hasRemaining()) {
+                            position += channel.write(src, position);
+                        }
+                    }
+                }
+                bf.setLength(dataPointer + getSize() + FitsUtil.padding(getSize()));
+            }
+        }
+    }
+}
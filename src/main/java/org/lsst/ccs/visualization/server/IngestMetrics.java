@@ -0,0 +1,424 @@
+package org.lsst.ccs.visualization.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.lsst.ccs.visualization.message.Message;
+
+/**
+ * Counters and histograms describing what the ingest server is doing.
+ * <p>
+ * Counters are updated on the IO and handler threads using
+ * {@link LongAdder}s, so updates neither lock nor allocate. Rates are
+ * computed once a second by {@link #sample(long)}, from the change in each
+ * counter, and the per connection and per image counters are created once
+ * when the connection is opened or the image started.
+ *
+ * @author tonyj
+ */
+class IngestMetrics implements IngestMetricsMXBean {
+
+    static final String DOMAIN = "org.lsst.ccs.visualization";
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final VisualizationIngestServer.Completion[] COMPLETIONS = VisualizationIngestServer.Completion.values();
+
+    private final Rate bytes = new Rate();
+    private final Rate[] frames = new Rate[TYPES.length];
+    private final LongAdder[] completions = new LongAdder[COMPLETIONS.length];
+    private final ConcurrentMap<String, Rate> connections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Rate> images = new ConcurrentHashMap<>();
+    private final LongAdder imagesStarted = new LongAdder();
+    private final LongAdder imagesFinalized = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final Histogram latency = new Histogram();
+    private final Histogram closeTime = new Histogram();
+    private final AdmissionController admission;
+    private ObjectName objectName;
+
+    IngestMetrics() {
+        this(new AdmissionController());
+    }
+
+    /**
+     * Create metrics which include the limits and usage of the given
+     * admission controller.
+     *
+     * @param admission The admission controller
+     */
+    IngestMetrics(AdmissionController admission) {
+        this.admission = admission;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Rate();
+        }
+        for (int i = 0; i < completions.length; i++) {
+            completions[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Called when a connection is opened.
+     *
+     * @param name A name for the connection, unique among open connections
+     * @return The counter to which bytes received on the connection should
+     * be added, using {@link #received(Rate, long)}.
+     */
+    Rate connectionOpened(String name) {
+        Rate rate = new Rate();
+        connections.put(name, rate);
+        return rate;
+    }
+
+    void connectionClosed(String name) {
+        connections.remove(name);
+    }
+
+    /**
+     * Record bytes received on a connection.
+     *
+     * @param connection The counter returned by
+     * {@link #connectionOpened(String)}
+     * @param n The number of bytes
+     */
+    void received(Rate connection, long n) {
+        connection.add(n);
+        bytes.add(n);
+    }
+
+    void frame(Message msg) {
+        frames[msg.getType().ordinal()].add(1);
+    }
+
+    /**
+     * Called when a start message is received.
+     *
+     * @param imageName The name of the image
+     * @return The counter to which pixel data bytes for the image should be
+     * added.
+     */
+    Rate imageStarted(String imageName) {
+        imagesStarted.increment();
+        Rate rate = new Rate();
+        images.put(imageName, rate);
+        return rate;
+    }
+
+    void imageCompleted(String imageName, Rate rate, VisualizationIngestServer.Completion reason) {
+        images.remove(imageName, rate);
+        completions[reason.ordinal()].increment();
+    }
+
+    /**
+     * Called once an image has been closed.
+     *
+     * @param latencyMillis The time since the start message was received
+     * @param closeMillis The time taken to close the image, including any
+     * compression, preview and statistics output and forcing to disk.
+     */
+    void imageFinalized(long latencyMillis, long closeMillis) {
+        imagesFinalized.increment();
+        latency.add(latencyMillis);
+        closeTime.add(closeMillis);
+    }
+
+    void discarded() {
+        discarded.increment();
+    }
+
+    /**
+     * Update the rates. Called periodically from a single thread.
+     *
+     * @param now The current time, from {@link System#nanoTime()}
+     */
+    void sample(long now) {
+        bytes.sample(now);
+        for (Rate rate : frames) {
+            rate.sample(now);
+        }
+        for (Rate rate : connections.values()) {
+            rate.sample(now);
+        }
+        for (Rate rate : images.values()) {
+            rate.sample(now);
+        }
+    }
+
+    /**
+     * Register with the platform MBean server.
+     *
+     * @param name The value of the name key of the object name, so that
+     * several servers can be registered in the same JVM.
+     * @return The object name under which the metrics were registered
+     * @throws JMException If registration fails
+     */
+    synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName on = new ObjectName(DOMAIN + ":type=IngestServer,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, IngestMetricsMXBean.class, true), on);
+        objectName = on;
+        return on;
+    }
+
+    synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytes.getRate();
+    }
+
+    @Override
+    public Map<String, Double> getConnectionBytesPerSecond() {
+        return rates(connections);
+    }
+
+    @Override
+    public Map<String, Double> getImageBytesPerSecond() {
+        return rates(images);
+    }
+
+    @Override
+    public Map<String, Double> getFramesPerSecond() {
+        Map<String, Double> result = new TreeMap<>();
+        for (int i = 0; i < TYPES.length; i++) {
+            result.put(TYPES[i].name(), frames[i].getRate());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getFrameCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (int i = 0; i < TYPES.length; i++) {
+            result.put(TYPES[i].name(), frames[i].getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public int getOpenImages() {
+        return images.size();
+    }
+
+    @Override
+    public long getImagesStarted() {
+        return imagesStarted.sum();
+    }
+
+    @Override
+    public long getImagesFinalized() {
+        return imagesFinalized.sum();
+    }
+
+    @Override
+    public long getDiscardedMessages() {
+        return discarded.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCompletions() {
+        Map<String, Long> result = new TreeMap<>();
+        for (int i = 0; i < COMPLETIONS.length; i++) {
+            result.put(COMPLETIONS[i].name(), completions[i].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public long getIdleTimeoutCloses() {
+        return completions[VisualizationIngestServer.Completion.IDLE.ordinal()].sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return latency.getMean();
+    }
+
+    @Override
+    public long getMaxLatencyMillis() {
+        return latency.getMax();
+    }
+
+    @Override
+    public long getMedianLatencyMillis() {
+        return latency.getPercentile(50);
+    }
+
+    @Override
+    public long getLatency99thPercentileMillis() {
+        return latency.getPercentile(99);
+    }
+
+    @Override
+    public double getMeanCloseMillis() {
+        return closeTime.getMean();
+    }
+
+    @Override
+    public long getMaxCloseMillis() {
+        return closeTime.getMax();
+    }
+
+    @Override
+    public int getMaxOpenImages() {
+        return admission.getMaxOpenImages();
+    }
+
+    @Override
+    public int getAdmittedImages() {
+        return admission.getOpenImages();
+    }
+
+    @Override
+    public long getMaxReservedBytes() {
+        return admission.getMaxReservedBytes();
+    }
+
+    @Override
+    public long getReservedBytes() {
+        return admission.getReservedBytes();
+    }
+
+    @Override
+    public long getMaxInFlightBytes() {
+        return admission.getMaxInFlightBytes();
+    }
+
+    @Override
+    public long getInFlightBytes() {
+        return admission.getInFlightBytes();
+    }
+
+    @Override
+    public long getAdmissionWaits() {
+        return admission.getWaits();
+    }
+
+    @Override
+    public void resetLatency() {
+        latency.reset();
+        closeTime.reset();
+    }
+
+    private static Map<String, Double> rates(Map<String, Rate> rates) {
+        Map<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, Rate> entry : rates.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getRate());
+        }
+        return result;
+    }
+
+    /**
+     * A counter, and the rate at which it was increasing when last sampled.
+     */
+    static class Rate {
+
+        private final LongAdder count = new LongAdder();
+        private long lastCount;
+        private long lastTime = System.nanoTime();
+        private volatile double rate;
+
+        void add(long n) {
+            count.add(n);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getRate() {
+            return rate;
+        }
+
+        private void sample(long now) {
+            long current = count.sum();
+            if (now > lastTime) {
+                rate = (current - lastCount) * 1e9 / (now - lastTime);
+            }
+            lastCount = current;
+            lastTime = now;
+        }
+    }
+
+    /**
+     * A histogram of non-negative values with one bin per power of two, so
+     * percentiles are accurate to within a factor of two.
+     */
+    static class Histogram {
+
+        private final AtomicLongArray bins = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void add(long value) {
+            value = Math.max(0, value);
+            bins.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            long old;
+            while (value > (old = max.get()) && !max.compareAndSet(old, value)) {
+                // retry
+            }
+        }
+
+        double getMean() {
+            long n = count.sum();
+            return n == 0 ? Double.NaN : (double) sum.sum() / n;
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percent The percentile, between 0 and 100
+         * @return The upper bound of the bin containing the percentile, or 0
+         * if the histogram is empty.
+         */
+        long getPercentile(double percent) {
+            long total = 0;
+            for (int i = 0; i < bins.length(); i++) {
+                total += bins.get(i);
+            }
+            long rank = (long) Math.ceil(Math.max(0, Math.min(100, percent)) / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < bins.length(); i++) {
+                seen += bins.get(i);
+                if (seen > 0 && seen >= rank) {
+                    return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int i = 0; i < bins.length(); i++) {
+                bins.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+    }
+}
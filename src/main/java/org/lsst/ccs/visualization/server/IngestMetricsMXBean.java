@@ -0,0 +1,138 @@
+package org.lsst.ccs.visualization.server;
+
+import java.util.Map;
+
+/**
+ * The management interface of the ingest server, as registered with JMX by
+ * {@link VisualizationIngestServer#registerMetrics(String)}. Rates are
+ * averaged over the last second.
+ *
+ * @author tonyj
+ */
+public interface IngestMetricsMXBean {
+
+    /**
+     * @return The number of bytes received per second, over all connections
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return The number of bytes received per second by each open
+     * connection, keyed by remote address.
+     */
+    Map<String, Double> getConnectionBytesPerSecond();
+
+    /**
+     * @return The number of pixel data bytes received per second for each
+     * open image, keyed by image name.
+     */
+    Map<String, Double> getImageBytesPerSecond();
+
+    /**
+     * @return The number of frames received per second, keyed by message type
+     */
+    Map<String, Double> getFramesPerSecond();
+
+    /**
+     * @return The total number of frames received, keyed by message type
+     */
+    Map<String, Long> getFrameCounts();
+
+    int getOpenConnections();
+
+    /**
+     * @return The number of images which have been started, but are not yet
+     * complete.
+     */
+    int getOpenImages();
+
+    long getImagesStarted();
+
+    long getImagesFinalized();
+
+    /**
+     * @return The number of messages discarded because their image was
+     * unknown or already complete.
+     */
+    long getDiscardedMessages();
+
+    /**
+     * @return The number of images completed for each reason, keyed by
+     * {@link VisualizationIngestServer.Completion} name.
+     */
+    Map<String, Long> getCompletions();
+
+    /**
+     * @return The number of images closed because no messages were received
+     * for them for too long.
+     */
+    long getIdleTimeoutCloses();
+
+    /**
+     * @return The mean time from the start message of an image until it was
+     * closed, in milliseconds.
+     */
+    double getMeanLatencyMillis();
+
+    long getMaxLatencyMillis();
+
+    /**
+     * @return The median time from start message until close, in
+     * milliseconds, to within a factor of two.
+     */
+    long getMedianLatencyMillis();
+
+    /**
+     * @return The 99th percentile of the time from start message until
+     * close, in milliseconds, to within a factor of two.
+     */
+    long getLatency99thPercentileMillis();
+
+    /**
+     * @return The mean time taken to close an image once it was complete,
+     * including compression and forcing to disk, in milliseconds.
+     */
+    double getMeanCloseMillis();
+
+    long getMaxCloseMillis();
+
+    /**
+     * @return The maximum number of images which may be open at once, or 0
+     * if unlimited.
+     * @see VisualizationIngestServer#setAdmissionLimits(int, long, long)
+     */
+    int getMaxOpenImages();
+
+    /**
+     * @return The number of images admitted and not yet finalized, which
+     * count against the maximum number of open images.
+     */
+    int getAdmittedImages();
+
+    /**
+     * @return The maximum number of bytes which may be reserved for images
+     * which have been admitted, or 0 if unlimited.
+     */
+    long getMaxReservedBytes();
+
+    long getReservedBytes();
+
+    /**
+     * @return The maximum number of bytes of data messages which may be
+     * being written at once, or 0 if unlimited.
+     */
+    long getMaxInFlightBytes();
+
+    long getInFlightBytes();
+
+    /**
+     * @return The number of times a message had to wait for admission, so
+     * that reading from its connection was paused.
+     */
+    long getAdmissionWaits();
+
+    /**
+     * Reset the latency and close time histograms.
+     */
+    void resetLatency();
+}
@@ -0,0 +1,48 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sink which writes into a memory mapped region of a file, mapped lazily as
+ * a set of fixed size windows.
+ *
+ * @author tonyj
+ */
+class MappedSink extends WindowedSink {
+
+    private final FileChannel channel;
+    private final long start;
+
+    /**
+     * Create a mapped sink.
+     *
+     * @param channel The file channel, which must be open for writing
+     * @param start The position in the file of the start of the region
+     * @param length The length of the region
+     */
+    MappedSink(FileChannel channel, long start, long length) {
+        super(start, length);
+        this.channel = channel;
+        this.start = start;
+    }
+
+    @Override
+    ByteBuffer createWindow(long windowStart, int size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, start + windowStart, size);
+    }
+
+    /**
+     * Flush all mapped windows to the file.
+     */
+    void force() {
+        for (int i = 0; i < getWindowCount(); i++) {
+            MappedByteBuffer window = (MappedByteBuffer) existingWindow(i);
+            if (window != null) {
+                window.force();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.Message;
+import org.lsst.ccs.visualization.message.StartMessage;
+
+/**
+ * A handler which assembles the image in off-heap memory held by an
+ * ImageStore, rather than in a file.
+ *
+ * @author tonyj
+ */
+class MemoryFitsFileHandler implements FitsFileHandler {
+
+    private final ImageStore store;
+    private final ImageStore.StoredImage image;
+    private final Coverage coverage;
+    private volatile CompletableFuture<Void> released = CompletableFuture.completedFuture(null);
+
+    MemoryFitsFileHandler(ImageStore store, StartMessage start) throws IOException {
+        this.store = store;
+        this.image = store.create(start);
+        this.coverage = new Coverage((long) start.getWidth() * start.getHeight());
+    }
+
+    @Override
+    public void handle(Message msg, ReadableByteChannel in) throws IOException {
+        switch (msg.getType()) {
+            case DATA:
+                DataMessage data = (DataMessage) msg;
+                long nPixels = StridedWriter.write(in, image.getData(), 0, data, image.getBitpix());
+                coverage.add(data.getOffset(), data.getStepLength(), data.getStepOffset(), nPixels);
+                break;
+
+            case HEADER:
+            case HEADER_BATCH:
+                FitsFileHandlerImpl.addCards(image.getHeader(), msg);
+                break;
+        }
+    }
+
+    @Override
+    public Coverage getCoverage() {
+        return coverage;
+    }
+
+    @Override
+    public void close() throws IOException {
+        released = store.completed(image);
+    }
+
+    @Override
+    public CompletableFuture<Void> whenReleased() {
+        return released;
+    }
+}
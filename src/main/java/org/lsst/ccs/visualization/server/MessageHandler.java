@@ -1,28 +1,36 @@
 package org.lsst.ccs.visualization.server;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.lsst.ccs.visualization.message.DataMessage;
 import org.lsst.ccs.visualization.message.Message;
 
 /**
  * Reads messages from an open socket, and dispatches them to the FitsFileManager.
+ * Uses blocking IO, so each handler must be run on its own (platform or virtual)
+ * thread.
  * @author tonyj
  */
-class MessageHandler extends Thread {
+class MessageHandler implements Runnable {
 
-    private final ByteBuffer headerBuffer = ByteBuffer.allocateDirect(256);
+    private final FrameDecoder decoder = new FrameDecoder();
     private final SocketChannel socket;
     private final FitsFileManager ffManager;
+    private final IngestMetrics metrics;
+    private final String name;
+    private final IngestMetrics.Rate received;
     private static final Logger LOGGER = Logger.getLogger(MessageHandler.class.getName());
     
 
     MessageHandler(SocketChannel accept, FitsFileManager ffManager) throws IOException {
         this.ffManager = ffManager;
         this.socket = accept;
+        this.metrics = ffManager.getMetrics();
+        this.name = String.valueOf(accept.getRemoteAddress());
+        this.received = metrics.connectionOpened(name);
         accept.shutdownOutput();
     }
 
@@ -35,13 +43,18 @@ class MessageHandler extends Thread {
                     break;
                 }
                 LOGGER.log(Level.FINE, "Received: {0}", message);
-                ffManager.handleMessage(message, socket);
+                long length = message instanceof DataMessage ? ((DataMessage) message).getDataLength() : 0;
+                metrics.received(received, decoder.getFrameLength() + length);
+                FrameDecoder.PayloadChannel payload = decoder.payload(socket, length);
+                ffManager.handleMessage(message, payload);
+                payload.skipRemaining();
             }
         } catch (ClosedChannelException x) {
             // OK, just means socket has been closed down
-        } catch (IOException ex) {
-            LOGGER.log(Level.SEVERE, "IOException handling message on socket "+socket, ex);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, "Error handling message on socket "+socket, ex);
         } finally {
+            metrics.connectionClosed(name);
             try {
                 LOGGER.log(Level.FINE, "Closing connection to : {0}", socket);
                 socket.close();
@@ -52,17 +65,15 @@ class MessageHandler extends Thread {
     }
 
     private Message readMessage() throws IOException {
-        headerBuffer.clear();
-        headerBuffer.limit(4);
-        int l = socket.read(headerBuffer);
-        if (l < 0) {
-            return null;
+        for (;;) {
+            Message message = decoder.next();
+            if (message != null) {
+                return message;
+            }
+            if (decoder.read(socket) < 0) {
+                return null;
+            }
         }
-        int len = headerBuffer.getInt(0);
-        headerBuffer.limit(len + 4);
-        socket.read(headerBuffer);
-        headerBuffer.flip();
-        return Message.decode(headerBuffer);
     }
 
     void close() throws IOException {
@@ -0,0 +1,22 @@
+package org.lsst.ccs.visualization.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A sink which writes into direct (off-heap) memory. Positions are relative
+ * to the start of the image data. Windows are allocated lazily and are zero
+ * filled, so parts of the image which are never written read as zero.
+ *
+ * @author tonyj
+ */
+class OffHeapSink extends WindowedSink {
+
+    OffHeapSink(long length) {
+        super(0, length);
+    }
+
+    @Override
+    ByteBuffer createWindow(long windowStart, int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+}
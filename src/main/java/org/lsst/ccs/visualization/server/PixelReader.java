@@ -0,0 +1,124 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads pixels back from wherever the server is assembling (or has
+ * assembled) an image, so that parts of an image can be viewed without
+ * reopening and reading the fits file.
+ *
+ * @author tonyj
+ */
+interface PixelReader extends Closeable {
+
+    int getWidth();
+
+    int getHeight();
+
+    int getBitpix();
+
+    /**
+     * Read stored pixel data, as stored in the fits image.
+     *
+     * @param dst The buffer to fill. All remaining bytes are read.
+     * @param offset The offset in bytes from the first pixel of the image
+     * @throws IOException If an IO error occurs, or the data is no longer
+     * available.
+     */
+    void read(ByteBuffer dst, long offset) throws IOException;
+
+    /**
+     * Release any resources held by the reader.
+     */
+    @Override
+    default void close() {
+    }
+
+    /**
+     * Read a rectangular region of the image, optionally binned.
+     *
+     * @param x The first column of the region
+     * @param y The first row of the region
+     * @param width The width of the region
+     * @param height The height of the region
+     * @param binning The number of pixels in x and y averaged into each
+     * pixel of the result, 1 for no binning.
+     * @return The pixel values, indexed by [row][column]. Binned pixels are
+     * the mean of the (non NaN) pixels in the bin.
+     * @throws IOException If an IO error occurs
+     * @throws IllegalArgumentException If the region is not within the image
+     */
+    default float[][] cutout(int x, int y, int width, int height, int binning) throws IOException {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || binning < 1
+                || x + width > getWidth() || y + height > getHeight()) {
+            throw new IllegalArgumentException("Invalid region [" + x + ":" + (x + width) + "," + y + ":" + (y + height) + "] binning " + binning
+                    + " for image of size " + getWidth() + "x" + getHeight());
+        }
+        int bytesPerPixel = Math.abs(getBitpix()) / 8;
+        int binnedWidth = (width + binning - 1) / binning;
+        int binnedHeight = (height + binning - 1) / binning;
+        float[][] result = new float[binnedHeight][binnedWidth];
+        ByteBuffer row = ByteBuffer.allocate(bytesPerPixel * width);
+        float[] values = new float[width];
+        int[] counts = new int[binnedWidth];
+        for (int binnedRow = 0; binnedRow < binnedHeight; binnedRow++) {
+            float[] sums = result[binnedRow];
+            if (binning > 1) {
+                Arrays.fill(counts, 0);
+            }
+            for (int r = binnedRow * binning; r < Math.min(height, (binnedRow + 1) * binning); r++) {
+                row.clear();
+                read(row, bytesPerPixel * ((long) (y + r) * getWidth() + x));
+                toFloat(row, 0, values, width, getBitpix());
+                if (binning == 1) {
+                    System.arraycopy(values, 0, sums, 0, width);
+                    continue;
+                }
+                for (int i = 0; i < width; i++) {
+                    if (!Float.isNaN(values[i])) {
+                        sums[i / binning] += values[i];
+                        counts[i / binning]++;
+                    }
+                }
+            }
+            if (binning > 1) {
+                for (int i = 0; i < binnedWidth; i++) {
+                    sums[i] = counts[i] == 0 ? Float.NaN : sums[i] / counts[i];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Convert pixels stored as in a fits image to floating point values.
+     *
+     * @param src The stored pixels
+     * @param position The position in src of the first pixel
+     * @param values The array to fill
+     * @param n The number of pixels to convert
+     * @param bitpix The pixel type of the stored pixels
+     */
+    static void toFloat(ByteBuffer src, int position, float[] values, int n, int bitpix) {
+        switch (bitpix) {
+            case 16:
+                // Unsigned data, stored with BZERO=32768
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getShort(position + 2 * i) + 32768;
+                }
+                break;
+            case 32:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getInt(position + 4 * i);
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    values[i] = src.getFloat(position + 4 * i);
+                }
+        }
+    }
+}
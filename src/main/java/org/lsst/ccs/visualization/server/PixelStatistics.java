@@ -0,0 +1,186 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCardException;
+
+/**
+ * Accumulates statistics of the pixels of an image as they are placed, so
+ * that display limits are available without a second pass over the image.
+ * <p>
+ * Pixels placed concurrently are accumulated into separate partial
+ * histograms. Each call to {@link #add(ByteBuffer)} takes a partial
+ * histogram from a lock free queue, updates it without further
+ * synchronization, and returns it to the queue, so writers never wait for
+ * each other. The partial histograms are merged when the statistics are
+ * requested.
+ *
+ * @author tonyj
+ */
+class PixelStatistics {
+
+    /**
+     * The number of header cards written by {@link #addCards(Header)}.
+     */
+    static final int CARDS = 9;
+
+    private final int bitpix;
+    private final Queue<Partial> available = new ConcurrentLinkedQueue<>();
+    private final List<Partial> all = new CopyOnWriteArrayList<>();
+
+    PixelStatistics(int bitpix) {
+        this.bitpix = bitpix;
+    }
+
+    /**
+     * Add pixels.
+     *
+     * @param src The pixels, stored as in the fits image. All remaining whole
+     * pixels are added, the buffer position is not changed.
+     */
+    void add(ByteBuffer src) {
+        Partial partial = available.poll();
+        if (partial == null) {
+            partial = new Partial();
+            all.add(partial);
+        }
+        try {
+            partial.add(src, bitpix);
+        } finally {
+            available.add(partial);
+        }
+    }
+
+    /**
+     * Wrap a sink so that pixels written to it are also added to these
+     * statistics. The returned sink does not support views, since pixels read
+     * directly into the output would not be seen.
+     *
+     * @param sink The sink to wrap
+     * @return The wrapped sink
+     */
+    StridedWriter.Sink wrap(final StridedWriter.Sink sink) {
+        return new StridedWriter.Sink() {
+            @Override
+            public void write(ByteBuffer src, long position) throws IOException {
+                add(src);
+                sink.write(src, position);
+            }
+        };
+    }
+
+    /**
+     * Merge the partial histograms. If pixels are still being added the
+     * result includes some, but not necessarily all, of them.
+     *
+     * @return The statistics of the pixels added so far
+     */
+    ImageStatistics getStatistics() {
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        double sumSquares = 0;
+        long underflow = 0;
+        long overflow = 0;
+        long[] histogram = new long[ImageStatistics.BINS];
+        for (Partial partial : all) {
+            count += partial.count;
+            min = Math.min(min, partial.min);
+            max = Math.max(max, partial.max);
+            sum += partial.sum;
+            sumSquares += partial.sumSquares;
+            underflow += partial.underflow;
+            overflow += partial.overflow;
+            for (int bin = 0; bin < histogram.length; bin++) {
+                histogram[bin] += partial.histogram[bin];
+            }
+        }
+        return new ImageStatistics(count, min, max, sum, sumSquares, underflow, overflow, histogram);
+    }
+
+    /**
+     * Add the statistics to an image header. Does nothing if no pixels have
+     * been added.
+     *
+     * @param header The header
+     * @return The statistics which were added
+     * @throws HeaderCardException If the cards cannot be created
+     */
+    ImageStatistics addCards(Header header) throws HeaderCardException {
+        ImageStatistics statistics = getStatistics();
+        if (statistics.getCount() > 0) {
+            synchronized (header) {
+                header.addValue("DATAMIN", statistics.getMin(), "Minimum pixel value");
+                header.addValue("DATAMAX", statistics.getMax(), "Maximum pixel value");
+                header.addValue("DATAMEAN", statistics.getMean(), "Mean pixel value");
+                header.addValue("DATASTD", statistics.getStandardDeviation(), "Standard deviation of pixel values");
+                header.addValue("DATAMED", statistics.getMedian(), "Median pixel value");
+                header.addValue("DATAP01", statistics.getPercentile(1), "1st percentile of pixel values");
+                header.addValue("DATAP99", statistics.getPercentile(99), "99th percentile of pixel values");
+                header.addValue("ZSCALE1", statistics.getZScaleLow(), "Lower display limit (zscale)");
+                header.addValue("ZSCALE2", statistics.getZScaleHigh(), "Upper display limit (zscale)");
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * A partial histogram, only updated by one thread at a time.
+     */
+    private static class Partial {
+
+        private final int[] histogram = new int[ImageStatistics.BINS];
+        private long count;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+        private double sumSquares;
+        private long underflow;
+        private long overflow;
+
+        void add(ByteBuffer src, int bitpix) {
+            int position = src.position();
+            int limit = src.limit();
+            switch (bitpix) {
+                case 16:
+                    for (int i = position; i + 2 <= limit; i += 2) {
+                        add(src.getShort(i) + 32768);
+                    }
+                    break;
+                case 32:
+                    for (int i = position; i + 4 <= limit; i += 4) {
+                        add(src.getInt(i));
+                    }
+                    break;
+                default:
+                    for (int i = position; i + 4 <= limit; i += 4) {
+                        float value = src.getFloat(i);
+                        if (!Float.isNaN(value)) {
+                            add(value);
+                        }
+                    }
+            }
+        }
+
+        private void add(double value) {
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            sumSquares += value * value;
+            if (value < 0) {
+                underflow++;
+            } else if (value >= histogram.length) {
+                overflow++;
+            } else {
+                histogram[(int) value]++;
+            }
+        }
+    }
+}
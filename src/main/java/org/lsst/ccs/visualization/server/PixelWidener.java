@@ -0,0 +1,97 @@
+package org.lsst.ccs.visualization.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts packed unsigned 16 bit pixels to the pixel type of the stored
+ * image. Pixels are bulk copied into primitive arrays so that the conversion
+ * itself is a simple loop over arrays, which the JIT can vectorize, and the
+ * result is bulk copied to the output. Instances hold sizeable scratch arrays
+ * so are pooled rather than created per message.
+ *
+ * @author tonyj
+ */
+final class PixelWidener {
+
+    /**
+     * The maximum number of pixels converted per call.
+     */
+    static final int BLOCK_PIXELS = StridedWriter.BLOCK_SIZE / 4;
+    private static final int MAX_POOLED = 64;
+    private static final Queue<PixelWidener> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private final short[] packed = new short[BLOCK_PIXELS];
+    private int[] ints;
+    private float[] floats;
+
+    private PixelWidener() {
+    }
+
+    /**
+     * Convert as many whole pixels as possible from the source to the
+     * destination, advancing the position of both buffers.
+     *
+     * @param src The packed 16 bit pixels, in big endian order
+     * @param dst The output buffer
+     * @param bitpix The pixel type of the output
+     * @return The number of pixels converted
+     */
+    int widen(ByteBuffer src, ByteBuffer dst, int bitpix) {
+        int bytesPerPixel = Math.abs(bitpix) / 8;
+        int n = Math.min(BLOCK_PIXELS, Math.min(src.remaining() / 2, dst.remaining() / bytesPerPixel));
+        src.asShortBuffer().get(packed, 0, n);
+        src.position(src.position() + 2 * n);
+        switch (bitpix) {
+            case 16:
+                // Stored with BZERO=32768
+                for (int i = 0; i < n; i++) {
+                    packed[i] = (short) (packed[i] ^ 0x8000);
+                }
+                dst.asShortBuffer().put(packed, 0, n);
+                break;
+            case 32:
+                if (ints == null) {
+                    ints = new int[BLOCK_PIXELS];
+                }
+                for (int i = 0; i < n; i++) {
+                    ints[i] = packed[i] & 0xffff;
+                }
+                dst.asIntBuffer().put(ints, 0, n);
+                break;
+            case -32:
+                if (floats == null) {
+                    floats = new float[BLOCK_PIXELS];
+                }
+                for (int i = 0; i < n; i++) {
+                    floats[i] = packed[i] & 0xffff;
+                }
+                dst.asFloatBuffer().put(floats, 0, n);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported BITPIX " + bitpix);
+        }
+        dst.position(dst.position() + n * bytesPerPixel);
+        return n;
+    }
+
+    static PixelWidener borrow() {
+        PixelWidener widener = POOL.poll();
+        if (widener == null) {
+            return new PixelWidener();
+        }
+        POOLED.decrementAndGet();
+        return widener;
+    }
+
+    static void release(PixelWidener widener) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.add(widener);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+}
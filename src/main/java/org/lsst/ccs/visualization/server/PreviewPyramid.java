@@ -0,0 +1,233 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsException;
+import nom.tam.util.BufferedFile;
+
+/**
+ * Binned, reduced resolution copies of an image, updated incrementally as
+ * pixels are placed. Each level holds the sum and count of the pixels
+ * received so far in each bin, so a snapshot of the mean of each bin can be
+ * taken at any time while the image is still being received.
+ * <p>
+ * Pixels for different rows may be added concurrently. Each row of bins is
+ * guarded by its own lock, so connections only contend when they add pixels
+ * to the same row of bins at the same time.
+ *
+ * @author tonyj
+ */
+class PreviewPyramid {
+
+    /**
+     * The default binning factors.
+     */
+    static final int[] DEFAULT_FACTORS = {2, 4, 8};
+    /**
+     * The conventional suffix for preview files.
+     */
+    static final String SUFFIX = ".preview.fits";
+    private static final ThreadLocal<float[]> SCRATCH = new ThreadLocal<>();
+
+    private final int width;
+    private final int height;
+    private final int bitpix;
+    private final Level[] levels;
+
+    /**
+     * Create a pyramid for an image.
+     *
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param bitpix The pixel type of the image
+     * @param factors The binning factor of each level, each between 2 and
+     * 128.
+     */
+    PreviewPyramid(int width, int height, int bitpix, int... factors) {
+        this.width = width;
+        this.height = height;
+        this.bitpix = bitpix;
+        levels = new Level[factors.length];
+        for (int i = 0; i < factors.length; i++) {
+            if (factors[i] < 2 || factors[i] > 128) {
+                throw new IllegalArgumentException("Invalid binning factor " + factors[i]);
+            }
+            levels[i] = new Level(factors[i], width, height);
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The binning factors of the levels of this pyramid
+     */
+    int[] getFactors() {
+        int[] factors = new int[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            factors[i] = levels[i].factor;
+        }
+        return factors;
+    }
+
+    /**
+     * Add a run of pixels to all levels.
+     *
+     * @param src The pixels, stored as in the fits image. All remaining whole
+     * pixels are added, the buffer position is not changed.
+     * @param pixel The index in the image of the first pixel
+     */
+    void add(ByteBuffer src, long pixel) {
+        int bytesPerPixel = Math.abs(bitpix) / 8;
+        int nPixels = src.remaining() / bytesPerPixel;
+        int position = src.position();
+        float[] values = scratch();
+        while (nPixels > 0) {
+            int y = (int) (pixel / width);
+            int x = (int) (pixel % width);
+            if (y >= height) {
+                return;
+            }
+            int n = Math.min(nPixels, width - x);
+            PixelReader.toFloat(src, position, values, n, bitpix);
+            for (Level level : levels) {
+                level.add(values, x, y, n);
+            }
+            position += n * bytesPerPixel;
+            pixel += n;
+            nPixels -= n;
+        }
+    }
+
+    /**
+     * Wrap a sink so that pixels written to it are also added to this
+     * pyramid. The returned sink does not support views, since pixels read
+     * directly into the output would not be seen.
+     *
+     * @param sink The sink to wrap
+     * @param dataStart The position in the sink of the first pixel of the
+     * image
+     * @return The wrapped sink
+     */
+    StridedWriter.Sink wrap(final StridedWriter.Sink sink, final long dataStart) {
+        final int bytesPerPixel = Math.abs(bitpix) / 8;
+        return new StridedWriter.Sink() {
+            @Override
+            public void write(ByteBuffer src, long position) throws IOException {
+                add(src, (position - dataStart) / bytesPerPixel);
+                sink.write(src, position);
+            }
+        };
+    }
+
+    private float[] scratch() {
+        float[] values = SCRATCH.get();
+        if (values == null || values.length < width) {
+            values = new float[width];
+            SCRATCH.set(values);
+        }
+        return values;
+    }
+
+    /**
+     * Take a snapshot of one level.
+     *
+     * @param factor The binning factor of the level
+     * @return The mean of the pixels received so far in each bin, indexed by
+     * [row][column], with NaN for bins with no pixels yet, or
+     * <code>null</code> if there is no level with the given factor.
+     */
+    float[][] snapshot(int factor) {
+        for (Level level : levels) {
+            if (level.factor == factor) {
+                return level.snapshot();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write all levels to a fits file, one image per level, with the finest
+     * level in the primary HDU. Each image has a BINNING keyword giving its
+     * binning factor.
+     *
+     * @param file The file to write
+     * @throws IOException If an IO error occurs
+     */
+    void write(File file) throws IOException {
+        try (Fits fits = new Fits()) {
+            for (Level level : levels) {
+                BasicHDU<?> hdu = Fits.makeHDU(level.snapshot());
+                hdu.addValue("BINNING", level.factor, "Image pixels per preview pixel in x and y");
+                fits.addHDU(hdu);
+            }
+            try (BufferedFile bf = new BufferedFile(file, "rw")) {
+                fits.write(bf);
+            }
+        } catch (FitsException x) {
+            throw new IOException("Fits error while writing preview", x);
+        }
+    }
+
+    /**
+     * One binned level of the pyramid.
+     */
+    private static class Level {
+
+        private final int factor;
+        private final int width;
+        private final int height;
+        // A bin holds up to 128 * 128 pixels, whose sum needs more precision
+        // than a float, and whose count (including duplicates) can overflow a
+        // short
+        private final double[] sums;
+        private final int[] counts;
+        private final Object[] rowLocks;
+
+        Level(int factor, int imageWidth, int imageHeight) {
+            this.factor = factor;
+            width = (imageWidth + factor - 1) / factor;
+            height = (imageHeight + factor - 1) / factor;
+            sums = new double[width * height];
+            counts = new int[width * height];
+            rowLocks = new Object[height];
+            for (int i = 0; i < height; i++) {
+                rowLocks[i] = new Object();
+            }
+        }
+
+        void add(float[] values, int x, int y, int n) {
+            int row = y / factor;
+            int base = row * width;
+            synchronized (rowLocks[row]) {
+                for (int i = 0; i < n; i++) {
+                    int bin = base + (x + i) / factor;
+                    sums[bin] += values[i];
+                    counts[bin]++;
+                }
+            }
+        }
+
+        float[][] snapshot() {
+            float[][] result = new float[height][width];
+            for (int row = 0; row < height; row++) {
+                int base = row * width;
+                synchronized (rowLocks[row]) {
+                    for (int i = 0; i < width; i++) {
+                        int count = counts[base + i];
+                        result[row][i] = count == 0 ? Float.NaN : (float) (sums[base + i] / count);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.Message;
+
+/**
+ * A selector based alternative to one thread per connection. A small fixed
+ * pool of IO threads each own a selector, accepted connections are assigned
+ * to the IO threads round-robin. Frames are decoded without blocking, and once
+ * a complete message (including any data payload) has been received it is
+ * dispatched to the FitsFileManager.
+ * <p>
+ * IO threads never block waiting for a delayed start message, or for
+ * admission. Instead the connection is parked (stops reading) until the start
+ * message arrives, or the wait times out and the message is discarded, or
+ * until resources are released so that the message can be admitted. Data
+ * messages are tested as soon as their header has been decoded, so a payload
+ * is only read into memory once it has been admitted.
+ *
+ * @author tonyj
+ */
+class Reactor implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(Reactor.class.getName());
+    /**
+     * Payload buffers larger than this are released once their message has
+     * been handled, rather than being kept for the life of the connection.
+     */
+    static final int MAX_RETAINED_PAYLOAD = 1 << 20;
+    private final IOThread[] ioThreads;
+    private final AtomicInteger next = new AtomicInteger();
+
+    Reactor(FitsFileManager ffManager, int nThreads) throws IOException {
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("nThreads must be at least 1");
+        }
+        ioThreads = new IOThread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            ioThreads[i] = new IOThread("Ingest IO " + i, ffManager);
+            ioThreads[i].start();
+        }
+    }
+
+    void register(SocketChannel socket) throws IOException {
+        socket.shutdownOutput();
+        socket.configureBlocking(false);
+        IOThread thread = ioThreads[Math.floorMod(next.getAndIncrement(), ioThreads.length)];
+        thread.register(socket);
+    }
+
+    @Override
+    public void close() {
+        for (IOThread thread : ioThreads) {
+            thread.shutdown();
+        }
+    }
+
+    private static class IOThread extends Thread {
+
+        private final Selector selector;
+        private final FitsFileManager ffManager;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Connection> parked = new ArrayList<>();
+        private volatile boolean shutdown;
+
+        IOThread(String name, FitsFileManager ffManager) throws IOException {
+            super(name);
+            this.ffManager = ffManager;
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        void register(SocketChannel socket) {
+            pending.add(socket);
+            selector.wakeup();
+        }
+
+        /**
+         * Run a task on this IO thread. May be called from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            shutdown = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    selector.select(selectTimeout());
+                    for (SocketChannel socket; (socket = pending.poll()) != null;) {
+                        Connection connection = new Connection(socket, ffManager, this);
+                        try {
+                            connection.key = socket.register(selector, SelectionKey.OP_READ, connection);
+                            connection.opened();
+                        } catch (IOException ex) {
+                            LOGGER.log(Level.WARNING, "Unable to register socket " + socket, ex);
+                            connection.close();
+                        }
+                    }
+                    for (Runnable task; (task = tasks.poll()) != null;) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException ex) {
+                            LOGGER.log(Level.SEVERE, "Error running task in reactor thread " + getName(), ex);
+                        }
+                    }
+                    expireParked();
+                    Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                    while (i.hasNext()) {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && !connection.readable()) {
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException x) {
+                // OK, shutdown
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, "IOException in reactor thread " + getName(), ex);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                for (SocketChannel socket; (socket = pending.poll()) != null;) {
+                    new Connection(socket, ffManager, this).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "IOException closing selector", ex);
+                }
+            }
+        }
+
+        private long selectTimeout() {
+            if (parked.isEmpty()) {
+                return 0;
+            }
+            long now = System.currentTimeMillis();
+            long timeout = Long.MAX_VALUE;
+            for (Connection connection : parked) {
+                timeout = Math.min(timeout, connection.deadline - now);
+            }
+            return Math.max(1, timeout);
+        }
+
+        private void expireParked() {
+            if (parked.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Connection connection : new ArrayList<>(parked)) {
+                if (connection.deadline <= now) {
+                    connection.unpark(connection.parkCount, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Per connection state. Not thread safe, only accessed from the owning IO
+     * thread.
+     */
+    private static class Connection {
+
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+        private static final ByteBuffer NO_PAYLOAD = ByteBuffer.allocateDirect(0);
+        private final SocketChannel socket;
+        private final FitsFileManager ffManager;
+        private final IOThread ioThread;
+        private final IngestMetrics metrics;
+        private final String name;
+        private IngestMetrics.Rate received;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private SelectionKey key;
+        private DataMessage pendingData;
+        private boolean reserved;
+        private ByteBuffer payload = NO_PAYLOAD;
+        private final ByteBufferChannel payloadChannel = new ByteBufferChannel(EMPTY);
+        private Message parkedMessage;
+        private long parkCount;
+        private long deadline;
+
+        Connection(SocketChannel socket, FitsFileManager ffManager, IOThread ioThread) {
+            this.socket = socket;
+            this.ffManager = ffManager;
+            this.ioThread = ioThread;
+            this.metrics = ffManager.getMetrics();
+            this.name = String.valueOf(socket.socket().getRemoteSocketAddress());
+        }
+
+        /**
+         * Called once the connection has been registered with the selector.
+         */
+        void opened() {
+            received = metrics.connectionOpened(name);
+        }
+
+        /**
+         * Called when the socket is readable.
+         *
+         * @return <code>false</code> if the connection should be closed
+         */
+        boolean readable() {
+            try {
+                if (pendingData == null && decoder.read(socket) < 0) {
+                    return false;
+                }
+                return process();
+            } catch (IOException | RuntimeException ex) {
+                // Only this connection is affected, the IO thread carries on
+                LOGGER.log(Level.SEVERE, "Error handling message on socket " + socket, ex);
+                return false;
+            }
+        }
+
+        /**
+         * Dispatch as many messages as possible from the data already read.
+         *
+         * @return <code>false</code> if the connection should be closed
+         */
+        private boolean process() throws IOException {
+            while (parkedMessage == null) {
+                if (pendingData != null) {
+                    decoder.drainTo(payload);
+                    if (payload.hasRemaining() && socket.read(payload) < 0) {
+                        return false;
+                    }
+                    if (payload.hasRemaining()) {
+                        return true;
+                    }
+                    payload.flip();
+                    DataMessage data = pendingData;
+                    pendingData = null;
+                    if (reserved) {
+                        reserved = false;
+                        ffManager.handleReservedData(data, payloadChannel.reset(payload));
+                    } else {
+                        ffManager.handleMessageNow(data, payloadChannel.reset(payload));
+                    }
+                    releasePayload();
+                    continue;
+                }
+                Message message = decoder.next();
+                if (message == null) {
+                    return true;
+                }
+                int dataLength = message instanceof DataMessage ? ((DataMessage) message).getDataLength() : 0;
+                metrics.received(received, decoder.getFrameLength() + dataLength);
+                LOGGER.log(Level.FINE, "Received: {0}", message);
+                if (dataLength > 0) {
+                    pendingData = (DataMessage) message;
+                    if (isReady(pendingData)) {
+                        startPayload(true);
+                    } else {
+                        park(pendingData);
+                    }
+                } else if (isReady(message)) {
+                    ffManager.handleMessageNow(message, payloadChannel.reset(EMPTY));
+                } else {
+                    park(message);
+                }
+            }
+            return true;
+        }
+
+        private boolean isReady(Message message) {
+            return ffManager.isReady(message) || ffManager.whenReady(message, new Unparker(++parkCount));
+        }
+
+        /**
+         * Prepare to read the payload of the pending data message.
+         *
+         * @param reserve If <code>true</code> the payload is reserved against
+         * the in flight limit before it is read. Otherwise we have given up
+         * waiting for the start message, and the message will be discarded.
+         */
+        private void startPayload(boolean reserve) {
+            int dataLength = pendingData.getDataLength();
+            if (reserve) {
+                ffManager.reserveData(pendingData);
+                reserved = true;
+            }
+            if (payload.capacity() < dataLength) {
+                payload = ByteBuffer.allocateDirect(dataLength);
+            }
+            payload.clear();
+            payload.limit(dataLength);
+        }
+
+        /**
+         * Stop reading until the start message arrives, or we give up waiting
+         * for it, or until the message can be admitted. A data message is
+         * parked before its payload is read, the payload stays in the socket
+         * (and TCP flow control slows down the client) meanwhile.
+         */
+        private void park(Message message) {
+            parkedMessage = message;
+            deadline = ffManager.isWaitingForStart(message)
+                    ? System.currentTimeMillis() + ffManager.getStartWaitMillis(message.getImageName()) : Long.MAX_VALUE;
+            key.interestOps(0);
+            ioThread.parked.add(this);
+        }
+
+        /**
+         * Drop a large payload buffer once its message has been handled, so
+         * that each connection only keeps a buffer large enough for typical
+         * messages.
+         */
+        private void releasePayload() {
+            if (payload.capacity() > MAX_RETAINED_PAYLOAD) {
+                payload = NO_PAYLOAD;
+                payloadChannel.reset(EMPTY);
+            }
+        }
+
+        /**
+         * Resume a parked connection.
+         *
+         * @param parkId Identifies the wait being ended
+         * @param expired <code>true</code> if the deadline has passed, in
+         * which case the message is handled (or discarded) without testing
+         * whether it is ready.
+         */
+        private void unpark(long parkId, boolean expired) {
+            if (parkedMessage == null || parkId != parkCount || !key.isValid()) {
+                return;
+            }
+            Message message = parkedMessage;
+            if (expired && !ffManager.isWaitingForStart(message)) {
+                // The start message is waiting for admission, or has just
+                // arrived, in either case its listener will unpark us
+                deadline = Long.MAX_VALUE;
+                return;
+            }
+            ioThread.parked.remove(this);
+            parkedMessage = null;
+            boolean ok;
+            try {
+                if (message == pendingData) {
+                    // Parked before reading the payload
+                    if (expired || isReady(message)) {
+                        startPayload(!expired);
+                    } else {
+                        park(message);
+                    }
+                } else if (expired || isReady(message)) {
+                    ffManager.handleMessageNow(message, payloadChannel.reset(EMPTY));
+                } else {
+                    park(message);
+                }
+                if (parkedMessage == null) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    ok = process();
+                } else {
+                    ok = true;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, "Error handling message on socket " + socket, ex);
+                ok = false;
+            }
+            if (!ok) {
+                close();
+            }
+        }
+
+        /**
+         * Called from the thread which receives the start message, or which
+         * releases resources, hands off to the IO thread which owns the
+         * connection.
+         */
+        private class Unparker implements Runnable {
+
+            private final long parkId;
+
+            Unparker(long parkId) {
+                this.parkId = parkId;
+            }
+
+            @Override
+            public void run() {
+                ioThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        unpark(parkId, false);
+                    }
+                });
+            }
+        }
+
+        void close() {
+            ioThread.parked.remove(this);
+            if (parkedMessage != null) {
+                ffManager.cancelWait(parkedMessage);
+            }
+            if (reserved) {
+                reserved = false;
+                ffManager.releaseData(pendingData);
+            }
+            if (received != null) {
+                metrics.connectionClosed(name);
+            }
+            try {
+                LOGGER.log(Level.FINE, "Closing connection to : {0}", socket);
+                socket.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "IOException closing socket " + socket, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.lsst.ccs.visualization.message.DataMessage;
+
+/**
+ * Copies (possibly strided) pixel data from an input channel to its target
+ * location. Data is read from the input in large blocks into a reusable direct
+ * buffer, and each row in the block is then scattered to its position in the
+ * output. Contiguous data is treated as a single long row. This replaces one
+ * read (and write) per row with one read per block, so strided and
+ * contiguous data are handled at similar speed.
+ * <p>
+ * If the input is already in memory (a {@link ByteBufferChannel}) rows are
+ * scattered directly from the input buffer without an intermediate copy.
+ * <p>
+ * Packed 16 bit input is widened to the pixel type of the output block by
+ * block, before being scattered.
+ *
+ * @author tonyj
+ */
+final class StridedWriter {
+
+    /**
+     * Where rows are written to.
+     */
+    interface Sink {
+
+        /**
+         * Write all remaining bytes of the source at the given position.
+         *
+         * @param src The bytes to write
+         * @param position The absolute position in the output
+         * @throws IOException If an IO error occurs
+         */
+        void write(ByteBuffer src, long position) throws IOException;
+
+        /**
+         * Optionally provide a writable view of the output, so that data can
+         * be read directly into it without an intermediate copy.
+         *
+         * @param position The absolute position in the output
+         * @param maxLength The maximum number of bytes required
+         * @return A view starting at position, of at most maxLength bytes, or
+         * <code>null</code> if views are not supported.
+         * @throws IOException If an IO error occurs
+         */
+        default ByteBuffer view(long position, long maxLength) throws IOException {
+            return null;
+        }
+
+        /**
+         * @return <code>true</code> if this sink supports views.
+         */
+        default boolean hasViews() {
+            return false;
+        }
+    }
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+    /**
+     * Rows at least this long are read directly into the output, if the sink
+     * supports it. Shorter rows are read in blocks, to avoid one read per row.
+     */
+    static final int DIRECT_READ_THRESHOLD = BLOCK_SIZE / 4;
+    private static final int MAX_POOLED = 64;
+    private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private StridedWriter() {
+    }
+
+    /**
+     * Copy the payload of a data message from the input to the sink, taking
+     * account of the message's encoding and compression.
+     *
+     * @param in The input channel
+     * @param sink The output
+     * @param position The position in the output of the first pixel of the
+     * image
+     * @param data The data message
+     * @param bitpix The pixel type of the output
+     * @return The number of pixels written
+     * @throws IOException If an IO error occurs, or the data is invalid
+     */
+    static long write(ReadableByteChannel in, Sink sink, long position, DataMessage data, int bitpix) throws IOException {
+        if (data.getDataLength() == 0) {
+            return 0;
+        }
+        long bytesPerPixel = Math.abs(bitpix) / 8;
+        position += bytesPerPixel * data.getOffset();
+        long rowBytes = bytesPerPixel * data.getStepLength();
+        long strideBytes = bytesPerPixel * data.getStepOffset();
+        if (data.getCompression() != DataMessage.Compression.NONE) {
+            return CompressedDataWriter.write(in, sink, position, rowBytes, strideBytes, data, bitpix);
+        } else if (data.getEncoding() == DataMessage.Encoding.PACKED_16) {
+            writePacked16(in, sink, position, rowBytes, strideBytes, data.getDataLength(), bitpix);
+            return data.getDataLength() / 2;
+        } else {
+            write(in, sink, position, rowBytes, strideBytes, data.getDataLength(), (int) bytesPerPixel);
+            return data.getDataLength() / bytesPerPixel;
+        }
+    }
+
+    /**
+     * Copy data from the input to the sink.
+     *
+     * @param in The input channel
+     * @param sink The output
+     * @param position The position in the output of the first byte
+     * @param rowBytes The number of contiguous bytes in each row, or 0 if the
+     * data is contiguous
+     * @param strideBytes The distance in the output between the start of each
+     * row
+     * @param length The total number of bytes to copy
+     * @throws IOException If an IO error occurs, or the input ends before
+     * <code>length</code> bytes have been read.
+     */
+    static void write(ReadableByteChannel in, Sink sink, long position, long rowBytes, long strideBytes, long length) throws IOException {
+        write(in, sink, position, rowBytes, strideBytes, length, 1);
+    }
+
+    /**
+     * Copy data from the input to the sink, only passing whole pixels to the
+     * sink (so the sink can interpret the bytes it is given).
+     *
+     * @param in The input channel
+     * @param sink The output
+     * @param position The position in the output of the first byte
+     * @param rowBytes The number of contiguous bytes in each row, or 0 if the
+     * data is contiguous
+     * @param strideBytes The distance in the output between the start of each
+     * row
+     * @param length The total number of bytes to copy
+     * @param bytesPerPixel The size of each pixel
+     * @throws IOException If an IO error occurs, or the input ends before
+     * <code>length</code> bytes have been read.
+     */
+    static void write(ReadableByteChannel in, Sink sink, long position, long rowBytes, long strideBytes, long length, int bytesPerPixel) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (rowBytes <= 0 || rowBytes > length) {
+            rowBytes = length;
+        }
+        Scatter scatter = new Scatter(sink, position, rowBytes, strideBytes, 0);
+        if (in instanceof ByteBufferChannel) {
+            ByteBuffer src = ((ByteBufferChannel) in).remaining(length);
+            if (src.remaining() < length) {
+                throw new EOFException("Payload shorter than data length");
+            }
+            scatter.write(src);
+            return;
+        }
+        if (rowBytes >= DIRECT_READ_THRESHOLD && sink.hasViews()) {
+            readDirect(in, sink, position, rowBytes, strideBytes, length);
+            return;
+        }
+        ByteBuffer buffer = borrow();
+        try {
+            long remaining = length;
+            buffer.clear();
+            while (remaining > 0) {
+                buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + remaining));
+                int n = in.read(buffer);
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of stream while reading data");
+                }
+                remaining -= n;
+                buffer.flip();
+                // Keep any partial trailing pixel for the next read
+                int limit = buffer.limit();
+                buffer.limit(remaining > 0 ? limit - limit % bytesPerPixel : limit);
+                scatter.write(buffer);
+                buffer.limit(limit);
+                buffer.compact();
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Copy packed unsigned 16 bit pixels from the input to the sink, widening
+     * them to the given pixel type.
+     *
+     * @param in The input channel
+     * @param sink The output
+     * @param position The position in the output of the first pixel
+     * @param rowBytes The number of contiguous output bytes in each row, or 0
+     * if the data is contiguous
+     * @param strideBytes The distance in the output between the start of each
+     * row
+     * @param length The number of (packed) bytes to read from the input
+     * @param bitpix The pixel type of the output
+     * @throws IOException If an IO error occurs, the length is not a whole
+     * number of pixels, or the input ends before <code>length</code> bytes
+     * have been read.
+     */
+    static void writePacked16(ReadableByteChannel in, Sink sink, long position, long rowBytes, long strideBytes, long length, int bitpix) throws IOException {
+        if (length % 2 != 0) {
+            throw new IOException("Packed data length " + length + " is not a whole number of pixels");
+        }
+        if (length == 0) {
+            return;
+        }
+        long outLength = length / 2 * (Math.abs(bitpix) / 8);
+        if (rowBytes <= 0 || rowBytes > outLength) {
+            rowBytes = outLength;
+        }
+        Scatter scatter = new Scatter(sink, position, rowBytes, strideBytes, 0);
+        PixelWidener widener = PixelWidener.borrow();
+        ByteBuffer out = borrow();
+        try {
+            if (in instanceof ByteBufferChannel) {
+                ByteBuffer src = ((ByteBufferChannel) in).remaining(length);
+                if (src.remaining() < length) {
+                    throw new EOFException("Payload shorter than data length");
+                }
+                widen(widener, src, out, bitpix, scatter);
+                return;
+            }
+            ByteBuffer buffer = borrow();
+            try {
+                // Each block of input must fit in the output block once widened
+                int blockLength = 2 * PixelWidener.BLOCK_PIXELS;
+                long remaining = length;
+                buffer.clear();
+                while (remaining > 0) {
+                    buffer.limit((int) Math.min(blockLength, buffer.position() + remaining));
+                    int n = in.read(buffer);
+                    if (n < 0) {
+                        throw new EOFException("Unexpected end of stream while reading data");
+                    }
+                    remaining -= n;
+                    buffer.flip();
+                    widen(widener, buffer, out, bitpix, scatter);
+                    // Keeps any odd trailing byte for the next read
+                    buffer.compact();
+                }
+            } finally {
+                release(buffer);
+            }
+        } finally {
+            release(out);
+            PixelWidener.release(widener);
+        }
+    }
+
+    /**
+     * Scatter data which is already in memory, and which may start part way
+     * through the output. Used when parts of the data are placed
+     * concurrently.
+     *
+     * @param src The data to write
+     * @param sink The output
+     * @param position The position in the output of the first byte of the
+     * complete data
+     * @param rowBytes The number of contiguous bytes in each row (not 0)
+     * @param strideBytes The distance in the output between the start of each
+     * row
+     * @param skip The number of bytes of the complete data which precede src
+     * @throws IOException If an IO error occurs
+     */
+    static void scatter(ByteBuffer src, Sink sink, long position, long rowBytes, long strideBytes, long skip) throws IOException {
+        new Scatter(sink, position, rowBytes, strideBytes, skip).write(src);
+    }
+
+    /**
+     * As {@link #scatter(ByteBuffer, Sink, long, long, long, long)}, but
+     * widening packed 16 bit pixels to the given pixel type. The row bytes,
+     * stride and skip are in output bytes.
+     */
+    static void scatterPacked16(ByteBuffer src, Sink sink, long position, long rowBytes, long strideBytes, long skip, int bitpix) throws IOException {
+        Scatter scatter = new Scatter(sink, position, rowBytes, strideBytes, skip);
+        PixelWidener widener = PixelWidener.borrow();
+        ByteBuffer out = borrow();
+        try {
+            widen(widener, src, out, bitpix, scatter);
+        } finally {
+            release(out);
+            PixelWidener.release(widener);
+        }
+    }
+
+    private static void widen(PixelWidener widener, ByteBuffer src, ByteBuffer out, int bitpix, Scatter scatter) throws IOException {
+        while (src.remaining() >= 2) {
+            out.clear();
+            widener.widen(src, out, bitpix);
+            out.flip();
+            scatter.write(out);
+        }
+    }
+
+    /**
+     * Read long rows directly into views provided by the sink.
+     */
+    private static void readDirect(ReadableByteChannel in, Sink sink, long position, long rowBytes, long strideBytes, long length) throws IOException {
+        long remaining = length;
+        long rowRemaining = rowBytes;
+        while (remaining > 0) {
+            ByteBuffer view = sink.view(position, Math.min(rowRemaining, remaining));
+            int n = view.remaining();
+            while (view.hasRemaining()) {
+                if (in.read(view) < 0) {
+                    throw new EOFException("Unexpected end of stream while reading data");
+                }
+            }
+            remaining -= n;
+            rowRemaining -= n;
+            position += n;
+            if (rowRemaining == 0) {
+                position += strideBytes - rowBytes;
+                rowRemaining = rowBytes;
+            }
+        }
+    }
+
+    /**
+     * A sink which writes to a file channel using positional writes.
+     *
+     * @param channel The file channel
+     * @return The sink
+     */
+    static Sink of(final FileChannel channel) {
+        return new Sink() {
+            @Override
+            public void write(ByteBuffer src, long position) throws IOException {
+                while (src.hasRemaining()) {
+                    position += channel.write(src, position);
+                }
+            }
+        };
+    }
+
+    /**
+     * Borrow a direct buffer of {@link #BLOCK_SIZE} bytes from the pool.
+     *
+     * @return The buffer, which must be returned using
+     * {@link #release(ByteBuffer)}
+     */
+    static ByteBuffer borrow() {
+        ByteBuffer bb = POOL.poll();
+        if (bb == null) {
+            return ByteBuffer.allocateDirect(BLOCK_SIZE);
+        }
+        POOLED.decrementAndGet();
+        return bb;
+    }
+
+    static void release(ByteBuffer bb) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.add(bb);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    /**
+     * Tracks the current output position as successive blocks are scattered.
+     */
+    private static class Scatter {
+
+        private final Sink sink;
+        private final long rowBytes;
+        private final long gap;
+        private long position;
+        private long rowRemaining;
+
+        Scatter(Sink sink, long position, long rowBytes, long strideBytes, long skip) {
+            this.sink = sink;
+            this.position = position + skip / rowBytes * strideBytes + skip % rowBytes;
+            this.rowBytes = rowBytes;
+            this.gap = strideBytes - rowBytes;
+            this.rowRemaining = rowBytes - skip % rowBytes;
+        }
+
+        void write(ByteBuffer block) throws IOException {
+            int limit = block.limit();
+            while (block.hasRemaining()) {
+                int n = (int) Math.min(rowRemaining, block.remaining());
+                block.limit(block.position() + n);
+                sink.write(block, position);
+                block.limit(limit);
+                position += n;
+                rowRemaining -= n;
+                if (rowRemaining == 0) {
+                    position += gap;
+                    rowRemaining = rowBytes;
+                }
+            }
+        }
+    }
+}
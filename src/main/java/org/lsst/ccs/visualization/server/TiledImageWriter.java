@@ -0,0 +1,238 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPOutputStream;
+import nom.tam.fits.FitsFactory;
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCard;
+import nom.tam.fits.HeaderCardException;
+import nom.tam.util.Cursor;
+import org.lsst.ccs.visualization.message.RiceCodec;
+
+/**
+ * Writes a complete image as a tile compressed fits file, following the fits
+ * tiled image compression convention. The image is stored in a binary table
+ * extension with one compressed tile (one image row) per table row. Integer
+ * images are Rice compressed (RICE_1), floating point images are gzipped
+ * (GZIP_1).
+ * <p>
+ * Tiles are compressed in parallel on the common fork join pool, and then
+ * written sequentially.
+ *
+ * @author tonyj
+ */
+final class TiledImageWriter {
+
+    /**
+     * The conventional suffix for tile compressed files.
+     */
+    static final String SUFFIX = ".fz";
+    private static final int TILES_PER_TASK = 16;
+    private static final int CARD_SIZE = HeaderCard.FITS_HEADER_CARD_SIZE;
+    private static final Set<String> STRUCTURAL_KEYS = new HashSet<>(Arrays.asList(
+            "SIMPLE", "XTENSION", "BITPIX", "NAXIS", "NAXIS1", "NAXIS2", "EXTEND", "PCOUNT", "GCOUNT", "END"));
+
+    private TiledImageWriter() {
+    }
+
+    /**
+     * Compress an image and write it to a file.
+     *
+     * @param file The file to create
+     * @param imageHeader The header of the uncompressed image. Any non
+     * structural cards are copied to the compressed image header.
+     * @param data The channel containing the uncompressed pixels, stored as in
+     * a fits image
+     * @param dataStart The position in the channel of the first pixel
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param bitpix The pixel type of the image
+     * @throws IOException If an IO error occurs
+     */
+    static void write(File file, Header imageHeader, FileChannel data, long dataStart, int width, int height, int bitpix) throws IOException {
+        final byte[][] tiles = new byte[height][];
+        CompressTiles task = new CompressTiles(tiles, data, dataStart, width, bitpix, 0, height);
+        ForkJoinPool.commonPool().invoke(task);
+        if (task.error != null) {
+            throw task.error;
+        }
+        int maxLength = 0;
+        long heapSize = 0;
+        for (byte[] tile : tiles) {
+            maxLength = Math.max(maxLength, tile.length);
+            heapSize += tile.length;
+        }
+        if (heapSize > Integer.MAX_VALUE) {
+            throw new IOException("Compressed image too large: " + heapSize);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024))) {
+            List<HeaderCard> primary = new ArrayList<>();
+            primary.add(new HeaderCard("SIMPLE", true, "Standard fits"));
+            primary.add(new HeaderCard("BITPIX", 8, "No data in primary HDU"));
+            primary.add(new HeaderCard("NAXIS", 0, ""));
+            primary.add(new HeaderCard("EXTEND", true, "Compressed image in extension"));
+            writeHeader(out, primary);
+
+            List<HeaderCard> cards = new ArrayList<>();
+            cards.add(new HeaderCard("XTENSION", "BINTABLE", "Binary table extension"));
+            cards.add(new HeaderCard("BITPIX", 8, ""));
+            cards.add(new HeaderCard("NAXIS", 2, ""));
+            cards.add(new HeaderCard("NAXIS1", 8, "Bytes per row (array descriptor)"));
+            cards.add(new HeaderCard("NAXIS2", height, "Number of tiles"));
+            cards.add(new HeaderCard("PCOUNT", heapSize, "Size of heap"));
+            cards.add(new HeaderCard("GCOUNT", 1, ""));
+            cards.add(new HeaderCard("TFIELDS", 1, ""));
+            cards.add(new HeaderCard("TTYPE1", "COMPRESSED_DATA", ""));
+            cards.add(new HeaderCard("TFORM1", "1PB(" + maxLength + ")", ""));
+            cards.add(new HeaderCard("ZIMAGE", true, "Tile compressed image"));
+            cards.add(new HeaderCard("ZBITPIX", bitpix, ""));
+            cards.add(new HeaderCard("ZNAXIS", 2, ""));
+            cards.add(new HeaderCard("ZNAXIS1", width, ""));
+            cards.add(new HeaderCard("ZNAXIS2", height, ""));
+            cards.add(new HeaderCard("ZTILE1", width, "One image row per tile"));
+            cards.add(new HeaderCard("ZTILE2", 1, ""));
+            if (bitpix > 0) {
+                cards.add(new HeaderCard("ZCMPTYPE", "RICE_1", ""));
+                cards.add(new HeaderCard("ZNAME1", "BLOCKSIZE", ""));
+                cards.add(new HeaderCard("ZVAL1", RiceCodec.BLOCK_SIZE, ""));
+                cards.add(new HeaderCard("ZNAME2", "BYTEPIX", ""));
+                cards.add(new HeaderCard("ZVAL2", bitpix / 8, ""));
+            } else {
+                cards.add(new HeaderCard("ZCMPTYPE", "GZIP_1", ""));
+            }
+            synchronized (imageHeader) {
+                for (Cursor<String, HeaderCard> i = imageHeader.iterator(); i.hasNext();) {
+                    HeaderCard card = i.next();
+                    if (card.getKey() != null && !STRUCTURAL_KEYS.contains(card.getKey())) {
+                        cards.add(card);
+                    }
+                }
+            }
+            writeHeader(out, cards);
+
+            int heapOffset = 0;
+            for (byte[] tile : tiles) {
+                out.writeInt(tile.length);
+                out.writeInt(heapOffset);
+                heapOffset += tile.length;
+            }
+            for (byte[] tile : tiles) {
+                out.write(tile);
+            }
+            pad(out, 8L * height + heapSize, (byte) 0);
+        } catch (HeaderCardException x) {
+            throw new IOException("Fits error while writing compressed image", x);
+        }
+    }
+
+    private static void writeHeader(OutputStream out, List<HeaderCard> cards) throws IOException {
+        for (HeaderCard card : cards) {
+            writeCard(out, card.toString());
+        }
+        writeCard(out, "END");
+        pad(out, (long) (cards.size() + 1) * CARD_SIZE, (byte) ' ');
+    }
+
+    private static void writeCard(OutputStream out, String card) throws IOException {
+        byte[] bytes = Arrays.copyOf(card.getBytes(StandardCharsets.US_ASCII), CARD_SIZE);
+        for (int i = card.length(); i < CARD_SIZE; i++) {
+            bytes[i] = ' ';
+        }
+        out.write(bytes);
+    }
+
+    private static void pad(OutputStream out, long written, byte fill) throws IOException {
+        int remainder = (int) (written % FitsFactory.FITS_BLOCK_SIZE);
+        if (remainder > 0) {
+            byte[] padding = new byte[FitsFactory.FITS_BLOCK_SIZE - remainder];
+            Arrays.fill(padding, fill);
+            out.write(padding);
+        }
+    }
+
+    /**
+     * Compresses a range of tiles, splitting the range until it is small
+     * enough to compress directly.
+     */
+    private static class CompressTiles extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final byte[][] tiles;
+        private final FileChannel data;
+        private final long dataStart;
+        private final int width;
+        private final int bitpix;
+        private final int first;
+        private final int last;
+        private volatile IOException error;
+
+        CompressTiles(byte[][] tiles, FileChannel data, long dataStart, int width, int bitpix, int first, int last) {
+            this.tiles = tiles;
+            this.data = data;
+            this.dataStart = dataStart;
+            this.width = width;
+            this.bitpix = bitpix;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > TILES_PER_TASK) {
+                int middle = (first + last) >>> 1;
+                CompressTiles left = new CompressTiles(tiles, data, dataStart, width, bitpix, first, middle);
+                CompressTiles right = new CompressTiles(tiles, data, dataStart, width, bitpix, middle, last);
+                invokeAll(left, right);
+                error = left.error != null ? left.error : right.error;
+                return;
+            }
+            try {
+                int bytesPerPixel = Math.abs(bitpix) / 8;
+                int tileBytes = bytesPerPixel * width;
+                ByteBuffer raw = ByteBuffer.allocate(tileBytes);
+                ByteBuffer compressed = ByteBuffer.allocate(RiceCodec.maxCompressedLength(width, bytesPerPixel));
+                for (int tile = first; tile < last; tile++) {
+                    raw.clear();
+                    long position = dataStart + (long) tile * tileBytes;
+                    while (raw.hasRemaining()) {
+                        int n = data.read(raw, position);
+                        if (n < 0) {
+                            throw new IOException("Unexpected end of file reading tile " + tile);
+                        }
+                        position += n;
+                    }
+                    raw.flip();
+                    if (bitpix > 0) {
+                        compressed.clear();
+                        RiceCodec.compress(raw, bytesPerPixel, compressed);
+                        tiles[tile] = Arrays.copyOf(compressed.array(), compressed.position());
+                    } else {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream(tileBytes);
+                        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                            gzip.write(raw.array(), 0, tileBytes);
+                        }
+                        tiles[tile] = bytes.toByteArray();
+                    }
+                }
+            } catch (IOException x) {
+                error = x;
+            }
+        }
+    }
+}
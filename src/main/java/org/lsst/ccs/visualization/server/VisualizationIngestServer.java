@@ -7,11 +7,18 @@ import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * The main class for the ingest server.
@@ -22,10 +29,137 @@ public class VisualizationIngestServer implements Runnable {
 
     private final SocketAddress address;
     private final FitsFileManager ffManager;
+    private final IOMode mode;
+    private final int nIOThreads;
+    private Reactor reactor;
+    private ExecutorService connectionExecutor;
+    private boolean ownsExecutor = true;
     private static final Logger LOGGER = Logger.getLogger(VisualizationIngestServer.class.getName());
     private ServerSocketChannel server;
     private Set<MessageHandler> weakMessageSet = Collections.newSetFromMap(new WeakHashMap<MessageHandler,Boolean>());
 
+    /**
+     * The strategy used for reading from incoming connections.
+     */
+    public enum IOMode {
+        /**
+         * Each connection is handled by its own thread, using blocking IO.
+         */
+        THREADED,
+        /**
+         * Each connection is handled by its own virtual thread, using blocking
+         * IO. Requires Java 21 or later.
+         */
+        VIRTUAL_THREADS,
+        /**
+         * Connections are multiplexed over a small pool of IO threads using
+         * non-blocking IO and selectors.
+         */
+        REACTOR
+    }
+
+    /**
+     * How received images are stored.
+     */
+    public enum StorageMode {
+        /**
+         * Data is written to the fits file using positional writes.
+         */
+        FILE,
+        /**
+         * The data region of the fits file is memory mapped, and data is
+         * copied directly into the mapping.
+         */
+        MAPPED,
+        /**
+         * Images are assembled in off-heap memory, and optionally written to
+         * disk after they are complete.
+         *
+         * @see VisualizationIngestServer#setMemoryStore(long, boolean)
+         */
+        MEMORY
+    }
+
+    /**
+     * How completed images are made durable before they are reported as
+     * finalized.
+     */
+    public enum Durability {
+        /**
+         * Files are closed, but not forced to disk. Fastest, but recently
+         * completed images may be lost if the machine crashes.
+         */
+        NONE,
+        /**
+         * Each image is forced to disk as soon as it is closed.
+         */
+        FSYNC,
+        /**
+         * Images closed within a short window are forced to disk together at
+         * the end of the window, amortizing the cost of the flush over
+         * several images at the cost of some latency.
+         */
+        GROUP_COMMIT
+    }
+
+    /**
+     * Why an image was considered complete.
+     */
+    public enum Completion {
+        /**
+         * Every pixel of the image was received. Any remaining end messages
+         * for the image are ignored.
+         */
+        COVERAGE,
+        /**
+         * End messages were received from all of the expected clients.
+         */
+        END,
+        /**
+         * No messages were received for the image for too long.
+         */
+        IDLE,
+        /**
+         * The server was shut down while the image was being received.
+         */
+        SHUTDOWN
+    }
+
+    /**
+     * Receives notification when images are complete, before they are
+     * finalized.
+     */
+    public interface CompletionListener {
+
+        /**
+         * Called when an image is complete. Called from the thread which
+         * handled the last message, so should not block.
+         *
+         * @param imageName The name of the image
+         * @param reason Why the image is complete
+         * @param coverage The fraction of the pixels of the image which were
+         * received, or NaN if not known.
+         */
+        void imageCompleted(String imageName, Completion reason, double coverage);
+    }
+
+    /**
+     * Receives notification when images have been finalized.
+     */
+    public interface FinalizationListener {
+
+        /**
+         * Called once an image has been closed, and is durable according to
+         * the current {@link Durability} policy. Called from a finalizer
+         * thread, so should not block.
+         *
+         * @param imageName The name of the image
+         * @param error <code>null</code> if the image was finalized
+         * successfully, otherwise the error which occurred.
+         */
+        void imageFinalized(String imageName, Throwable error);
+    }
+
     /**
      * Create the ingest server
      *
@@ -37,12 +171,62 @@ public class VisualizationIngestServer implements Runnable {
      * <a href="https://en.wikipedia.org/wiki/IOPS">iops</a>.
      */
     public VisualizationIngestServer(int port, File dir) {
-        this(new InetSocketAddress(port), new FitsFileManager(dir));
+        this(port, dir, IOMode.THREADED, 0);
+    }
+
+    /**
+     * Create the ingest server with the given IO mode.
+     *
+     * @param port The port on which the ingest server will listen
+     * @param dir The directory where received file will be placed.
+     * @param mode The strategy used for reading from incoming connections
+     * @param nIOThreads The number of IO threads to use in
+     * {@link IOMode#REACTOR} mode. Ignored in other modes.
+     * @see #VisualizationIngestServer(int, java.io.File)
+     */
+    public VisualizationIngestServer(int port, File dir, IOMode mode, int nIOThreads) {
+        this(new InetSocketAddress(port), new FitsFileManager(dir), mode, nIOThreads);
+    }
+
+    /**
+     * Create the ingest server, handling each connection with blocking IO as
+     * a task submitted to the given executor. The executor must be able to
+     * run a task for each open connection at the same time. It is not shut
+     * down by {@link #shutdown()}.
+     *
+     * @param port The port on which the ingest server will listen
+     * @param dir The directory where received file will be placed.
+     * @param connectionExecutor The executor used to handle connections
+     * @see IOMode
+     */
+    public VisualizationIngestServer(int port, File dir, ExecutorService connectionExecutor) {
+        this(new InetSocketAddress(port), new FitsFileManager(dir), connectionExecutor);
     }
 
     VisualizationIngestServer(SocketAddress address, FitsFileManager ffManager) {
+        this(address, ffManager, IOMode.THREADED, 0);
+    }
+
+    VisualizationIngestServer(SocketAddress address, FitsFileManager ffManager, ExecutorService connectionExecutor) {
+        this(address, ffManager, IOMode.THREADED, 0);
+        if (connectionExecutor == null) {
+            throw new IllegalArgumentException("connectionExecutor must not be null");
+        }
+        this.connectionExecutor = connectionExecutor;
+        this.ownsExecutor = false;
+    }
+
+    VisualizationIngestServer(SocketAddress address, FitsFileManager ffManager, IOMode mode, int nIOThreads) {
+        if (mode == IOMode.REACTOR && nIOThreads < 1) {
+            throw new IllegalArgumentException("Reactor mode requires at least one IO thread");
+        }
+        if (mode == IOMode.VIRTUAL_THREADS && !ConnectionExecutors.isVirtualThreadSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
         this.address = address;
         this.ffManager = ffManager;
+        this.mode = mode;
+        this.nIOThreads = nIOThreads;
     }
 
     /**
@@ -56,11 +240,13 @@ public class VisualizationIngestServer implements Runnable {
             for (;;) {
                 SocketChannel accept = server.accept();
                 LOGGER.log(Level.INFO, "Accepted incoming connection from {0}", accept.getRemoteAddress());
-                // TODO: Currently uses one thread per socket. Could be modified to use a thread pool and
-                // selectors later if neccessary (may never be).
-                MessageHandler handler = new MessageHandler(accept, ffManager);
-                weakMessageSet.add(handler);
-                handler.start();
+                if (mode == IOMode.REACTOR) {
+                    reactor.register(accept);
+                } else {
+                    MessageHandler handler = new MessageHandler(accept, ffManager);
+                    weakMessageSet.add(handler);
+                    connectionExecutor.execute(handler);
+                }
             }
         } catch (ClosedChannelException x) {
             // OK, presumably cause by shutdown request.
@@ -73,27 +259,371 @@ public class VisualizationIngestServer implements Runnable {
      * Starts the server. Return once the server has started listening.
      */
     SocketAddress start() throws IOException {
+        if (mode == IOMode.REACTOR && reactor == null) {
+            reactor = new Reactor(ffManager, nIOThreads);
+        } else if (mode != IOMode.REACTOR && ownsExecutor && (connectionExecutor == null || connectionExecutor.isShutdown())) {
+            connectionExecutor = mode == IOMode.VIRTUAL_THREADS ? ConnectionExecutors.virtualThreads() : ConnectionExecutors.platformThreads();
+        }
         server = ServerSocketChannel.open();
         server.bind(address);
         LOGGER.log(Level.INFO, "Listening for incoming connection on {0}", server.getLocalAddress());
         return server.getLocalAddress();
     }
 
+    /**
+     * Set how received images are stored. Applies to images started after
+     * this call.
+     *
+     * @param storageMode The storage mode, by default
+     * {@link StorageMode#FILE}.
+     */
+    public void setStorageMode(StorageMode storageMode) {
+        ffManager.setStorageMode(storageMode);
+    }
+
+    /**
+     * Write completed images as tile compressed fits files (Rice compressed
+     * for integer images), rather than as plain images. Compression is done
+     * in parallel when each image is closed. Applies to images started after
+     * this call, in {@link StorageMode#FILE} and {@link StorageMode#MAPPED}
+     * modes.
+     *
+     * @param compressed <code>true</code> to write compressed files
+     */
+    public void setCompressedOutput(boolean compressed) {
+        ffManager.setCompressedOutput(compressed);
+    }
+
+    /**
+     * Maintain binned previews of each image as it is received, so that a
+     * quick look image is available before the image is complete. Each level
+     * is written alongside the image when it is closed, in a file with the
+     * suffix {@value PreviewPyramid#SUFFIX}. Applies to images started after
+     * this call, in {@link StorageMode#FILE} and {@link StorageMode#MAPPED}
+     * modes.
+     *
+     * @param factors The binning factor of each level, for example 2, 4 and 8
+     * for 2x2, 4x4 and 8x8 binning. No preview is kept if empty (the
+     * default).
+     */
+    public void setPreviewFactors(int... factors) {
+        ffManager.setPreviewFactors(factors);
+    }
+
+    /**
+     * Take a snapshot of the preview of an image which is still being
+     * received.
+     *
+     * @param imageName The name of the image
+     * @param factor The binning factor of the preview level
+     * @return The mean of the pixels received so far in each bin, indexed by
+     * [row][column], with NaN for bins not yet received, or <code>null</code>
+     * if the image is not being received or has no preview at that binning.
+     * @see #setPreviewFactors(int...)
+     */
+    public float[][] getPreview(String imageName, int factor) {
+        return ffManager.getPreview(imageName, factor);
+    }
+
+    /**
+     * Accumulate statistics of the pixels of each image as they are
+     * received, for choosing display limits. When the image is closed the
+     * minimum, maximum, mean, standard deviation, median, 1st and 99th
+     * percentiles and zscale limits are written to its primary header.
+     * Applies to images started after this call, in {@link StorageMode#FILE}
+     * and {@link StorageMode#MAPPED} modes.
+     *
+     * @param statistics <code>true</code> to accumulate statistics
+     */
+    public void setStatistics(boolean statistics) {
+        ffManager.setStatistics(statistics);
+    }
+
+    /**
+     * Get the statistics of an image which is being received (of the pixels
+     * received so far), or which was recently finalized.
+     *
+     * @param imageName The name of the image
+     * @return The statistics, or <code>null</code> if not available
+     * @see #setStatistics(boolean)
+     */
+    public ImageStatistics getStatistics(String imageName) {
+        return ffManager.getStatistics(imageName);
+    }
+
+    /**
+     * Read a rectangular region of an image, optionally binned, directly from
+     * the server's memory, mapping or file. The image may still be being
+     * received, in which case pixels not yet received read as zero, or may
+     * have been recently finalized. This avoids opening and reading the fits
+     * file, so is suitable for interactive viewing of a live exposure.
+     * <p>
+     * Recently finalized images can not be read if they were written as
+     * compressed files in {@link StorageMode#FILE} mode.
+     *
+     * @param imageName The name of the image
+     * @param x The first column of the region
+     * @param y The first row of the region
+     * @param width The width of the region
+     * @param height The height of the region
+     * @param binning The number of pixels in x and y averaged into each
+     * pixel of the result, 1 for no binning.
+     * @return The pixel values, indexed by [row][column], or
+     * <code>null</code> if the image is not available.
+     * @throws IOException If an IO error occurs while reading the pixels
+     * @throws IllegalArgumentException If the region is not within the image
+     */
+    public float[][] readCutout(String imageName, int x, int y, int width, int height, int binning) throws IOException {
+        return ffManager.getCutout(imageName, x, y, width, height, binning);
+    }
+
+    /**
+     * Set the durability policy used when finalizing images. Images are
+     * finalized asynchronously, so the policy does not delay the connections
+     * which sent the data.
+     *
+     * @param durability The durability policy, by default
+     * {@link Durability#NONE}.
+     */
+    public void setDurability(Durability durability) {
+        setDurability(durability, Finalizer.DEFAULT_GROUP_COMMIT_MILLIS);
+    }
+
+    /**
+     * Set the durability policy used when finalizing images.
+     *
+     * @param durability The durability policy
+     * @param groupCommitMillis The window used by
+     * {@link Durability#GROUP_COMMIT}.
+     */
+    public void setDurability(Durability durability, long groupCommitMillis) {
+        ffManager.getFinalizer().setDurability(durability, groupCommitMillis);
+    }
+
+    /**
+     * Finalize images as soon as all of their pixels, and the number of
+     * header cards declared in their start message, have been received,
+     * rather than waiting for end messages from all clients.
+     *
+     * @param earlyFinalization <code>true</code> (the default) to finalize
+     * images as soon as they are complete
+     */
+    public void setEarlyFinalization(boolean earlyFinalization) {
+        ffManager.setEarlyFinalization(earlyFinalization);
+    }
+
+    /**
+     * Get the fraction of the pixels of an image which have been received.
+     *
+     * @param imageName The name of an image being received, or recently
+     * finalized
+     * @return The fraction of the pixels received, from 0 to 1, or NaN if not
+     * known.
+     */
+    public double getCoverage(String imageName) {
+        return ffManager.getCoverage(imageName);
+    }
+
+    public void addCompletionListener(CompletionListener listener) {
+        ffManager.addCompletionListener(listener);
+    }
+
+    public void removeCompletionListener(CompletionListener listener) {
+        ffManager.removeCompletionListener(listener);
+    }
+
+    public void addFinalizationListener(FinalizationListener listener) {
+        ffManager.getFinalizer().addListener(listener);
+    }
+
+    public void removeFinalizationListener(FinalizationListener listener) {
+        ffManager.getFinalizer().removeListener(listener);
+    }
+
+    /**
+     * Get the metrics describing the throughput and latency of the server.
+     * Metrics are always collected, the counters are updated without
+     * locking or allocation as messages are received.
+     *
+     * @return The metrics
+     */
+    public IngestMetricsMXBean getMetrics() {
+        return ffManager.getMetrics();
+    }
+
+    /**
+     * Register the server's metrics with the platform MBean server, so that
+     * they can be monitored with JMX tools such as jconsole. The metrics are
+     * unregistered when the server is shut down.
+     *
+     * @param name A name distinguishing this server from any others in the
+     * same JVM
+     * @return The object name under which the metrics are registered
+     * @throws JMException If the metrics could not be registered
+     * @see IngestMetricsMXBean
+     */
+    public ObjectName registerMetrics(String name) throws JMException {
+        return ffManager.getMetrics().register(name);
+    }
+
+    /**
+     * Store images in memory, rather than directly in files. Applies to images
+     * started after this call.
+     *
+     * @param budgetBytes The maximum number of bytes of image data to hold in
+     * memory. When exceeded, the least recently used completed images are
+     * evicted. Start messages for which there is no room, because the budget
+     * is taken by images still being received or written, wait as if for
+     * the admission limit on reserved bytes.
+     * @param persist If <code>true</code> completed images are also written
+     * as fits files, asynchronously after they are complete.
+     */
+    public void setMemoryStore(long budgetBytes, boolean persist) {
+        ffManager.setImageStore(budgetBytes, persist);
+        ffManager.setStorageMode(StorageMode.MEMORY);
+    }
+
+    /**
+     * Set the timeouts for images whose names start with the given prefix,
+     * so that different types of image can be given timeouts to suit their
+     * exposure cadence. Where more than one prefix matches the longest is
+     * used. By default images are closed after 60 seconds without receiving
+     * any messages, and messages for an unknown image are discarded if its
+     * start message does not arrive within 1 second. The idle timeout applies
+     * to images started after this call.
+     *
+     * @param imageNamePrefix The image name prefix, or <code>""</code> to set
+     * the default for all images
+     * @param idleMillis How long an image can go without receiving any
+     * messages before it is closed
+     * @param startWaitMillis How long to wait for a delayed start message
+     */
+    public void setTimeouts(String imageNamePrefix, long idleMillis, long startWaitMillis) {
+        ffManager.setTimeouts(imageNamePrefix, idleMillis, startWaitMillis);
+    }
+
+    /**
+     * Limit the resources used by the images being received. When a limit is
+     * reached the server stops reading from the connections whose messages
+     * can't be admitted, so that TCP flow control slows down the clients,
+     * rather than discarding messages. An image reserves its full size from
+     * its start message until it has been finalized, data messages count
+     * against the in flight limit while they are being written.
+     *
+     * @param maxOpenImages The maximum number of images open at once, or 0
+     * for no limit
+     * @param maxReservedBytes The maximum bytes reserved for open images, or
+     * 0 for no limit
+     * @param maxInFlightBytes The maximum bytes of data messages being
+     * written at once, or 0 for no limit
+     */
+    public void setAdmissionLimits(int maxOpenImages, long maxReservedBytes, long maxInFlightBytes) {
+        ffManager.setAdmissionLimits(maxOpenImages, maxReservedBytes, maxInFlightBytes);
+    }
+
     public void shutdown() throws IOException {
         for (MessageHandler messageHandler : weakMessageSet) {
             messageHandler.close();
         }
+        if (reactor != null) {
+            reactor.close();
+            reactor = null;
+        }
+        if (connectionExecutor != null && ownsExecutor) {
+            connectionExecutor.shutdown();
+        }
         ffManager.cancel();
+        try {
+            ffManager.getMetrics().unregister();
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, "Unable to unregister metrics", ex);
+        }
         server.close();
     }
 
+    private static final String USAGE = "Usage: VisualizationIngestServer [port] [--mode=threaded|virtual_threads|reactor]\n"
+            + "        [--io-threads=n] [--storage=file|mapped|memory] [--compressed[=true|false]]\n"
+            + "        [--durability=none|fsync|group_commit] [--preview[=true|false]]\n"
+            + "        [--statistics[=true|false]] [--idle=millis]";
+    private static final List<String> OPTIONS = Arrays.asList("mode", "io-threads", "storage", "compressed", "durability", "preview", "statistics", "idle");
+
+    /**
+     * Run a server writing fits files to /tmp. The port defaults to 9999,
+     * the other settings are given as <code>--name=value</code> options, a
+     * boolean option given without a value is <code>true</code>.
+     *
+     * @param args The command line arguments
+     * @throws Exception If the server fails
+     */
     public static void main(String[] args) throws Exception {
-        int port;
-        if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
-        } else {
-            port = 9999;
+        int port = 9999;
+        Map<String, String> options = new HashMap<>();
+        IOMode mode;
+        int nIOThreads;
+        StorageMode storageMode;
+        Durability durability;
+        boolean compressed;
+        boolean preview;
+        boolean statistics;
+        long idleMillis;
+        try {
+            boolean portSeen = false;
+            for (String arg : args) {
+                if (arg.equals("--help")) {
+                    System.out.println(USAGE);
+                    return;
+                } else if (arg.startsWith("--")) {
+                    int eq = arg.indexOf('=');
+                    String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+                    if (!OPTIONS.contains(name)) {
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                    }
+                    options.put(name, eq < 0 ? "true" : arg.substring(eq + 1));
+                } else if (!portSeen) {
+                    port = Integer.parseInt(arg);
+                    portSeen = true;
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument " + arg);
+                }
+            }
+            mode = IOMode.valueOf(option(options, "mode", "threaded").toUpperCase());
+            nIOThreads = Integer.parseInt(option(options, "io-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            storageMode = StorageMode.valueOf(option(options, "storage", "file").toUpperCase());
+            durability = Durability.valueOf(option(options, "durability", "none").toUpperCase());
+            compressed = flag(options, "compressed");
+            preview = flag(options, "preview");
+            statistics = flag(options, "statistics");
+            idleMillis = Long.parseLong(option(options, "idle", String.valueOf(FitsFileManager.IDLE_MILLIS)));
+        } catch (IllegalArgumentException x) {
+            // Includes NumberFormatException, and unknown enum values
+            System.err.println(x.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        VisualizationIngestServer server = new VisualizationIngestServer(port, new File("/tmp"), mode, nIOThreads);
+        server.setStorageMode(storageMode);
+        server.setCompressedOutput(compressed);
+        server.setDurability(durability);
+        if (preview) {
+            server.setPreviewFactors(PreviewPyramid.DEFAULT_FACTORS);
+        }
+        server.setStatistics(statistics);
+        server.setTimeouts("", idleMillis, FitsFileManager.START_WAIT_MILLIS);
+        server.registerMetrics("port-" + port);
+        server.run();
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static boolean flag(Map<String, String> options, String name) {
+        String value = option(options, name, "false");
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
         }
-        new VisualizationIngestServer(port, new File("/tmp")).run();
+        return Boolean.parseBoolean(value);
     }
 }
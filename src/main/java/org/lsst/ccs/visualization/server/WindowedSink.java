@@ -0,0 +1,150 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Base class for sinks which write into a region of memory split into fixed
+ * size windows. Windows are created lazily, so regions larger than 2GB are
+ * supported and only the parts of the region actually written use memory.
+ * Writers to disjoint parts of the region do not contend with each other,
+ * since each write uses its own view of a window.
+ *
+ * @author tonyj
+ */
+abstract class WindowedSink implements StridedWriter.Sink {
+
+    static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private final long start;
+    private final long length;
+    private final AtomicReferenceArray<ByteBuffer> windows;
+
+    /**
+     * Create a windowed sink.
+     *
+     * @param start The position of the start of the region
+     * @param length The length of the region
+     */
+    WindowedSink(long start, long length) {
+        this.start = start;
+        this.length = length;
+        this.windows = new AtomicReferenceArray<>((int) ((length + WINDOW_SIZE - 1) / WINDOW_SIZE));
+    }
+
+    /**
+     * Create the buffer backing a window.
+     *
+     * @param windowStart The offset of the window from the start of the region
+     * @param size The size of the window
+     * @return The buffer
+     * @throws IOException If the window cannot be created
+     */
+    abstract ByteBuffer createWindow(long windowStart, int size) throws IOException;
+
+    @Override
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            ByteBuffer dst = view(position, src.remaining());
+            int n = dst.remaining();
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            dst.put(src);
+            src.limit(limit);
+            position += n;
+        }
+    }
+
+    /**
+     * Get a writable view of the region.
+     *
+     * @param position The absolute position
+     * @param maxLength The maximum length required
+     * @return A view starting at position, which may be shorter than
+     * maxLength if position is close to the end of a window.
+     * @throws IOException If the window cannot be created, or the position is
+     * outside the region.
+     */
+    @Override
+    public ByteBuffer view(long position, long maxLength) throws IOException {
+        long offset = position - start;
+        if (offset < 0 || offset + maxLength > length) {
+            throw new IOException("Write outside of data region, position=" + position + " length=" + maxLength);
+        }
+        int index = (int) (offset / WINDOW_SIZE);
+        ByteBuffer view = window(index).duplicate();
+        int windowOffset = (int) (offset % WINDOW_SIZE);
+        view.position(windowOffset);
+        view.limit((int) Math.min(view.capacity(), windowOffset + maxLength));
+        return view;
+    }
+
+    /**
+     * Read back from the region. Parts of the region in windows which have
+     * not yet been created read as zero.
+     *
+     * @param dst The buffer to fill, all remaining bytes are read
+     * @param position The absolute position
+     * @throws IOException If the position is outside the region
+     */
+    void read(ByteBuffer dst, long position) throws IOException {
+        long offset = position - start;
+        if (offset < 0 || offset + dst.remaining() > length) {
+            throw new IOException("Read outside of data region, position=" + position + " length=" + dst.remaining());
+        }
+        while (dst.hasRemaining()) {
+            int index = (int) (offset / WINDOW_SIZE);
+            int windowOffset = (int) (offset % WINDOW_SIZE);
+            ByteBuffer window = existingWindow(index);
+            int n = (int) Math.min(dst.remaining(), Math.min(WINDOW_SIZE, length - (long) index * WINDOW_SIZE) - windowOffset);
+            if (window == null) {
+                for (int i = 0; i < n; i++) {
+                    dst.put((byte) 0);
+                }
+            } else {
+                ByteBuffer src = window.duplicate();
+                src.limit(windowOffset + n);
+                src.position(windowOffset);
+                dst.put(src);
+            }
+            offset += n;
+        }
+    }
+
+    @Override
+    public boolean hasViews() {
+        return true;
+    }
+
+    /**
+     * Get a window, creating it if necessary.
+     */
+    ByteBuffer window(int index) throws IOException {
+        ByteBuffer window = windows.get(index);
+        if (window == null) {
+            long windowStart = (long) index * WINDOW_SIZE;
+            window = createWindow(windowStart, (int) Math.min(WINDOW_SIZE, length - windowStart));
+            if (!windows.compareAndSet(index, null, window)) {
+                window = windows.get(index);
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Get a window only if it has already been created.
+     *
+     * @return The window, or <code>null</code>
+     */
+    ByteBuffer existingWindow(int index) {
+        return windows.get(index);
+    }
+
+    int getWindowCount() {
+        return windows.length();
+    }
+
+    long getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,107 @@
+package org.lsst.ccs.visualization.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.CountDownLatch;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.lsst.ccs.visualization.message.EndMessage;
+
+/**
+ * Checks that the asynchronous writer never leaves flush waiting forever.
+ *
+ * @author tonyj
+ */
+public class AsyncWriterTest {
+
+    @Test(timeout = 10000)
+    public void interruptedSend() throws IOException, InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncWriter writer = new AsyncWriter(new TestChannel(release, false), 1);
+        writer.start();
+        writer.send(new EndMessage("first"));
+        // Wait for the writer to take the first message and block
+        Thread.sleep(100);
+        writer.send(new EndMessage("second"));
+        Thread.currentThread().interrupt();
+        try {
+            writer.send(new EndMessage("third"));
+            fail("Should have been interrupted");
+        } catch (InterruptedIOException x) {
+            // OK, expected
+        }
+        release.countDown();
+        writer.flush();
+        writer.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void runtimeExceptionInWriter() throws IOException, InterruptedException {
+        AsyncWriter writer = new AsyncWriter(new TestChannel(new CountDownLatch(0), true), 4);
+        writer.start();
+        writer.send(new EndMessage("first"));
+        try {
+            writer.flush();
+            fail("Should have failed");
+        } catch (IOException x) {
+            assertTrue(x.getCause() instanceof IOException);
+        }
+        try {
+            writer.send(new EndMessage("second"));
+            fail("Should have failed");
+        } catch (IOException x) {
+            // OK, expected
+        }
+    }
+
+    private static class TestChannel implements GatheringByteChannel {
+
+        private final CountDownLatch release;
+        private final boolean fail;
+
+        TestChannel(CountDownLatch release, boolean fail) {
+            this.release = release;
+            this.fail = fail;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (fail) {
+                throw new IllegalStateException("Test failure");
+            }
+            try {
+                release.await();
+            } catch (InterruptedException x) {
+                throw new InterruptedIOException();
+            }
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
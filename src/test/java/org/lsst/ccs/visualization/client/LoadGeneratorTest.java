@@ -0,0 +1,78 @@
+package org.lsst.ccs.visualization.client;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs small loads against an in process server.
+ *
+ * @author tonyj
+ */
+public class LoadGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stridedTest() throws IOException, InterruptedException {
+        // Two rafts, the second partial, with fewer connections than CCDs
+        LoadGenerator.Report report = run(LoadGenerator.Layout.STRIDED, 11, 4, false);
+        assertEquals(6, report.getImages());
+        assertEquals(0, report.getIncomplete());
+        // 16 segments and an end message per CCD
+        long pixelBytes = 3L * 11 * 4 * 64 * 40;
+        assertTrue(report.getBytesSent() > pixelBytes);
+        assertFalse(Double.isNaN(report.getCloseLatency(99)));
+    }
+
+    @Test
+    public void contiguousPackedTest() throws IOException, InterruptedException {
+        LoadGenerator.Report report = run(LoadGenerator.Layout.CONTIGUOUS, 3, 3, true);
+        assertEquals(3, report.getImages());
+        assertEquals(0, report.getIncomplete());
+        assertTrue(report.getSendLatency(50) <= report.getSendLatency(100));
+    }
+
+    @Test
+    public void admissionLimitsTest() throws IOException, InterruptedException {
+        // One image at a time, and data messages one at a time
+        LoadGenerator.Report report = run(LoadGenerator.Layout.CONTIGUOUS, 3, 3, false, 1, 0, 1024);
+        assertEquals(3, report.getImages());
+        assertEquals(0, report.getIncomplete());
+    }
+
+    private LoadGenerator.Report run(LoadGenerator.Layout layout, int nCCDs, int nConnections, boolean packed) throws IOException, InterruptedException {
+        return run(layout, nCCDs, nConnections, packed, 0, 0, 0);
+    }
+
+    private LoadGenerator.Report run(LoadGenerator.Layout layout, int nCCDs, int nConnections, boolean packed,
+            int maxOpenImages, long maxReservedBytes, long maxInFlightBytes) throws IOException, InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        generator.setAdmissionLimits(maxOpenImages, maxReservedBytes, maxInFlightBytes);
+        generator.setLocalServer(freePort(), folder.getRoot());
+        generator.setCCDs(nCCDs);
+        generator.setConnections(nConnections);
+        generator.setGeometry(64, 40, 8, 2);
+        generator.setExposures(3, 0);
+        generator.setLayout(layout);
+        generator.setPacked(packed);
+        LoadGenerator.Report report = generator.run();
+        assertEquals(0, report.getDropped());
+        assertEquals(0, report.getDiscarded());
+        assertEquals(0, report.getIdleCloses());
+        assertEquals(0, folder.getRoot().list().length);
+        return report;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
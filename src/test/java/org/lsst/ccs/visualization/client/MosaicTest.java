@@ -0,0 +1,118 @@
+package org.lsst.ccs.visualization.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsException;
+import nom.tam.util.BufferedFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lsst.ccs.visualization.message.DataMessage;
+
+/**
+ * Assembles a small synthetic multi-extension file and checks where each
+ * pixel ends up.
+ *
+ * @author tonyj
+ */
+public class MosaicTest {
+
+    private static final int PRESCAN = 2;
+    private static final int AMP_WIDTH = 4;
+    private static final int AMP_HEIGHT = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void intTest() throws IOException, FitsException {
+        Mosaic mosaic = Mosaic.read(createFile(), false);
+        assertEquals(2 * AMP_WIDTH, mosaic.getWidth());
+        assertEquals(AMP_HEIGHT, mosaic.getHeight());
+        ByteBuffer data = mosaic.getData();
+        assertEquals(4 * 2 * AMP_WIDTH * AMP_HEIGHT, data.remaining());
+        check(mosaic, data, false);
+        assertEquals(DataMessage.Encoding.NATIVE, mosaic.toDataMessage("test", 0, 0, 0).getEncoding());
+    }
+
+    @Test
+    public void packedTest() throws IOException, FitsException {
+        Mosaic mosaic = Mosaic.read(createFile(), true);
+        ByteBuffer data = mosaic.getData();
+        assertEquals(2 * 2 * AMP_WIDTH * AMP_HEIGHT, data.remaining());
+        check(mosaic, data, true);
+        assertEquals(DataMessage.Encoding.PACKED_16, mosaic.toDataMessage("test", 0, 0, 0).getEncoding());
+    }
+
+    @Test
+    public void headerTest() throws IOException, FitsException {
+        Mosaic mosaic = Mosaic.read(createFile(), false);
+        boolean found = false;
+        for (String card : mosaic.getHeaders()) {
+            found |= card.startsWith("DETSIZE");
+        }
+        assertTrue(found);
+    }
+
+    private void check(Mosaic mosaic, ByteBuffer data, boolean packed) {
+        for (int y = 0; y < mosaic.getHeight(); y++) {
+            for (int x = 0; x < mosaic.getWidth(); x++) {
+                int index = y * mosaic.getWidth() + x;
+                int value = packed ? data.getShort(2 * index) & 0xffff : data.getInt(4 * index);
+                assertEquals("x=" + x + " y=" + y, expected(x, y), value);
+            }
+        }
+    }
+
+    /**
+     * Amplifier 0 is flipped in x, amplifier 1 is flipped in y.
+     */
+    private static int expected(int x, int y) {
+        if (x < AMP_WIDTH) {
+            return pixel(0, AMP_WIDTH - 1 - x, y);
+        } else {
+            return pixel(1, x - AMP_WIDTH, AMP_HEIGHT - 1 - y);
+        }
+    }
+
+    private static int pixel(int amp, int x, int y) {
+        return 40000 + 1000 * amp + 10 * y + x;
+    }
+
+    private File createFile() throws IOException, FitsException {
+        File file = folder.newFile("mosaic.fits");
+        Fits fits = new Fits();
+        BasicHDU<?> primary = Fits.makeHDU(new int[1][1]);
+        primary.addValue("DETSIZE", String.format("[1:%d,1:%d]", 2 * AMP_WIDTH, AMP_HEIGHT), "");
+        fits.addHDU(primary);
+        String[] detsec = {
+            String.format("[%d:1,1:%d]", AMP_WIDTH, AMP_HEIGHT),
+            String.format("[%d:%d,%d:1]", AMP_WIDTH + 1, 2 * AMP_WIDTH, AMP_HEIGHT)
+        };
+        for (int amp = 0; amp < 2; amp++) {
+            // Stored as signed shorts with an offset, with a prescan and an
+            // overscan row which should be ignored
+            short[][] raw = new short[AMP_HEIGHT + 1][PRESCAN + AMP_WIDTH];
+            for (int y = 0; y < AMP_HEIGHT; y++) {
+                for (int x = 0; x < AMP_WIDTH; x++) {
+                    raw[y][PRESCAN + x] = (short) (pixel(amp, x, y) - 32768);
+                }
+            }
+            BasicHDU<?> hdu = Fits.makeHDU(raw);
+            hdu.addValue("BZERO", 32768, "");
+            hdu.addValue("BSCALE", 1, "");
+            hdu.addValue("DATASEC", String.format("[%d:%d,1:%d]", PRESCAN + 1, PRESCAN + AMP_WIDTH, AMP_HEIGHT), "");
+            hdu.addValue("DETSEC", detsec[amp], "");
+            fits.addHDU(hdu);
+        }
+        try (BufferedFile bf = new BufferedFile(file, "rw")) {
+            fits.write(bf);
+        }
+        return file;
+    }
+}
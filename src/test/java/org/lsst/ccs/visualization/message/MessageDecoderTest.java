@@ -0,0 +1,165 @@
+package org.lsst.ccs.visualization.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the allocation free MessageDecoder.
+ *
+ * @author tonyj
+ */
+public class MessageDecoderTest {
+
+    @Test
+    public void decodeAllTypes() throws IOException {
+        ByteBuffer stream = createStream();
+        MessageDecoder decoder = new MessageDecoder();
+
+        StartMessage start = (StartMessage) decodeNext(decoder, stream);
+        assertEquals("testImage", start.getImageName());
+        assertEquals(100, start.getWidth());
+        assertEquals(200, start.getHeight());
+        assertEquals(20, start.getnHeaders());
+        assertEquals(9, start.getnClients());
+        assertEquals(-32, start.getBitpix());
+
+        HeaderMessage header = (HeaderMessage) decodeNext(decoder, stream);
+        assertEquals("KEY     = 'value'", header.getCard());
+
+        HeaderBatchMessage batch = (HeaderBatchMessage) decodeNext(decoder, stream);
+        assertEquals(2, batch.getCardCount());
+        assertEquals("CARD2", batch.getCard(1).trim());
+
+        DataMessage data = (DataMessage) decodeNext(decoder, stream);
+        assertEquals(10, data.getOffset());
+        assertEquals(2, data.getStepLength());
+        assertEquals(5, data.getStepOffset());
+        assertEquals(16, data.getDataLength());
+        assertEquals(DataMessage.Encoding.PACKED_16, data.getEncoding());
+
+        EndMessage end = (EndMessage) decodeNext(decoder, stream);
+        assertSame(start.getImageName(), end.getImageName());
+        assertEquals(0, stream.remaining());
+    }
+
+    @Test
+    public void legacyStartMessage() throws IOException {
+        // A start message without the pixel type, as sent by older clients
+        ByteBuffer bb = ByteBuffer.allocate(4 + 2 + 5 + 16);
+        bb.putInt(2 + 5 + 16);
+        bb.put((byte) Message.MessageType.START.ordinal());
+        bb.put((byte) 5);
+        bb.put("image".getBytes("US-ASCII"));
+        bb.putInt(10).putInt(20).putInt(30).putInt(40);
+        bb.flip();
+        StartMessage start = (StartMessage) new MessageDecoder().decode(bb);
+        assertEquals(10, start.getWidth());
+        assertEquals(40, start.getnClients());
+        assertEquals(StartMessage.DEFAULT_BITPIX, start.getBitpix());
+    }
+
+    @Test
+    public void partialHeaderCard() throws IOException {
+        // A header batch with one whole card and part of another
+        ByteBuffer bb = ByteBuffer.allocate(4 + 2 + 5 + 120);
+        bb.putInt(2 + 5 + 120);
+        bb.put((byte) Message.MessageType.HEADER_BATCH.ordinal());
+        bb.put((byte) 5);
+        bb.put("image".getBytes("US-ASCII"));
+        bb.put(new byte[120]);
+        bb.flip();
+        try {
+            new MessageDecoder().decode(bb);
+            fail("Should have rejected partial card");
+        } catch (IOException x) {
+            // OK, expected
+        }
+    }
+
+    @Test
+    public void reencodeDecodedMessage() throws IOException {
+        ByteBuffer stream = createStream();
+        MessageDecoder decoder = new MessageDecoder();
+        ByteBuffer copy = ByteBuffer.allocate(stream.remaining());
+        while (stream.hasRemaining()) {
+            Message msg = decodeNext(decoder, stream);
+            msg.encodeFrame(copy);
+        }
+        stream.rewind();
+        copy.flip();
+        assertEquals(stream, copy);
+    }
+
+    @Test
+    public void steadyStateDecodingDoesNotAllocate() throws IOException {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        ByteBuffer stream = createStream();
+        MessageDecoder decoder = new MessageDecoder();
+        // Warm up, so the name table and reusable buffers are populated
+        decodeRepeatedly(decoder, stream, 10000);
+
+        long id = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(id);
+        long overhead = threadBean.getThreadAllocatedBytes(id) - before;
+        before = threadBean.getThreadAllocatedBytes(id);
+        decodeRepeatedly(decoder, stream, 100000);
+        long allocated = threadBean.getThreadAllocatedBytes(id) - before - overhead;
+        // 500,000 frames are decoded. Allow a small fixed amount for one-off
+        // allocations by the JVM itself (eg JIT compilation), any per frame
+        // allocation would be many megabytes.
+        assertTrue("Bytes allocated while decoding: " + allocated, allocated < 8192);
+    }
+
+    private static void decodeRepeatedly(MessageDecoder decoder, ByteBuffer stream, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            stream.rewind();
+            while (stream.hasRemaining()) {
+                decodeNext(decoder, stream);
+            }
+        }
+    }
+
+    private static Message decodeNext(MessageDecoder decoder, ByteBuffer stream) throws IOException {
+        int end = stream.position() + 4 + stream.getInt(stream.position());
+        int limit = stream.limit();
+        stream.limit(end);
+        Message msg = decoder.decode(stream);
+        stream.limit(limit);
+        stream.position(end);
+        return msg;
+    }
+
+    private static ByteBuffer createStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        new StartMessage("testImage", 100, 200, 20, 9, -32).encode(channel);
+        new HeaderMessage("testImage", "KEY     = 'value'").encode(channel);
+        List<String> cards = new ArrayList<>();
+        cards.add("CARD1");
+        cards.add("CARD2");
+        new HeaderBatchMessage("testImage", cards).encode(channel);
+        DataMessage data = new DataMessage("testImage", 10, 2, 5, ByteBuffer.allocate(16), DataMessage.Encoding.PACKED_16);
+        ByteBuffer frame = ByteBuffer.allocate(data.getFrameLength());
+        data.encodeFrame(frame);
+        out.write(frame.array());
+        new EndMessage("testImage").encode(channel);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+}
@@ -0,0 +1,168 @@
+package org.lsst.ccs.visualization.message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Round trip tests for the Rice codec.
+ *
+ * @author tonyj
+ */
+public class RiceCodecTest {
+
+    /**
+     * RICE_1 coding of {@link #tile32()}, derived independently of RiceCodec
+     * by following the reference fits_rcomp() in cfitsio's ricecomp.c. The
+     * blocks are all zero differences, small differences (fs = 3), and
+     * differences too large to code (written verbatim).
+     */
+    private static final String RICE_32_TILE
+            = "000003e80127ddeeff77fbbfddeeff77fbbfddeeff77fe8ffffe0e1fffffffe00000001fffffffe00000001fffffffc0";
+    /**
+     * RICE_1 coding of {@link #tile16()}, following fits_rcomp_short(). The
+     * second block (fs = 13) is split coded even though it takes as many bits
+     * as sending the block verbatim.
+     */
+    private static final String RICE_16_TILE
+            = "ff99386fcdff37e6ff9bf37fcdf9bfe6ff880008004800080048000800480008004800080048000800480008004800080048000800480008004800080048000800480008004800080048000800480008007dd873a97fa983a97fa980";
+
+    @Test
+    public void knownAnswer32() {
+        checkKnownAnswer(tile32(), 4, RICE_32_TILE);
+    }
+
+    @Test
+    public void knownAnswer16() {
+        checkKnownAnswer(tile16(), 2, RICE_16_TILE);
+    }
+
+    private static int[] tile32() {
+        int[] pixels = new int[70];
+        for (int i = 0; i < pixels.length; i++) {
+            if (i < 32) {
+                pixels[i] = 1000;
+            } else if (i < 64) {
+                pixels[i] = 1000 + (i * 7) % 11 - 5;
+            } else {
+                pixels[i] = i % 2 == 0 ? 1 << 29 : -(1 << 29);
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] tile16() {
+        int[] pixels = new int[69];
+        for (int i = 0; i < pixels.length; i++) {
+            if (i < 32) {
+                pixels[i] = -100 + (i * 5) % 7 - 3;
+            } else if (i < 64) {
+                pixels[i] = pixels[i - 1] + (i % 2 == 0 ? 8192 : -8193);
+            } else {
+                pixels[i] = i % 2 == 0 ? 15000 : -15000;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Decode the expected coding and check the pixels, then encode the
+     * pixels and check that the coding is reproduced byte for byte.
+     */
+    private static void checkKnownAnswer(int[] pixels, int bytesPerPixel, String hex) {
+        byte[] expected = new byte[hex.length() / 2];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        ByteBuffer decoded = ByteBuffer.allocate(pixels.length * bytesPerPixel);
+        RiceCodec.decompress(ByteBuffer.wrap(expected), bytesPerPixel, decoded, pixels.length);
+        decoded.flip();
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals("Pixel " + i, pixels[i], bytesPerPixel == 2 ? decoded.getShort() : decoded.getInt());
+        }
+        decoded.flip();
+        ByteBuffer compressed = ByteBuffer.allocate(RiceCodec.maxCompressedLength(pixels.length, bytesPerPixel));
+        RiceCodec.compress(decoded, bytesPerPixel, compressed);
+        assertArrayEquals(expected, Arrays.copyOf(compressed.array(), compressed.position()));
+    }
+
+    @Test
+    public void noise16() {
+        Random random = new Random(1);
+        int[] pixels = new int[10000];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 30000 + (int) (5 * random.nextGaussian());
+        }
+        int length = roundTrip(pixels, 2);
+        // 5 ADU noise needs about 4-5 bits per pixel, rather than 16
+        assertTrue(length < pixels.length * 2 / 2.5);
+    }
+
+    @Test
+    public void noise32() {
+        Random random = new Random(2);
+        int[] pixels = new int[10001];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 100000 + (int) (20 * random.nextGaussian());
+        }
+        int length = roundTrip(pixels, 4);
+        assertTrue(length < pixels.length * 4 / 4);
+    }
+
+    @Test
+    public void constant() {
+        int[] pixels = new int[1000];
+        Arrays.fill(pixels, 1234);
+        assertTrue(roundTrip(pixels, 4) < 50);
+    }
+
+    @Test
+    public void incompressible() {
+        Random random = new Random(3);
+        for (int bytesPerPixel : new int[]{2, 4}) {
+            int[] pixels = new int[1000];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = bytesPerPixel == 2 ? (short) random.nextInt() : random.nextInt();
+            }
+            // Includes extreme differences, which must fall back to verbatim blocks
+            pixels[10] = bytesPerPixel == 2 ? Short.MIN_VALUE : Integer.MIN_VALUE;
+            pixels[11] = bytesPerPixel == 2 ? Short.MAX_VALUE : Integer.MAX_VALUE;
+            roundTrip(pixels, bytesPerPixel);
+        }
+    }
+
+    @Test
+    public void smallAndEmpty() {
+        roundTrip(new int[0], 2);
+        roundTrip(new int[]{-5}, 2);
+        roundTrip(new int[]{7, 8, 6}, 4);
+    }
+
+    private static int roundTrip(int[] pixels, int bytesPerPixel) {
+        ByteBuffer src = ByteBuffer.allocate(pixels.length * bytesPerPixel);
+        for (int pixel : pixels) {
+            if (bytesPerPixel == 2) {
+                src.putShort((short) pixel);
+            } else {
+                src.putInt(pixel);
+            }
+        }
+        src.flip();
+        ByteBuffer compressed = ByteBuffer.allocate(RiceCodec.maxCompressedLength(pixels.length, bytesPerPixel));
+        int length = RiceCodec.compress(src, bytesPerPixel, compressed);
+        assertEquals(length, compressed.position());
+        assertEquals(0, src.remaining());
+        compressed.flip();
+        ByteBuffer result = ByteBuffer.allocate(pixels.length * bytesPerPixel);
+        RiceCodec.decompress(compressed, bytesPerPixel, result, pixels.length);
+        result.flip();
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals("Pixel " + i, pixels[i], bytesPerPixel == 2 ? result.getShort() : result.getInt());
+        }
+        return length;
+    }
+}
@@ -0,0 +1,101 @@
+package org.lsst.ccs.visualization.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the limits applied by AdmissionController.
+ *
+ * @author tonyj
+ */
+public class AdmissionControllerTest {
+
+    @Test
+    public void limits() throws InterruptedException {
+        AdmissionController admission = new AdmissionController();
+        // Unlimited by default
+        assertTrue(admission.canAdmitImage(Long.MAX_VALUE / 2));
+        admission.setLimits(2, 1000, 100);
+        admission.admitImage(600, true);
+        assertTrue(admission.canAdmitImage(400));
+        assertFalse(admission.canAdmitImage(500));
+        admission.admitImage(400, true);
+        assertFalse(admission.canAdmitImage(0));
+        assertEquals(2, admission.getOpenImages());
+        assertEquals(1000, admission.getReservedBytes());
+        admission.releaseImage(600);
+        admission.releaseImage(400);
+        // Larger than the limit, but admitted since nothing else is reserved
+        assertTrue(admission.canAdmitImage(5000));
+        admission.admitData(60, true);
+        assertFalse(admission.canAdmitData(60));
+        assertEquals(60, admission.getInFlightBytes());
+        admission.releaseData(60);
+        assertTrue(admission.canAdmitData(500));
+        assertEquals(0, admission.getWaits());
+    }
+
+    @Test
+    public void waiting() throws InterruptedException {
+        final AdmissionController admission = new AdmissionController();
+        admission.setLimits(1, 0, 0);
+        admission.admitImage(100, true);
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                admission.admitImage(100, true);
+                admitted.countDown();
+            } catch (InterruptedException x) {
+                // Test will fail
+            }
+        });
+        waiter.start();
+        final CountDownLatch called = new CountDownLatch(1);
+        assertFalse(admission.whenImageAdmissible(100, called::countDown));
+        assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+        admission.releaseImage(100);
+        assertTrue(admitted.await(10, TimeUnit.SECONDS));
+        assertEquals(0, called.getCount());
+        assertEquals(2, admission.getWaits());
+        // Raising the limits also releases waiting requests
+        assertFalse(admission.whenImageAdmissible(100, called::countDown));
+        admission.setLimits(2, 0, 0);
+        assertTrue(admission.whenImageAdmissible(100, () -> {
+            throw new AssertionError("Should not be called");
+        }));
+    }
+
+    @Test
+    public void dataWaiting() throws InterruptedException {
+        final AdmissionController admission = new AdmissionController();
+        admission.setLimits(0, 0, 100);
+        admission.admitData(50, true);
+        admission.admitData(40, true);
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                admission.admitData(30, true);
+                admitted.countDown();
+            } catch (InterruptedException x) {
+                // Test will fail
+            }
+        });
+        waiter.start();
+        final CountDownLatch called = new CountDownLatch(1);
+        assertFalse(admission.whenDataAdmissible(20, called::countDown));
+        assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+        // Still too much in flight for either request
+        admission.releaseData(5);
+        assertFalse(admitted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, called.getCount());
+        admission.releaseData(45);
+        assertTrue(admitted.await(10, TimeUnit.SECONDS));
+        assertEquals(0, called.getCount());
+        assertEquals(70, admission.getInFlightBytes());
+        assertEquals(2, admission.getWaits());
+    }
+}
@@ -0,0 +1,83 @@
+package org.lsst.ccs.visualization.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for waiting, listeners and tombstones in BlockingMap.
+ *
+ * @author tonyj
+ */
+public class BlockingMapTest {
+
+    @Test
+    public void waitForPut() throws InterruptedException {
+        final BlockingMap<String, String> map = new BlockingMap<>();
+        final AtomicReference<String> result = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                result.set(map.get("key", 10, TimeUnit.SECONDS));
+            } catch (InterruptedException x) {
+                // Leave result null
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        map.put("key", "value");
+        waiter.join(10000);
+        assertEquals("value", result.get());
+        assertNull(map.get("missing", 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void listeners() {
+        BlockingMap<String, String> map = new BlockingMap<>();
+        final CountDownLatch called = new CountDownLatch(2);
+        assertFalse(map.whenAvailable("key", called::countDown));
+        assertFalse(map.whenAvailable("removed", called::countDown));
+        map.put("key", "value");
+        assertEquals(1, called.getCount());
+        // Removing a key which was never put also releases listeners
+        map.remove("removed");
+        assertEquals(0, called.getCount());
+        assertTrue(map.whenAvailable("key", () -> {
+            throw new AssertionError("Should not be called");
+        }));
+        assertTrue(map.whenAvailable("removed", () -> {
+            throw new AssertionError("Should not be called");
+        }));
+    }
+
+    @Test
+    public void tombstones() throws InterruptedException {
+        BlockingMap<String, String> map = new BlockingMap<>(2);
+        map.put("a", "1");
+        assertFalse(map.remove("a", "2"));
+        assertFalse(map.isRemoved("a"));
+        assertTrue(map.remove("a", "1"));
+        assertTrue(map.isRemoved("a"));
+        // Returns immediately, rather than waiting for the timeout
+        long start = System.nanoTime();
+        assertNull(map.get("a", 10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(map.entrySet().isEmpty());
+        // A new value replaces the tombstone
+        map.put("a", "3");
+        assertFalse(map.isRemoved("a"));
+        assertEquals("3", map.getImmediate("a"));
+        // Only the most recent tombstones are kept
+        map.remove("b");
+        map.remove("c");
+        map.remove("d");
+        assertFalse(map.isRemoved("b"));
+        assertTrue(map.isRemoved("c"));
+        assertTrue(map.isRemoved("d"));
+        assertEquals(1, map.entrySet().size());
+    }
+}
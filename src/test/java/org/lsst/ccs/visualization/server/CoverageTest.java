@@ -0,0 +1,110 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.Header;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.HeaderBatchMessage;
+import org.lsst.ccs.visualization.message.HeaderMessage;
+import org.lsst.ccs.visualization.message.StartMessage;
+
+/**
+ * Tests for coverage tracking, and finalizing images once they are
+ * complete.
+ *
+ * @author tonyj
+ */
+public class CoverageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stridedCoverage() {
+        // Two side by side segments of a 100x10 image
+        Coverage coverage = new Coverage(100 * 10);
+        assertFalse(coverage.add(0, 50, 100, 500));
+        assertEquals(0.5, coverage.getFraction(), 0);
+        assertEquals(50, coverage.getFirstMissing());
+        // Overlaps the first segment by one column
+        assertTrue(coverage.add(49, 51, 100, 510));
+        assertTrue(coverage.isComplete());
+        assertEquals(10, coverage.getDuplicates());
+        assertEquals(-1, coverage.getFirstMissing());
+        // Completion is only reported once
+        assertFalse(coverage.add(0, 0, 0, 1000));
+        assertEquals(1010, coverage.getDuplicates());
+    }
+
+    @Test
+    public void unalignedRanges() {
+        Coverage coverage = new Coverage(1000);
+        for (int i = 0; i < 1000; i += 7) {
+            coverage.add(i, 0, 0, Math.min(7, 1000 - i));
+            assertEquals(Math.min(i + 7, 1000), coverage.getCovered());
+        }
+        assertTrue(coverage.isComplete());
+        // Outside the image
+        assertFalse(coverage.add(990, 0, 0, 100));
+        assertEquals(10, coverage.getDuplicates());
+    }
+
+    @Test
+    public void earlyFinalization() throws IOException, InterruptedException, FitsException {
+        File dir = folder.getRoot();
+        FitsFileManager manager = new FitsFileManager(dir);
+        final AtomicReference<VisualizationIngestServer.Completion> reason = new AtomicReference<>();
+        final CountDownLatch finalized = new CountDownLatch(1);
+        manager.addCompletionListener((imageName, completion, fraction) -> {
+            reason.set(completion);
+            assertEquals(1.0, fraction, 0);
+        });
+        manager.getFinalizer().addListener((imageName, error) -> finalized.countDown());
+        try {
+            // Two clients, but the first sends the whole image
+            manager.handleMessage(new StartMessage("early", 100, 10, 10, 2), null);
+            ByteBuffer bb = ByteBuffer.allocate(4 * 100 * 10);
+            manager.handleMessage(new DataMessage("early", 0, 100, 100, bb), new ByteBufferChannel(bb.duplicate()));
+            // Not finalized until the declared headers, sent after the data,
+            // have been received
+            assertFalse(finalized.await(100, TimeUnit.MILLISECONDS));
+            manager.handleMessage(new HeaderMessage("early", "EARLY   =                    1 / sent after the data"), null);
+            List<String> cards = new ArrayList<>();
+            for (int i = 1; i < 10; i++) {
+                cards.add(String.format("KEY%05d= %20d", i, i));
+            }
+            manager.handleMessage(new HeaderBatchMessage("early", cards), null);
+            assertTrue(finalized.await(10, TimeUnit.SECONDS));
+            assertEquals(VisualizationIngestServer.Completion.COVERAGE, reason.get());
+            assertEquals(1.0, manager.getCoverage("early"), 0);
+            File file = new File(dir, "early.fits");
+            assertTrue(file.exists());
+            try (Fits fits = new Fits(file)) {
+                Header header = fits.getHDU(0).getHeader();
+                assertEquals(1, header.getIntValue("EARLY"));
+                assertEquals(9, header.getIntValue("KEY00009"));
+            }
+            // Late end messages are ignored without waiting for a start message
+            long start = System.nanoTime();
+            manager.handleMessage(new EndMessage("early"), null);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(FitsFileManager.START_WAIT_MILLIS));
+        } finally {
+            manager.cancel();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static org.junit.Assert.assertFalse;
+import org.junit.After;
+
+/**
+ * Runs the same tests as VisualizationIngestServerTest, but with connections
+ * handled by an executor supplied to the server.
+ *
+ * @author tonyj
+ */
+public class ExecutorIngestServerTest extends VisualizationIngestServerTest {
+
+    private ExecutorService executor;
+
+    @Override
+    VisualizationIngestServer createServer(SocketAddress inputAddress, FitsFileManager ffManager) {
+        executor = Executors.newCachedThreadPool();
+        return new VisualizationIngestServer(inputAddress, ffManager, executor);
+    }
+
+    @After
+    @Override
+    public void teardown() throws IOException {
+        super.teardown();
+        // Owned by the caller, so not shut down by the server
+        assertFalse(executor.isShutdown());
+        executor.shutdownNow();
+    }
+}
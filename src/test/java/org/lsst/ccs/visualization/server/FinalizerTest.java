@@ -0,0 +1,145 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lsst.ccs.visualization.message.Message;
+
+/**
+ * Tests for asynchronous finalization and the durability policies.
+ *
+ * @author tonyj
+ */
+public class FinalizerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final Finalizer finalizer = new Finalizer();
+
+    @After
+    public void teardown() throws InterruptedException {
+        finalizer.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void closeIsAsynchronous() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FileHandler handler = new FileHandler(folder.newFile(), release);
+        CompletableFuture<String> future = finalizer.submit("slow", handler);
+        // The submitting thread is not blocked by a slow close
+        assertFalse(future.isDone());
+        release.countDown();
+        assertEquals("slow", future.get(10, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), handler.closedBy);
+    }
+
+    @Test(timeout = 20000)
+    public void backlogIsQueued() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<FileHandler> handlers = new CopyOnWriteArrayList<>();
+        List<CompletableFuture<String>> futures = new CopyOnWriteArrayList<>();
+        // Far more than the pool can take, none is finalized by the caller
+        for (int i = 0; i < 100; i++) {
+            FileHandler handler = new FileHandler(folder.newFile(), release);
+            handlers.add(handler);
+            futures.add(finalizer.submit("image" + i, handler));
+        }
+        release.countDown();
+        for (int i = 0; i < handlers.size(); i++) {
+            futures.get(i).get(10, TimeUnit.SECONDS);
+            assertNotSame(Thread.currentThread(), handlers.get(i).closedBy);
+        }
+    }
+
+    @Test
+    public void fsync() throws Exception {
+        finalizer.setDurability(VisualizationIngestServer.Durability.FSYNC, 0);
+        assertEquals("image", finalizer.submit("image", new FileHandler(folder.newFile(), null)).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        final List<String> finalized = new CopyOnWriteArrayList<>();
+        final CountDownLatch notified = new CountDownLatch(2);
+        finalizer.addListener(new VisualizationIngestServer.FinalizationListener() {
+            @Override
+            public void imageFinalized(String imageName, Throwable error) {
+                if (error == null) {
+                    finalized.add(imageName);
+                }
+                notified.countDown();
+            }
+        });
+        finalizer.setDurability(VisualizationIngestServer.Durability.GROUP_COMMIT, 500);
+        long start = System.nanoTime();
+        CompletableFuture<String> first = finalizer.submit("first", new FileHandler(folder.newFile(), null));
+        CompletableFuture<String> second = finalizer.submit("second", new FileHandler(folder.newFile(), null));
+        // Neither image completes until the end of the window
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(notified.await(10, TimeUnit.SECONDS));
+        assertEquals(2, finalized.size());
+    }
+
+    @Test
+    public void errorsCompleteExceptionally() throws Exception {
+        FileHandler handler = new FileHandler(new File(folder.getRoot(), "missing.fits"), null);
+        finalizer.setDurability(VisualizationIngestServer.Durability.FSYNC, 0);
+        CompletableFuture<String> future = finalizer.submit("missing", handler);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException x) {
+            assertTrue(x.getCause() instanceof IOException);
+        }
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    private static class FileHandler implements FitsFileHandler {
+
+        private final File file;
+        private final CountDownLatch release;
+        private volatile Thread closedBy;
+
+        FileHandler(File file, CountDownLatch release) {
+            this.file = file;
+            this.release = release;
+        }
+
+        @Override
+        public void handle(Message msg, ReadableByteChannel in) {
+        }
+
+        @Override
+        public List<File> getOutputFiles() {
+            return Collections.singletonList(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closedBy = Thread.currentThread();
+            if (release != null) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException x) {
+                    throw new IOException(x);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.GZIPInputStream;
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.BinaryTableHDU;
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.Header;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.HeaderMessage;
+import org.lsst.ccs.visualization.message.RiceCodec;
+import org.lsst.ccs.visualization.message.StartMessage;
+
+/**
+ * Writes real fits files with FitsFileHandlerImpl and reads them back.
+ *
+ * @author tonyj
+ */
+public class FitsFileHandlerImplTest {
+
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private boolean mapped = false;
+
+    @Test
+    public void contiguousTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("contiguous", WIDTH, HEIGHT, 10, 1);
+        try (FitsFileHandler handler = createHandler(dir, start)) {
+            // Send in two halves
+            int half = WIDTH * HEIGHT / 2;
+            handler.handle(new DataMessage("contiguous", 0, 0, 0, pixels(0, half)), channel(0, half));
+            handler.handle(new DataMessage("contiguous", half, 0, 0, pixels(half, half)), channel(half, half));
+        }
+        int[][] data = read(new File(dir, "contiguous.fits"));
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(x + y * WIDTH, data[y][x]);
+            }
+        }
+    }
+
+    @Test
+    public void stridedTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("strided", WIDTH, HEIGHT, 10, 2);
+        int ccdWidth = WIDTH / 2;
+        try (FitsFileHandler handler = createHandler(dir, start)) {
+            // Two side by side segments, each sent as rows of ccdWidth pixels
+            for (int segment = 0; segment < 2; segment++) {
+                int n = ccdWidth * HEIGHT;
+                DataMessage data = new DataMessage("strided", segment * ccdWidth, ccdWidth, WIDTH, pixels(segment * n, n));
+                handler.handle(data, channel(segment * n, n));
+            }
+        }
+        int[][] data = read(new File(dir, "strided.fits"));
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int segment = x / ccdWidth;
+                assertEquals(segment * ccdWidth * HEIGHT + y * ccdWidth + x % ccdWidth, data[y][x]);
+            }
+        }
+    }
+
+    @Test
+    public void contiguousMappedTest() throws IOException, FitsException {
+        mapped = true;
+        contiguousTest();
+    }
+
+    @Test
+    public void stridedMappedTest() throws IOException, FitsException {
+        mapped = true;
+        stridedTest();
+    }
+
+    @Test
+    public void previewTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("preview", WIDTH, HEIGHT, 10, 2);
+        int ccdWidth = WIDTH / 2;
+        try (FitsFileHandler handler = new FitsFileHandlerImpl(dir, start, FitsFileHandlerImpl.Options.DEFAULT.withMapped(mapped).withPreviewFactors(PreviewPyramid.DEFAULT_FACTORS))) {
+            int n = ccdWidth * HEIGHT;
+            handler.handle(new DataMessage("preview", 0, ccdWidth, WIDTH, pixels(0, n)), channel(0, n));
+            // Only the left half has been received so far
+            float[][] partial = handler.getPreview().snapshot(2);
+            assertEquals(HEIGHT / 2, partial.length);
+            assertEquals(WIDTH / 2, partial[0].length);
+            assertEquals(0.5f + ccdWidth / 2f, partial[0][0], 0);
+            assertTrue(Float.isNaN(partial[0][ccdWidth / 2]));
+            handler.handle(new DataMessage("preview", ccdWidth, ccdWidth, WIDTH, pixels(n, n)), channel(n, n));
+        }
+        try (Fits fits = new Fits(new File(dir, "preview" + PreviewPyramid.SUFFIX))) {
+            BasicHDU<?>[] hdus = fits.read();
+            assertEquals(3, hdus.length);
+            for (int level = 0; level < hdus.length; level++) {
+                int factor = PreviewPyramid.DEFAULT_FACTORS[level];
+                assertEquals(factor, hdus[level].getHeader().getIntValue("BINNING"));
+                float[][] preview = (float[][]) hdus[level].getKernel();
+                assertEquals((HEIGHT + factor - 1) / factor, preview.length);
+                assertEquals((WIDTH + factor - 1) / factor, preview[0].length);
+                for (int y = 0; y < HEIGHT / factor; y++) {
+                    for (int x = 0; x < WIDTH / factor; x++) {
+                        // The mean of a bin within one segment is the value at its centre
+                        int segment = x * factor / ccdWidth;
+                        if ((x + 1) * factor <= (segment + 1) * ccdWidth) {
+                            double expected = segment * ccdWidth * HEIGHT + (y * factor + (factor - 1) / 2.0) * ccdWidth + x * factor - segment * ccdWidth + (factor - 1) / 2.0;
+                            assertEquals(expected, preview[y][x], 1e-6 * expected);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void statisticsTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("statistics", WIDTH, HEIGHT, 10, 1);
+        int n = WIDTH * HEIGHT;
+        try (FitsFileHandler handler = new FitsFileHandlerImpl(dir, start, FitsFileHandlerImpl.Options.DEFAULT.withMapped(mapped).withStatistics(true))) {
+            handler.handle(new DataMessage("statistics", 0, 0, 0, pixels(0, n)), channel(0, n));
+            assertEquals(n, handler.getStatistics().getCount());
+        }
+        try (Fits fits = new Fits(new File(dir, "statistics.fits"))) {
+            BasicHDU<?> hdu = fits.readHDU();
+            Header header = hdu.getHeader();
+            assertEquals(0, header.getDoubleValue("DATAMIN"), 0);
+            assertEquals(n - 1, header.getDoubleValue("DATAMAX"), 0);
+            assertEquals((n - 1) / 2.0, header.getDoubleValue("DATAMEAN"), 1e-6);
+            assertEquals((n - 1) / 2.0, header.getDoubleValue("DATAMED"), 1);
+            assertTrue(header.containsKey("ZSCALE1"));
+            // The data must not have been overwritten by the extra cards
+            int[][] data = (int[][]) hdu.getKernel();
+            assertEquals(0, data[0][0]);
+            assertEquals(n - 1, data[HEIGHT - 1][WIDTH - 1]);
+        }
+    }
+
+    @Test
+    public void cutoutTest() throws IOException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("cutout", WIDTH, HEIGHT, 10, 1);
+        PixelReader reader;
+        try (FitsFileHandler handler = createHandler(dir, start)) {
+            reader = handler.getReader();
+            int half = WIDTH * HEIGHT / 2;
+            handler.handle(new DataMessage("cutout", 0, 0, 0, pixels(0, half)), channel(0, half));
+            // The second half has not been received yet
+            float[][] cutout = reader.cutout(10, HEIGHT / 2 - 1, 5, 2, 1);
+            assertEquals((HEIGHT / 2 - 1) * WIDTH + 10, cutout[0][0], 0);
+            assertEquals(0, cutout[1][0], 0);
+            handler.handle(new DataMessage("cutout", half, 0, 0, pixels(half, half)), channel(half, half));
+        }
+        // Still readable after the file is closed
+        float[][] cutout = reader.cutout(10, 20, 7, 5, 2);
+        assertEquals(3, cutout.length);
+        assertEquals(4, cutout[0].length);
+        assertEquals(20.5f * WIDTH + 10.5f, cutout[0][0], 0);
+        // Partial bins at the edge of the region
+        assertEquals(24 * WIDTH + 16, cutout[2][3], 0);
+        reader.close();
+    }
+
+    @Test
+    public void cutoutMappedTest() throws IOException {
+        mapped = true;
+        cutoutTest();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cutoutOutsideImage() throws IOException {
+        StartMessage start = new StartMessage("outside", WIDTH, HEIGHT, 10, 1);
+        try (FitsFileHandler handler = createHandler(folder.getRoot(), start)) {
+            handler.getReader().cutout(WIDTH - 10, 0, 20, 10, 1);
+        }
+    }
+
+    @Test
+    public void shortTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("short", WIDTH, HEIGHT, 10, 1, 16);
+        ByteBuffer bb = ByteBuffer.allocate(2 * WIDTH * HEIGHT);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            bb.putShort((short) (i % 65536 - 32768));
+        }
+        bb.flip();
+        try (FitsFileHandler handler = createHandler(dir, start)) {
+            handler.handle(new DataMessage("short", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+        }
+        try (Fits fits = new Fits(new File(dir, "short.fits"))) {
+            BasicHDU<?> hdu = fits.readHDU();
+            assertEquals(16, hdu.getBitPix());
+            assertEquals(32768, hdu.getHeader().getIntValue("BZERO"));
+            short[][] data = (short[][]) hdu.getKernel();
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals((x + y * WIDTH) % 65536, data[y][x] + 32768);
+                }
+            }
+        }
+        assertEquals(0, new File(dir, "short.fits").length() % 2880);
+    }
+
+    @Test
+    public void floatTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("float", WIDTH, HEIGHT, 10, 1, -32);
+        ByteBuffer bb = ByteBuffer.allocate(4 * WIDTH * HEIGHT);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            bb.putFloat(i / 2.0f);
+        }
+        bb.flip();
+        try (FitsFileHandler handler = createHandler(dir, start)) {
+            handler.handle(new DataMessage("float", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+        }
+        try (Fits fits = new Fits(new File(dir, "float.fits"))) {
+            BasicHDU<?> hdu = fits.readHDU();
+            assertEquals(-32, hdu.getBitPix());
+            float[][] data = (float[][]) hdu.getKernel();
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals((x + y * WIDTH) / 2.0f, data[y][x], 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compressedTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("compressed", WIDTH, HEIGHT, 10, 2);
+        int ccdWidth = WIDTH / 2;
+        try (FitsFileHandler handler = new FitsFileHandlerImpl(dir, start, FitsFileHandlerImpl.Options.DEFAULT.withMapped(mapped).withCompressed(true))) {
+            for (int segment = 0; segment < 2; segment++) {
+                int n = ccdWidth * HEIGHT;
+                DataMessage data = new DataMessage("compressed", segment * ccdWidth, ccdWidth, WIDTH, pixels(segment * n, n));
+                handler.handle(data, channel(segment * n, n));
+            }
+            handler.handle(new HeaderMessage("compressed", "OBSID   = 'test'"), null);
+        }
+        assertFalse(new File(dir, "compressed.fits.part").exists());
+        File file = new File(dir, "compressed.fits" + TiledImageWriter.SUFFIX);
+        try (Fits fits = new Fits(file)) {
+            assertEquals(0, fits.readHDU().getHeader().getIntValue("NAXIS"));
+            BinaryTableHDU table = (BinaryTableHDU) fits.readHDU();
+            Header header = table.getHeader();
+            assertTrue(header.getBooleanValue("ZIMAGE"));
+            assertEquals("RICE_1", header.getStringValue("ZCMPTYPE"));
+            assertEquals(32, header.getIntValue("ZBITPIX"));
+            assertEquals(WIDTH, header.getIntValue("ZNAXIS1"));
+            assertEquals(HEIGHT, header.getIntValue("ZNAXIS2"));
+            assertEquals("test", header.getStringValue("OBSID"));
+            assertEquals(HEIGHT, table.getNRows());
+            ByteBuffer row = ByteBuffer.allocate(4 * WIDTH);
+            long compressedBytes = 0;
+            for (int y = 0; y < HEIGHT; y++) {
+                byte[] tile = (byte[]) table.getElement(y, 0);
+                compressedBytes += tile.length;
+                row.clear();
+                RiceCodec.decompress(ByteBuffer.wrap(tile), 4, row, WIDTH);
+                for (int x = 0; x < WIDTH; x++) {
+                    int segment = x / ccdWidth;
+                    assertEquals(segment * ccdWidth * HEIGHT + y * ccdWidth + x % ccdWidth, row.getInt(4 * x));
+                }
+            }
+            assertTrue(compressedBytes < 4 * WIDTH * HEIGHT / 4);
+        }
+    }
+
+    @Test
+    public void compressedMappedTest() throws IOException, FitsException {
+        mapped = true;
+        compressedTest();
+    }
+
+    @Test
+    public void compressedFloatTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        StartMessage start = new StartMessage("gzip", WIDTH, HEIGHT, 10, 1, -32);
+        ByteBuffer bb = ByteBuffer.allocate(4 * WIDTH * HEIGHT);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            bb.putFloat(i / 2.0f);
+        }
+        bb.flip();
+        try (FitsFileHandler handler = new FitsFileHandlerImpl(dir, start, FitsFileHandlerImpl.Options.DEFAULT.withCompressed(true))) {
+            handler.handle(new DataMessage("gzip", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+        }
+        try (Fits fits = new Fits(new File(dir, "gzip.fits" + TiledImageWriter.SUFFIX))) {
+            fits.readHDU();
+            BinaryTableHDU table = (BinaryTableHDU) fits.readHDU();
+            assertEquals("GZIP_1", table.getHeader().getStringValue("ZCMPTYPE"));
+            for (int y = 0; y < HEIGHT; y++) {
+                byte[] tile = (byte[]) table.getElement(y, 0);
+                DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(tile)));
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals((x + y * WIDTH) / 2.0f, in.readFloat(), 0);
+                }
+            }
+        }
+    }
+
+    FitsFileHandler createHandler(File dir, StartMessage start) throws IOException {
+        return new FitsFileHandlerImpl(dir, start, FitsFileHandlerImpl.Options.DEFAULT.withMapped(mapped));
+    }
+
+    private static ByteBuffer pixels(int first, int n) {
+        ByteBuffer bb = ByteBuffer.allocate(4 * n);
+        for (int i = 0; i < n; i++) {
+            bb.putInt(first + i);
+        }
+        bb.flip();
+        return bb;
+    }
+
+    /**
+     * Use a channel which is not a ByteBufferChannel, to exercise the block
+     * reading path.
+     */
+    private static ReadableByteChannel channel(int first, int n) {
+        final ByteBufferChannel in = new ByteBufferChannel(pixels(first, n));
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                // Return short reads, as a socket might
+                int limit = dst.limit();
+                dst.limit(Math.min(limit, dst.position() + 1000));
+                int result = in.read(dst);
+                dst.limit(limit);
+                return result;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static int[][] read(File file) throws IOException, FitsException {
+        try (Fits fits = new Fits(file)) {
+            BasicHDU<?> hdu = fits.readHDU();
+            assertEquals(32, hdu.getBitPix());
+            return (int[][]) hdu.getKernel();
+        }
+    }
+}
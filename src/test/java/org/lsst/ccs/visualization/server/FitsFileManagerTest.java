@@ -0,0 +1,108 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.StartMessage;
+
+/**
+ * Tests for the per image timeouts in FitsFileManager.
+ *
+ * @author tonyj
+ */
+public class FitsFileManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void idleTimeouts() throws IOException, InterruptedException {
+        FitsFileManager manager = new FitsFileManager(folder.getRoot());
+        final Map<String, VisualizationIngestServer.Completion> completed = new ConcurrentHashMap<>();
+        final CountDownLatch fastClosed = new CountDownLatch(1);
+        manager.addCompletionListener((imageName, completion, fraction) -> {
+            completed.put(imageName, completion);
+            if (imageName.equals("fast")) {
+                fastClosed.countDown();
+            }
+        });
+        manager.setTimeouts("fa", 60000, 1000);
+        manager.setTimeouts("fast", 500, 1000);
+        try {
+            long start = System.nanoTime();
+            manager.handleMessage(new StartMessage("fast", 100, 10, 10, 1), null);
+            manager.handleMessage(new StartMessage("slow", 100, 10, 10, 1), null);
+            // Activity postpones the timeout
+            for (int i = 0; i < 4; i++) {
+                Thread.sleep(200);
+                ByteBuffer bb = ByteBuffer.allocate(4 * 100);
+                manager.handleMessage(new DataMessage("fast", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+            }
+            assertFalse(completed.containsKey("fast"));
+            assertTrue(fastClosed.await(10, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(1300));
+            assertEquals(VisualizationIngestServer.Completion.IDLE, completed.get("fast"));
+            assertFalse(completed.containsKey("slow"));
+        } finally {
+            manager.cancel();
+        }
+        assertEquals(VisualizationIngestServer.Completion.SHUTDOWN, completed.get("slow"));
+    }
+
+    @Test
+    public void memoryBudget() throws IOException, InterruptedException {
+        final FitsFileManager manager = new FitsFileManager(folder.getRoot());
+        // Room for one 100x100 image
+        manager.setImageStore(4 * 100 * 100, false);
+        manager.setStorageMode(VisualizationIngestServer.StorageMode.MEMORY);
+        try {
+            manager.handleMessage(new StartMessage("first", 100, 100, 0, 1), null);
+            final CountDownLatch started = new CountDownLatch(1);
+            Thread second = new Thread(() -> {
+                try {
+                    manager.handleMessage(new StartMessage("second", 100, 100, 0, 1), null);
+                    started.countDown();
+                } catch (IOException x) {
+                    // Test will fail
+                }
+            });
+            second.start();
+            // Waits for the first image, rather than failing
+            assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+            assertEquals(1, manager.getMetrics().getAdmissionWaits());
+            manager.handleMessage(new EndMessage("first"), null);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertEquals(0, manager.getMetrics().getDiscardedMessages());
+        } finally {
+            manager.cancel();
+        }
+    }
+
+    @Test
+    public void startWait() throws IOException, InterruptedException {
+        FitsFileManager manager = new FitsFileManager(folder.getRoot());
+        manager.setTimeouts("unknown", 60000, 0);
+        try {
+            assertEquals(0, manager.getStartWaitMillis("unknown1"));
+            assertEquals(FitsFileManager.START_WAIT_MILLIS, manager.getStartWaitMillis("other"));
+            long start = System.nanoTime();
+            ByteBuffer bb = ByteBuffer.allocate(4 * 100);
+            manager.handleMessage(new DataMessage("unknown1", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(FitsFileManager.START_WAIT_MILLIS));
+            assertEquals(1, manager.getMetrics().getDiscardedMessages());
+        } finally {
+            manager.cancel();
+        }
+    }
+}
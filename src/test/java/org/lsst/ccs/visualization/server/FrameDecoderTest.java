@@ -0,0 +1,177 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.HeaderMessage;
+import org.lsst.ccs.visualization.message.Message;
+import org.lsst.ccs.visualization.message.StartMessage;
+
+/**
+ * Tests frame reassembly in the FrameDecoder.
+ *
+ * @author tonyj
+ */
+public class FrameDecoderTest {
+
+    private static final String LONG_CARD = new String(new char[300]).replace('\0', 'X');
+
+    @Test
+    public void manyFramesPerRead() throws IOException {
+        byte[] stream = createStream();
+        List<Message> messages = readAll(new ByteArrayInputChannel(stream, stream.length), 65536);
+        checkMessages(messages);
+    }
+
+    @Test
+    public void framesSplitAcrossReads() throws IOException {
+        byte[] stream = createStream();
+        for (int chunk : new int[]{1, 3, 7, 255}) {
+            List<Message> messages = readAll(new ByteArrayInputChannel(stream, chunk), 65536);
+            checkMessages(messages);
+        }
+    }
+
+    @Test
+    public void framesLargerThanBuffer() throws IOException {
+        byte[] stream = createStream();
+        List<Message> messages = readAll(new ByteArrayInputChannel(stream, 5), 16);
+        checkMessages(messages);
+    }
+
+    @Test
+    public void emptyStream() throws IOException {
+        FrameDecoder decoder = new FrameDecoder();
+        assertEquals(-1, decoder.read(new ByteArrayInputChannel(new byte[0], 1)));
+        assertNull(decoder.next());
+    }
+
+    @Test
+    public void oversizedFrame() throws IOException {
+        for (int len : new int[]{FrameDecoder.MAX_FRAME_LENGTH + 1, Integer.MAX_VALUE}) {
+            byte[] stream = ByteBuffer.allocate(8).putInt(len).array();
+            FrameDecoder decoder = new FrameDecoder();
+            decoder.read(new ByteArrayInputChannel(stream, stream.length));
+            try {
+                decoder.next();
+                fail("Should have rejected frame length " + len);
+            } catch (IOException x) {
+                // OK, expected
+            }
+        }
+    }
+
+    /**
+     * Read all messages from the channel. Since decoded messages are reused,
+     * each one is copied to a new message before being added to the result.
+     */
+    private List<Message> readAll(ReadableByteChannel in, int capacity) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(capacity);
+        List<Message> result = new ArrayList<>();
+        for (;;) {
+            Message message = decoder.next();
+            if (message == null) {
+                if (decoder.read(in) < 0) {
+                    return result;
+                }
+                continue;
+            }
+            result.add(copy(message));
+            if (message instanceof DataMessage) {
+                DataMessage data = (DataMessage) message;
+                ByteBuffer bb = ByteBuffer.allocate(data.getDataLength());
+                FrameDecoder.PayloadChannel payload = decoder.payload(in, data.getDataLength());
+                while (payload.read(bb) >= 0) {
+                }
+                bb.flip();
+                assertEquals(data.getDataLength(), bb.remaining());
+                for (int i = 0; i < bb.remaining() / 4; i++) {
+                    assertEquals(i, bb.getInt());
+                }
+            }
+        }
+    }
+
+    private Message copy(Message message) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(message.getFrameLength());
+        message.encodeFrame(bb);
+        bb.flip();
+        return Message.decode(bb);
+    }
+
+    private void checkMessages(List<Message> messages) {
+        assertEquals(5, messages.size());
+        assertEquals(Message.MessageType.START, messages.get(0).getType());
+        assertEquals(Message.MessageType.HEADER, messages.get(1).getType());
+        assertEquals(LONG_CARD, ((HeaderMessage) messages.get(1)).getCard());
+        assertEquals(Message.MessageType.DATA, messages.get(2).getType());
+        assertEquals(Message.MessageType.HEADER, messages.get(3).getType());
+        assertEquals(Message.MessageType.END, messages.get(4).getType());
+        for (Message message : messages) {
+            assertEquals("testImage", message.getImageName());
+        }
+    }
+
+    private byte[] createStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        new StartMessage("testImage", 100, 100, 20, 1).encode(channel);
+        new HeaderMessage("testImage", LONG_CARD).encode(channel);
+        ByteBuffer bb = ByteBuffer.allocate(4 * 1000);
+        for (int i = 0; i < 1000; i++) {
+            bb.putInt(i);
+        }
+        bb.flip();
+        new DataMessage("testImage", 0, 0, 0, bb).encode(channel);
+        new HeaderMessage("testImage", "SHORT   = 'card'").encode(channel);
+        new EndMessage("testImage").encode(channel);
+        return out.toByteArray();
+    }
+
+    /**
+     * A channel which returns at most chunk bytes per read.
+     */
+    private static class ByteArrayInputChannel implements ReadableByteChannel {
+
+        private final ByteBuffer data;
+        private final int chunk;
+
+        ByteArrayInputChannel(byte[] data, int chunk) {
+            this.data = ByteBuffer.wrap(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(chunk, Math.min(dst.remaining(), data.remaining()));
+            ByteBuffer src = data.duplicate();
+            src.limit(src.position() + n);
+            dst.put(src);
+            data.position(data.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
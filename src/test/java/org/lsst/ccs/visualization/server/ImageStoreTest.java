@@ -0,0 +1,105 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.Fits;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.HeaderMessage;
+import org.lsst.ccs.visualization.message.StartMessage;
+
+/**
+ * Tests for the in-memory image store.
+ *
+ * @author tonyj
+ */
+public class ImageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void evictionTest() throws IOException {
+        // Room for exactly three 100x100 images
+        ImageStore store = new ImageStore(3 * 4 * 100 * 100, null);
+        for (int i = 0; i < 3; i++) {
+            new MemoryFitsFileHandler(store, new StartMessage("image" + i, 100, 100, 0, 1)).close();
+        }
+        // Touch image0, so image1 is now the least recently used
+        assertNotNull(store.get("image0"));
+        FitsFileHandler inFlight = new MemoryFitsFileHandler(store, new StartMessage("image3", 100, 100, 0, 1));
+        assertNull(store.get("image1"));
+        assertNotNull(store.get("image0"));
+        assertNotNull(store.get("image2"));
+        assertEquals(3 * 4 * 100 * 100, store.getReservedBytes());
+
+        // Images still being received are never evicted, admission is
+        // responsible for keeping them within the budget
+        new MemoryFitsFileHandler(store, new StartMessage("image4", 100, 100, 0, 1));
+        new MemoryFitsFileHandler(store, new StartMessage("image5", 100, 100, 0, 1));
+        new MemoryFitsFileHandler(store, new StartMessage("image6", 100, 100, 0, 1));
+        assertNotNull(store.get("image3"));
+        assertEquals(4 * 4 * 100 * 100, store.getReservedBytes());
+        try {
+            new MemoryFitsFileHandler(store, new StartMessage("huge", 200, 200, 0, 1));
+            fail("Should have exceeded budget");
+        } catch (IOException x) {
+            // Expected
+        }
+        inFlight.close();
+        store.close();
+    }
+
+    @Test
+    public void persistenceTest() throws IOException, FitsException {
+        File dir = folder.getRoot();
+        ImageStore store = new ImageStore(1 << 20, dir);
+        FitsFileHandler handler = new MemoryFitsFileHandler(store, new StartMessage("persisted", 100, 50, 10, 1));
+        handler.handle(new HeaderMessage("persisted", "TESTKEY = 'testvalue'"), new ByteBufferChannel(ByteBuffer.allocate(0)));
+        ByteBuffer bb = ByteBuffer.allocate(4 * 100 * 50);
+        for (int i = 0; i < 100 * 50; i++) {
+            bb.putInt(i);
+        }
+        bb.flip();
+        handler.handle(new DataMessage("persisted", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+        handler.close();
+        store.close();
+
+        try (Fits fits = new Fits(new File(dir, "persisted.fits"))) {
+            BasicHDU<?> hdu = fits.readHDU();
+            assertEquals("testvalue", hdu.getHeader().getStringValue("TESTKEY"));
+            int[][] data = (int[][]) hdu.getKernel();
+            for (int y = 0; y < 50; y++) {
+                for (int x = 0; x < 100; x++) {
+                    assertEquals(x + 100 * y, data[y][x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cutoutTest() throws IOException {
+        ImageStore store = new ImageStore(1 << 20, null);
+        FitsFileHandler handler = new MemoryFitsFileHandler(store, new StartMessage("cutout", 100, 50, 10, 1, 16));
+        ByteBuffer bb = ByteBuffer.allocate(2 * 100 * 50);
+        for (int i = 0; i < 100 * 50; i++) {
+            bb.putShort((short) (i - 32768));
+        }
+        bb.flip();
+        handler.handle(new DataMessage("cutout", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+        handler.close();
+        float[][] cutout = store.get("cutout").cutout(98, 48, 2, 2, 1);
+        assertEquals(4898, cutout[0][0], 0);
+        assertEquals(4999, cutout[1][1], 0);
+        store.close();
+    }
+}
@@ -0,0 +1,95 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.StartMessage;
+
+/**
+ * Tests for the ingest metrics, and their registration with JMX.
+ *
+ * @author tonyj
+ */
+public class IngestMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void histogram() {
+        IngestMetrics.Histogram histogram = new IngestMetrics.Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i);
+        }
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 1e-9);
+        // 50 is in the bin [32,64)
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+        histogram.reset();
+        assertTrue(Double.isNaN(histogram.getMean()));
+    }
+
+    @Test
+    public void imageMetrics() throws IOException, InterruptedException, JMException {
+        FitsFileManager manager = new FitsFileManager(folder.getRoot());
+        IngestMetrics metrics = manager.getMetrics();
+        final CountDownLatch finalized = new CountDownLatch(1);
+        manager.getFinalizer().addListener((imageName, error) -> finalized.countDown());
+        try {
+            manager.handleMessage(new StartMessage("metrics", 100, 10, 10, 1), null);
+            assertEquals(1, metrics.getOpenImages());
+            ByteBuffer bb = ByteBuffer.allocate(4 * 100 * 5);
+            manager.handleMessage(new DataMessage("metrics", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+            manager.handleMessage(new DataMessage("unknown", 0, 0, 0, bb), new ByteBufferChannel(bb.duplicate()));
+            manager.handleMessage(new EndMessage("metrics"), null);
+            assertTrue(finalized.await(10, TimeUnit.SECONDS));
+            assertEquals(0, metrics.getOpenImages());
+            assertEquals(1, metrics.getImagesStarted());
+            assertEquals(1, metrics.getDiscardedMessages());
+            assertEquals(0, metrics.getIdleTimeoutCloses());
+            assertEquals(1L, (long) metrics.getCompletions().get("END"));
+            Map<String, Long> frames = metrics.getFrameCounts();
+            assertEquals(1L, (long) frames.get("START"));
+            assertEquals(2L, (long) frames.get("DATA"));
+            assertEquals(1L, (long) frames.get("END"));
+
+            ObjectName name = metrics.register("metricsTest");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "DiscardedMessages"));
+            metrics.unregister();
+            assertFalse(server.isRegistered(name));
+        } finally {
+            manager.cancel();
+        }
+        assertEquals(1, metrics.getImagesFinalized());
+    }
+
+    @Test
+    public void rates() {
+        IngestMetrics metrics = new IngestMetrics();
+        IngestMetrics.Rate connection = metrics.connectionOpened("client");
+        metrics.sample(0);
+        metrics.received(connection, 1000);
+        metrics.sample(TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(2000, metrics.getBytesPerSecond(), 1e-6);
+        assertEquals(2000, metrics.getConnectionBytesPerSecond().get("client"), 1e-6);
+        metrics.connectionClosed("client");
+        assertEquals(0, metrics.getOpenConnections());
+    }
+}
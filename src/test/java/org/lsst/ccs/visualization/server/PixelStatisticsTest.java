@@ -0,0 +1,104 @@
+package org.lsst.ccs.visualization.server;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests accumulation of pixel statistics.
+ *
+ * @author tonyj
+ */
+public class PixelStatisticsTest {
+
+    @Test
+    public void simpleStatistics() {
+        PixelStatistics statistics = new PixelStatistics(32);
+        ByteBuffer bb = ByteBuffer.allocate(4 * 101);
+        for (int i = 0; i <= 100; i++) {
+            bb.putInt(1000 + i);
+        }
+        bb.flip();
+        statistics.add(bb);
+        assertEquals(0, bb.position());
+        ImageStatistics result = statistics.getStatistics();
+        assertEquals(101, result.getCount());
+        assertEquals(1000, result.getMin(), 0);
+        assertEquals(1100, result.getMax(), 0);
+        assertEquals(1050, result.getMean(), 1e-9);
+        assertEquals(1050, result.getMedian(), 0);
+        assertEquals(1010, result.getPercentile(10), 0);
+        assertEquals(Math.sqrt(850), result.getStandardDeviation(), 1e-6);
+    }
+
+    @Test
+    public void outOfRange() {
+        PixelStatistics statistics = new PixelStatistics(-32);
+        ByteBuffer bb = ByteBuffer.allocate(4 * 4);
+        bb.putFloat(-5.5f).putFloat(Float.NaN).putFloat(10).putFloat(1e6f);
+        bb.flip();
+        statistics.add(bb);
+        ImageStatistics result = statistics.getStatistics();
+        assertEquals(3, result.getCount());
+        assertEquals(-5.5, result.getPercentile(0), 0);
+        assertEquals(10, result.getMedian(), 0);
+        assertEquals(1e6, result.getPercentile(100), 0);
+    }
+
+    @Test
+    public void sortedSamples() {
+        PixelStatistics statistics = new PixelStatistics(-32);
+        Random random = new Random(1);
+        ByteBuffer bb = ByteBuffer.allocate(4 * 5000);
+        for (int i = 0; i < 5000; i++) {
+            // Includes values below and above the range of the histogram
+            bb.putFloat((float) (1000 + 30000 * random.nextGaussian()));
+        }
+        bb.flip();
+        statistics.add(bb);
+        ImageStatistics result = statistics.getStatistics();
+        for (int n : new int[]{1, 2, 7, 1000}) {
+            double[] samples = result.sortedSamples(n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(result.getPercentile(n == 1 ? 50 : 100.0 * i / (n - 1)), samples[i], 0);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentZScale() throws InterruptedException {
+        // Gaussian noise with a few bright outliers, added from several threads
+        final PixelStatistics statistics = new PixelStatistics(16);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            executor.execute(() -> {
+                Random random = new Random(seed);
+                ByteBuffer bb = ByteBuffer.allocate(2 * 10000);
+                for (int block = 0; block < 10; block++) {
+                    bb.clear();
+                    while (bb.hasRemaining()) {
+                        int value = random.nextInt(1000) == 0 ? 60000 : (int) Math.round(1000 + 10 * random.nextGaussian());
+                        bb.putShort((short) (value - 32768));
+                    }
+                    bb.flip();
+                    statistics.add(bb);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        ImageStatistics result = statistics.getStatistics();
+        assertEquals(800000, result.getCount());
+        assertEquals(1000, result.getMedian(), 1);
+        assertEquals(60000, result.getMax(), 0);
+        // Outliers are rejected, so the limits bracket the noise
+        assertTrue(result.toString(), result.getZScaleLow() > 900 && result.getZScaleLow() < 1000);
+        assertTrue(result.toString(), result.getZScaleHigh() > 1000 && result.getZScaleHigh() < 1100);
+    }
+}
@@ -0,0 +1,102 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks that previews are built correctly from pixels placed by
+ * StridedWriter.
+ *
+ * @author tonyj
+ */
+public class PreviewPyramidTest {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    @Test
+    public void unalignedReads() throws IOException {
+        // 16 bit pixels, read 7 bytes at a time so reads split pixels
+        PreviewPyramid preview = new PreviewPyramid(WIDTH, HEIGHT, 16, 2, 8);
+        ByteBuffer src = ByteBuffer.allocate(2 * WIDTH * HEIGHT);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            src.putShort((short) (1000 + i - 32768));
+        }
+        src.flip();
+        OffHeapSink output = new OffHeapSink(2 * WIDTH * HEIGHT);
+        StridedWriter.write(slowly(src, 7), preview.wrap(output, 0), 0, 0, 0, src.remaining(), 2);
+        float[][] binned = preview.snapshot(2);
+        assertEquals((HEIGHT + 1) / 2, binned.length);
+        assertEquals((WIDTH + 1) / 2, binned[0].length);
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                assertEquals(1000 + (2 * y + 0.5) * WIDTH + 2 * x + 0.5, binned[y][x], 1e-3);
+            }
+        }
+        // Partial bins at the edge are the mean of the pixels they contain
+        assertEquals(1000 + WIDTH - 1 + 0.5 * WIDTH, binned[0][WIDTH / 2], 1e-3);
+        float[][] coarse = preview.snapshot(8);
+        assertEquals(3, coarse.length);
+        assertEquals(5, coarse[0].length);
+        assertNull(preview.snapshot(4));
+    }
+
+    @Test
+    public void emptyBins() {
+        PreviewPyramid preview = new PreviewPyramid(WIDTH, HEIGHT, -32, 4);
+        ByteBuffer row = ByteBuffer.allocate(4 * WIDTH);
+        while (row.hasRemaining()) {
+            row.putFloat(2.5f);
+        }
+        row.flip();
+        preview.add(row, 0);
+        float[][] binned = preview.snapshot(4);
+        assertEquals(2.5f, binned[0][0], 0);
+        assertTrue(Float.isNaN(binned[1][0]));
+    }
+
+    @Test
+    public void fullBins() {
+        // Each bin of the 128 level holds 16384 pixels, each sent three times
+        PreviewPyramid preview = new PreviewPyramid(128, 128, 32, 128);
+        ByteBuffer row = ByteBuffer.allocate(4 * 128);
+        while (row.hasRemaining()) {
+            row.putInt(1000001);
+        }
+        row.flip();
+        for (int repeat = 0; repeat < 3; repeat++) {
+            for (int y = 0; y < 128; y++) {
+                preview.add(row.duplicate(), 128L * y);
+            }
+        }
+        assertEquals(1000001, preview.snapshot(128)[0][0], 0.5);
+    }
+
+    private static ReadableByteChannel slowly(ByteBuffer src, final int chunk) {
+        final ByteBufferChannel in = new ByteBufferChannel(src.duplicate());
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                int limit = dst.limit();
+                dst.limit(Math.min(limit, dst.position() + chunk));
+                int result = in.read(dst);
+                dst.limit(limit);
+                return result;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
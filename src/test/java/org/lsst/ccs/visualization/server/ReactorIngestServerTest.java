@@ -0,0 +1,17 @@
+package org.lsst.ccs.visualization.server;
+
+import java.net.SocketAddress;
+
+/**
+ * Runs the same tests as VisualizationIngestServerTest, but with the server in
+ * reactor mode.
+ *
+ * @author tonyj
+ */
+public class ReactorIngestServerTest extends VisualizationIngestServerTest {
+
+    @Override
+    VisualizationIngestServer createServer(SocketAddress inputAddress, FitsFileManager ffManager) {
+        return new VisualizationIngestServer(inputAddress, ffManager, VisualizationIngestServer.IOMode.REACTOR, 2);
+    }
+}
@@ -0,0 +1,230 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lsst.ccs.visualization.message.DataMessage;
+
+/**
+ * Tests for StridedWriter, using an in-memory sink.
+ *
+ * @author tonyj
+ */
+public class StridedWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void inMemoryInput() throws IOException {
+        check(true);
+    }
+
+    @Test
+    public void blockInput() throws IOException {
+        check(false);
+    }
+
+    @Test
+    public void mappedDirectRead() throws IOException {
+        File file = folder.newFile("mapped.dat");
+        int length = 3 * StridedWriter.DIRECT_READ_THRESHOLD;
+        ByteBuffer src = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            src.put((byte) i);
+        }
+        src.flip();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(100 + length);
+            MappedSink sink = new MappedSink(raf.getChannel(), 100, length);
+            // Two long rows, with a gap between them
+            int row = StridedWriter.DIRECT_READ_THRESHOLD;
+            StridedWriter.write(wrap(new ByteBufferChannel(src)), sink, 100, row, 2 * row, 2 * row);
+            sink.force();
+            ByteBuffer result = ByteBuffer.allocate(length);
+            raf.getChannel().read(result, 100);
+            for (int i = 0; i < length; i++) {
+                byte expected = i < row ? (byte) i : i < 2 * row ? 0 : (byte) (i - row);
+                assertEquals(expected, result.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void packedInMemoryInput() throws IOException {
+        for (int bitpix : new int[]{16, 32, -32}) {
+            checkPacked(true, bitpix);
+        }
+    }
+
+    @Test
+    public void packedBlockInput() throws IOException {
+        for (int bitpix : new int[]{16, 32, -32}) {
+            checkPacked(false, bitpix);
+        }
+    }
+
+    @Test
+    public void emptyPayload() throws IOException {
+        StridedWriter.Sink sink = new StridedWriter.Sink() {
+            @Override
+            public void write(ByteBuffer bb, long position) {
+                throw new AssertionError("Nothing should be written");
+            }
+        };
+        for (DataMessage.Encoding encoding : DataMessage.Encoding.values()) {
+            for (int stepLength : new int[]{0, 10}) {
+                DataMessage data = new DataMessage("x", 0, stepLength, 2 * stepLength, ByteBuffer.allocate(0), encoding);
+                ByteBufferChannel channel = new ByteBufferChannel(ByteBuffer.allocate(0));
+                assertEquals(0, StridedWriter.write(channel, sink, 0, data, 32));
+                assertEquals(0, StridedWriter.write(wrap(channel), sink, 0, data, 32));
+            }
+        }
+    }
+
+    @Test
+    public void compressed() throws IOException {
+        checkCompressed(DataMessage.Encoding.NATIVE, DataMessage.Compression.RICE_32);
+    }
+
+    @Test
+    public void compressedPacked() throws IOException {
+        checkCompressed(DataMessage.Encoding.PACKED_16, DataMessage.Compression.RICE_16);
+    }
+
+    private void checkCompressed(DataMessage.Encoding encoding, DataMessage.Compression compression) throws IOException {
+        // Several chunks, rows of 3 pixels placed every 5 pixels, starting at pixel 2
+        int nRows = DataMessage.CHUNK_PIXELS + 17;
+        int wordSize = compression.getBytesPerPixel();
+        ByteBuffer src = ByteBuffer.allocate(wordSize * 3 * nRows);
+        Random random = new Random(1);
+        int[] expected = new int[3 * nRows];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = 1000 + (int) (10 * random.nextGaussian());
+            if (wordSize == 2) {
+                src.putShort((short) expected[i]);
+            } else {
+                src.putInt(expected[i]);
+            }
+        }
+        src.flip();
+        DataMessage data = new DataMessage("compressed", 2, 3, 5, src, encoding, compression);
+        assertTrue(data.getDataLength() < src.remaining() / 2);
+        final ByteBuffer out = ByteBuffer.allocate(4 * (5 * nRows + 2));
+        StridedWriter.Sink sink = new StridedWriter.Sink() {
+            @Override
+            public void write(ByteBuffer bb, long position) {
+                ByteBuffer dst = out.duplicate();
+                dst.position((int) position);
+                dst.put(bb);
+            }
+        };
+        StridedWriter.write(wrap(new ByteBufferChannel(data.getPayload())), sink, 0, data, 32);
+        for (int row = 0; row < nRows; row++) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected[3 * row + i], out.getInt(4 * (2 + 5 * row + i)));
+            }
+        }
+    }
+
+    private void checkPacked(boolean inMemory, int bitpix) throws IOException {
+        // Rows of 3 pixels, placed every 5 pixels, with rows spanning blocks
+        int nRows = PixelWidener.BLOCK_PIXELS / 3 + 10;
+        int bytesPerPixel = Math.abs(bitpix) / 8;
+        ByteBuffer src = ByteBuffer.allocate(2 * 3 * nRows);
+        for (int i = 0; i < 3 * nRows; i++) {
+            src.putShort((short) (i * 7));
+        }
+        src.flip();
+        final ByteBuffer out = ByteBuffer.allocate(bytesPerPixel * 5 * nRows);
+        StridedWriter.Sink sink = new StridedWriter.Sink() {
+            @Override
+            public void write(ByteBuffer bb, long position) {
+                ByteBuffer dst = out.duplicate();
+                dst.position((int) position);
+                dst.put(bb);
+            }
+        };
+        ByteBufferChannel channel = new ByteBufferChannel(src);
+        StridedWriter.writePacked16(inMemory ? channel : wrap(channel), sink, 0, 3 * bytesPerPixel, 5 * bytesPerPixel, src.remaining(), bitpix);
+        for (int row = 0; row < nRows; row++) {
+            for (int i = 0; i < 5; i++) {
+                int index = 5 * row + i;
+                int expected = i < 3 ? (3 * row + i) * 7 & 0xffff : 0;
+                switch (bitpix) {
+                    case 16:
+                        assertEquals(i < 3 ? expected - 32768 : 0, out.getShort(2 * index));
+                        break;
+                    case 32:
+                        assertEquals(expected, out.getInt(4 * index));
+                        break;
+                    default:
+                        assertEquals(expected, out.getFloat(4 * index), 0);
+                }
+            }
+        }
+    }
+
+    private void check(boolean inMemory) throws IOException {
+        // Rows of 3 bytes, placed every 5 bytes, with rows spanning blocks
+        int nRows = StridedWriter.BLOCK_SIZE / 3 + 10;
+        ByteBuffer src = ByteBuffer.allocate(3 * nRows);
+        for (int i = 0; i < src.capacity(); i++) {
+            src.put((byte) i);
+        }
+        src.flip();
+        final ByteBuffer out = ByteBuffer.allocate(5 * nRows + 7);
+        StridedWriter.Sink sink = new StridedWriter.Sink() {
+            @Override
+            public void write(ByteBuffer bb, long position) {
+                ByteBuffer dst = out.duplicate();
+                dst.position((int) position);
+                dst.put(bb);
+            }
+        };
+        final ByteBufferChannel channel = new ByteBufferChannel(src);
+        if (inMemory) {
+            StridedWriter.write(channel, sink, 7, 3, 5, src.remaining());
+        } else {
+            StridedWriter.write(wrap(channel), sink, 7, 3, 5, src.capacity());
+        }
+        for (int row = 0; row < nRows; row++) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals((byte) (3 * row + i), out.get(7 + 5 * row + i));
+            }
+            if (row < nRows - 1) {
+                assertEquals(0, out.get(7 + 5 * row + 3));
+                assertEquals(0, out.get(7 + 5 * row + 4));
+            }
+        }
+    }
+
+    /**
+     * Hide the ByteBufferChannel, so the block reading path is used.
+     */
+    private static ReadableByteChannel wrap(final ByteBufferChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                return channel.read(dst);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -1,12 +1,13 @@
 package org.lsst.ccs.visualization.server;
 
 import java.io.IOException;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.lsst.ccs.visualization.message.DataMessage;
+import org.lsst.ccs.visualization.message.HeaderBatchMessage;
 import org.lsst.ccs.visualization.message.Message;
 import org.lsst.ccs.visualization.message.StartMessage;
 
@@ -36,16 +37,20 @@ class TestFitsFileHandler implements FitsFileHandler {
     }
 
     @Override
-    public void handle(Message msg, SocketChannel socket) throws IOException {
+    public void handle(Message msg, ReadableByteChannel in) throws IOException {
         switch (msg.getType()) {            
             case HEADER: 
                 nHeadersReceived.incrementAndGet();
                 break;
+
+            case HEADER_BATCH:
+                nHeadersReceived.addAndGet(((HeaderBatchMessage) msg).getCardCount());
+                break;
                 
             case DATA:
                 DataMessage data = (DataMessage) msg;
                 nBytesReceived.addAndGet(data.getDataLength());
-                FitsFileManager.discardData(data, socket);
+                FitsFileManager.discardData(data, in);
                 break;
         }
     }
@@ -0,0 +1,27 @@
+package org.lsst.ccs.visualization.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+
+/**
+ * Runs the same tests as VisualizationIngestServerTest, but with connections
+ * handled by virtual threads. Skipped when not running on Java 21 or later.
+ *
+ * @author tonyj
+ */
+public class VirtualThreadIngestServerTest extends VisualizationIngestServerTest {
+
+    @Before
+    @Override
+    public void setup() throws IOException {
+        assumeTrue(ConnectionExecutors.isVirtualThreadSupported());
+        super.setup();
+    }
+
+    @Override
+    VisualizationIngestServer createServer(SocketAddress inputAddress, FitsFileManager ffManager) {
+        return new VisualizationIngestServer(inputAddress, ffManager, VisualizationIngestServer.IOMode.VIRTUAL_THREADS, 0);
+    }
+}
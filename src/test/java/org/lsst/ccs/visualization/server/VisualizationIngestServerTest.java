@@ -11,12 +11,14 @@ import java.util.List;
 import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 import org.lsst.ccs.visualization.client.IngestClient;
 import org.lsst.ccs.visualization.message.DataMessage;
 import org.lsst.ccs.visualization.message.EndMessage;
+import org.lsst.ccs.visualization.message.HeaderMessage;
 import org.lsst.ccs.visualization.message.StartMessage;
 
 /**
@@ -37,20 +39,31 @@ public class VisualizationIngestServerTest {
         FitsFileManager ffManager = new FitsFileManager(new File("/notused")) {
             @Override
             FitsFileHandler createHandler(File dir, StartMessage msg) throws IOException {
+                if (msg.getImageName().startsWith("bad")) {
+                    throw new IllegalStateException("Bad image " + msg.getImageName());
+                }
                 currentHandler.init(msg);
                 return currentHandler;
             }
         };
+        // So that missingDataTest does not wait for the default idle timeout
+        ffManager.setTimeouts("", 2000, FitsFileManager.START_WAIT_MILLIS);
         InetSocketAddress inputAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
-        server = new VisualizationIngestServer(inputAddress, ffManager);
+        server = createServer(inputAddress, ffManager);
         address = server.start();
         Thread t = new Thread(server);
         t.start();
     }
 
+    VisualizationIngestServer createServer(SocketAddress inputAddress, FitsFileManager ffManager) {
+        return new VisualizationIngestServer(inputAddress, ffManager);
+    }
+
     @After
     public void teardown() throws IOException {
-        server.shutdown();
+        if (server != null) {
+            server.shutdown();
+        }
     }
 
     @Test
@@ -72,6 +85,45 @@ public class VisualizationIngestServerTest {
         assertEquals("testImage", currentHandler.getImageName());
     }
 
+    @Test
+    public void headerBatchTest() throws IOException, InterruptedException {
+        try (IngestClient client = new IngestClient(address)) {
+            StartMessage start = new StartMessage("testImage", 100, 100, 20, 1);
+            client.send(start);
+            List<String> cards = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                cards.add(String.format("KEY%05d= %20d / test card", i, i));
+            }
+            client.sendHeaders("testImage", cards);
+            EndMessage end = new EndMessage("testImage");
+            client.send(end);
+        }
+        currentHandler.waitUntilClosed(10, TimeUnit.SECONDS);
+        assertEquals(20, currentHandler.getnHeadersReceived());
+        assertEquals(0, currentHandler.getnBytesReceived());
+    }
+
+    @Test
+    public void asyncClientTest() throws IOException, InterruptedException {
+        try (IngestClient client = new IngestClient(address, 4)) {
+            StartMessage start = new StartMessage("testImage", 100, 100, 20, 1);
+            client.send(start);
+            for (int i = 0; i < 20; i++) {
+                client.send(new HeaderMessage("testImage", String.format("KEY%05d= %20d", i, i)));
+            }
+            ByteBuffer bb = createDummyData();
+            for (int i = 0; i < 10; i++) {
+                client.send(new DataMessage("testImage", 0, 0, 0, bb));
+            }
+            EndMessage end = new EndMessage("testImage");
+            client.send(end);
+            client.flush();
+        }
+        currentHandler.waitUntilClosed(10, TimeUnit.SECONDS);
+        assertEquals(20, currentHandler.getnHeadersReceived());
+        assertEquals(10 * 40000, currentHandler.getnBytesReceived());
+    }
+
     private ByteBuffer createDummyData() {
         ByteBuffer bb = ByteBuffer.allocate(4 * 100 * 100);
         for (int i = 0; i < 100 * 100; i++) {
@@ -217,6 +269,103 @@ public class VisualizationIngestServerTest {
         assertEquals("testImage", currentHandler.getImageName());
     }
 
+    @Test
+    public void largeDataTest() throws IOException, InterruptedException {
+        // Messages larger than the payload buffer kept by reactor connections
+        int half = 2 * Reactor.MAX_RETAINED_PAYLOAD;
+        try (IngestClient client = new IngestClient(address)) {
+            client.send(new StartMessage("testImage", 1024, half / 2048, 0, 1));
+            client.send(new DataMessage("testImage", 0, 0, 0, ByteBuffer.allocate(half)));
+            client.send(new DataMessage("testImage", half / 4, 0, 0, ByteBuffer.allocate(half)));
+            client.send(new EndMessage("testImage"));
+        }
+        currentHandler.waitUntilClosed(10, TimeUnit.SECONDS);
+        assertEquals(2L * half, currentHandler.getnBytesReceived());
+    }
+
+    @Test
+    public void errorOnOtherConnectionTest() throws IOException, InterruptedException {
+        // Enough failing connections to reach every IO thread
+        for (int i = 0; i < 4; i++) {
+            try (IngestClient client = new IngestClient(address)) {
+                client.send(new StartMessage("bad" + i, 100, 100, 0, 1));
+            }
+        }
+        Thread.sleep(200);
+        try (IngestClient client = new IngestClient(address)) {
+            client.send(new StartMessage("testImage", 100, 100, 0, 1));
+            client.send(new DataMessage("testImage", 0, 0, 0, createDummyData()));
+            client.send(new EndMessage("testImage"));
+        }
+        currentHandler.waitUntilClosed(10, TimeUnit.SECONDS);
+        assertEquals(40000, currentHandler.getnBytesReceived());
+    }
+
+    @Test
+    public void admissionTest() throws IOException, InterruptedException {
+        server.setAdmissionLimits(1, 0, 0);
+        server.setTimeouts("", 2000, 100);
+        try (IngestClient control = new IngestClient(address)) {
+            control.send(new StartMessage("first", 100, 100, 0, 1));
+            control.send(new StartMessage("second", 100, 100, 0, 1));
+            Thread.sleep(100);
+            // Waits for the second image to be admitted, much longer than
+            // the start wait, but is not discarded
+            try (IngestClient client = new IngestClient(address)) {
+                client.send(new DataMessage("second", 0, 0, 0, createDummyData()));
+                client.send(new EndMessage("second"));
+            }
+            Thread.sleep(500);
+            assertEquals(0, server.getMetrics().getImagesFinalized());
+            try (IngestClient client = new IngestClient(address)) {
+                client.send(new DataMessage("first", 0, 0, 0, createDummyData()));
+                client.send(new EndMessage("first"));
+            }
+            IngestMetricsMXBean metrics = server.getMetrics();
+            for (int i = 0; i < 100 && metrics.getImagesFinalized() < 2; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, metrics.getImagesFinalized());
+            assertEquals(0, metrics.getDiscardedMessages());
+            assertEquals(0, metrics.getIdleTimeoutCloses());
+            assertEquals(2 * 40000, currentHandler.getnBytesReceived());
+            assertTrue(metrics.getAdmissionWaits() > 0);
+            assertEquals(0, metrics.getAdmittedImages());
+            assertEquals(0, metrics.getReservedBytes());
+        }
+    }
+
+    @Test
+    public void inFlightLimitTest() throws IOException, InterruptedException {
+        server.setAdmissionLimits(0, 0, 40000);
+        int nClients = 8;
+        try (IngestClient control = new IngestClient(address)) {
+            control.send(new StartMessage("testImage", 100, 100 * nClients, 0, nClients));
+            control.flush();
+            Thread[] threads = new Thread[nClients];
+            for (int i = 0; i < nClients; i++) {
+                final int offset = i * 100 * 100;
+                threads[i] = new Thread(() -> {
+                    try (IngestClient client = new IngestClient(address)) {
+                        client.send(new DataMessage("testImage", offset, 0, 0, createDummyData()));
+                        client.send(new EndMessage("testImage"));
+                    } catch (IOException x) {
+                        fail(x.getMessage());
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        currentHandler.waitUntilClosed(10, TimeUnit.SECONDS);
+        assertEquals(nClients * 40000, currentHandler.getnBytesReceived());
+        IngestMetricsMXBean metrics = server.getMetrics();
+        assertEquals(0, metrics.getDiscardedMessages());
+        assertEquals(0, metrics.getInFlightBytes());
+    }
+
     @Test
     public void shutdownWhileActiveTest() throws IOException, InterruptedException {
         try (IngestClient client = new IngestClient(address)) {